@@ -1,11 +1,14 @@
 DROP TABLE IF EXISTS Reservations;
 DROP TABLE IF EXISTS Users;
+DROP TABLE IF EXISTS ReservationIds;
+DROP TABLE IF EXISTS FlightSeats;
 
 CREATE TABLE Users (
     username varchar(30) NOT NULL PRIMARY KEY,
     hash varchar(32),
     salt varchar(32),
-    balance int
+    balance int,
+    booked_days int NOT NULL DEFAULT 0 -- bit d-1 set while an active reservation is on day d
 );
 
 CREATE TABLE Reservations (
@@ -15,6 +18,19 @@ CREATE TABLE Reservations (
   paid int, -- 1 means paid
   cancelled int, --1 means cancelled
   price int,
-  dayofmonth int
+  dayofmonth int,
+  fid1 int, -- first flight of the itinerary
+  fid2 int -- second flight, NULL for direct itineraries
 );
 
+-- Only used when Users and Reservations are sharded (flightapp.shards > 1);
+-- these live on shard 0.
+CREATE TABLE ReservationIds (
+  next_id int NOT NULL -- last reservation ID handed out
+);
+INSERT INTO ReservationIds VALUES (0);
+
+CREATE TABLE FlightSeats (
+  fid int PRIMARY KEY,
+  booked int NOT NULL -- active reservations on this flight across all shards
+);
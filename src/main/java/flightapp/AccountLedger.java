@@ -0,0 +1,484 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Authoritative in-process account balances for pay and refund, used when
+ * {@code flightapp.ledger = true}.
+ *
+ * Balances are loaded from Users on first use and then only changed here, under one of
+ * {@code stripes} locks picked by username, so payments by different users never wait for each
+ * other or for a row lock. Every debit and credit is appended to ledger.log as an entry holding
+ * the user, reservation, amount and resulting balance; a writer thread writes and fsyncs queued
+ * entries together (group commit). Users.balance is refreshed from the changed balances every
+ * {@code flushMillis}.
+ *
+ * A payment debits the ledger, waits until the entry is durable, then commits the reservation
+ * change, and {@link #settle settles} the entry; if the commit fails, the caller writes a
+ * {@link #REVERSAL}. If a write fails, the writer cuts the log back to what was last synced and
+ * takes back the balance change of every entry not yet durable, whose futures then fail; the
+ * caller has nothing to reverse.
+ *
+ * ledger.checkpoint holds the offset up to which every entry is settled and in Users. On startup,
+ * the entries after it are replayed into Users, and pays or refunds whose reservation change never
+ * committed are reversed.
+ *
+ * Records are [int length][payload][int crc32] like the {@link ReservationJournal}; a torn record
+ * at the tail is dropped on recovery.
+ */
+public class AccountLedger implements AutoCloseable {
+  static final byte PAY = 1;
+  static final byte REFUND = 2;
+  static final byte REVERSAL = 3;
+
+  private static final String LOG_FILE = "ledger.log";
+  private static final String CHECKPOINT_FILE = "ledger.checkpoint";
+
+  private static final String UPDATE_BALANCE_SQL = "UPDATE Users SET balance = ? WHERE username = ?";
+  private static final String RESERVATION_STATE_SQL = "SELECT paid, cancelled FROM Reservations WHERE id = ?";
+
+  /**
+   * Reads a user's balance from the database
+   */
+  public interface BalanceLoader {
+    int balance(String username) throws SQLException;
+  }
+
+  /**
+   * Outcome of a debit or credit
+   */
+  public static class Entry {
+    final boolean ok;
+    final int balance;
+    final CompletableFuture<Void> durable = new CompletableFuture<>();
+    private final ByteBuffer record;
+    // the account and change to take back if the entry cannot be written
+    private final Account account;
+    private final int amount;
+    private long end;
+    private volatile boolean settled;
+
+    private Entry(boolean ok, int balance, ByteBuffer record, Account account, int amount) {
+      this.ok = ok;
+      this.balance = balance;
+      this.record = record;
+      this.account = account;
+      this.amount = amount;
+    }
+
+    /**
+     * False if the account did not hold enough money
+     */
+    public boolean isOk() {
+      return ok;
+    }
+
+    /**
+     * The balance after the entry, or the unchanged balance when it failed
+     */
+    public int balance() {
+      return balance;
+    }
+
+    /**
+     * Completes once the entry is on disk
+     */
+    public CompletableFuture<Void> durable() {
+      return durable;
+    }
+  }
+
+  private static class Account {
+    int balance;
+    boolean dirty;
+
+    Account(int balance) {
+      this.balance = balance;
+    }
+  }
+
+  private final Connection conn;
+  private final Path directory;
+  private final FileChannel log;
+  private final Object[] stripes;
+  private final ConcurrentHashMap<String, Account> accounts = new ConcurrentHashMap<>();
+  private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+  // written entries in log order, until settled and flushed
+  private final Queue<Entry> unsettled = new ConcurrentLinkedQueue<>();
+  private final Thread writer;
+  private final ScheduledExecutorService flusher;
+  // log size as of the last fsync, only used by the writer thread
+  private long durableSize;
+  private volatile boolean closed;
+
+  /**
+   * @param conn        connection used for recovery and the Users refresh only
+   * @param directory   where the ledger and its checkpoint are kept
+   * @param stripes     number of account locks, a power of two
+   * @param flushMillis delay between refreshes of Users.balance
+   */
+  public AccountLedger(Connection conn, Path directory, int stripes, long flushMillis) throws IOException, SQLException {
+    this.conn = conn;
+    this.directory = directory;
+    this.stripes = new Object[stripes];
+    for (int i = 0; i < stripes; i++) {
+      this.stripes[i] = new Object();
+    }
+    Files.createDirectories(directory);
+    log = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    recover();
+    durableSize = log.size();
+    writer = new Thread(this::writeLoop, "account-ledger");
+    writer.setDaemon(true);
+    writer.start();
+    flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "account-ledger-flush");
+      t.setDaemon(true);
+      return t;
+    });
+    flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Take {@code amount} from {@code username} for {@code reservationId}, unless the balance is too
+   * low. A successful entry must be {@link #settle settled} or reversed.
+   */
+  public Entry debit(String username, int reservationId, int amount, BalanceLoader loader) throws SQLException {
+    synchronized (stripe(username)) {
+      Account account = account(username, loader);
+      if (account.balance < amount) {
+        return new Entry(false, account.balance, null, account, 0);
+      }
+      return apply(account, PAY, username, reservationId, -amount);
+    }
+  }
+
+  /**
+   * Give {@code amount} to {@code username}: a {@link #REFUND} for a cancelled reservation, or a
+   * {@link #REVERSAL} of a debit whose reservation change did not commit. A refund must be
+   * {@link #settle settled} or reversed.
+   */
+  public Entry credit(String username, int reservationId, int amount, byte type, BalanceLoader loader)
+          throws SQLException {
+    synchronized (stripe(username)) {
+      Entry entry = apply(account(username, loader), type, username, reservationId, amount);
+      if (type == REVERSAL) {
+        entry.settled = true;
+      }
+      return entry;
+    }
+  }
+
+  /**
+   * Mark an entry whose reservation change committed, or which was reversed
+   */
+  public void settle(Entry entry) {
+    entry.settled = true;
+  }
+
+  /**
+   * Forget every balance, for when Users is cleared
+   */
+  public void reset() throws IOException, SQLException {
+    flush();
+    accounts.clear();
+  }
+
+  private Object stripe(String username) {
+    return stripes[username.hashCode() & (stripes.length - 1)];
+  }
+
+  private Account account(String username, BalanceLoader loader) throws SQLException {
+    Account account = accounts.get(username);
+    if (account == null) {
+      account = new Account(loader.balance(username));
+      accounts.put(username, account);
+    }
+    return account;
+  }
+
+  /**
+   * Change the balance and queue the entry; called under the account's stripe lock, so each
+   * account's entries are logged in the order they were applied
+   */
+  private Entry apply(Account account, byte type, String username, int reservationId, int amount) {
+    if (closed) {
+      throw new IllegalStateException("Ledger is closed");
+    }
+    account.balance += amount;
+    account.dirty = true;
+    Entry entry = new Entry(true, account.balance, frame(encode(type, username, reservationId, amount, account.balance)),
+            account, amount);
+    queue.add(entry);
+    return entry;
+  }
+
+  private void writeLoop() {
+    List<Entry> batch = new ArrayList<>();
+    while (!closed || !queue.isEmpty()) {
+      try {
+        Entry first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch);
+        for (Entry entry : batch) {
+          while (entry.record.hasRemaining()) {
+            log.write(entry.record, log.size());
+          }
+          entry.end = log.size();
+        }
+        log.force(false);
+        durableSize = log.size();
+        for (Entry entry : batch) {
+          unsettled.add(entry);
+          entry.durable.complete(null);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException e) {
+        e.printStackTrace();
+        undoUnwritten(batch, e, 0);
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * After a failed write, drop every entry that is not on disk from the log, take back its balance
+   * change and fail its future. Holds every stripe lock, taken in order from {@code stripe}, so
+   * no entry is applied meanwhile.
+   */
+  private void undoUnwritten(List<Entry> batch, IOException cause, int stripe) {
+    if (stripe < stripes.length) {
+      synchronized (stripes[stripe]) {
+        undoUnwritten(batch, cause, stripe + 1);
+      }
+      return;
+    }
+    // entries are applied under their stripe lock, so everything unwritten is in the batch or the queue
+    queue.drainTo(batch);
+    try {
+      log.truncate(durableSize);
+    } catch (IOException e) {
+      e.printStackTrace();
+      closed = true;
+    }
+    for (int i = batch.size() - 1; i >= 0; i--) {
+      Entry entry = batch.get(i);
+      entry.account.balance -= entry.amount;
+      entry.account.dirty = true;
+      entry.durable.completeExceptionally(cause);
+    }
+  }
+
+  /**
+   * Write changed balances to Users and move the checkpoint past the settled entries
+   */
+  public synchronized void flush() throws IOException, SQLException {
+    // taken before the balances, which therefore include every entry up to it
+    long checkpoint = -1;
+    for (Entry head; (head = unsettled.peek()) != null && head.settled; unsettled.poll()) {
+      checkpoint = head.end;
+    }
+    Map<String, Integer> changed = new HashMap<>();
+    for (Map.Entry<String, Account> account : accounts.entrySet()) {
+      synchronized (stripe(account.getKey())) {
+        if (account.getValue().dirty) {
+          account.getValue().dirty = false;
+          changed.put(account.getKey(), account.getValue().balance);
+        }
+      }
+    }
+    try {
+      writeBalances(changed);
+    } catch (SQLException e) {
+      for (String username : changed.keySet()) {
+        synchronized (stripe(username)) {
+          accounts.get(username).dirty = true;
+        }
+      }
+      throw e;
+    }
+    if (checkpoint >= 0) {
+      writeCheckpoint(checkpoint);
+    }
+  }
+
+  private void writeBalances(Map<String, Integer> balances) throws SQLException {
+    if (balances.isEmpty()) {
+      return;
+    }
+    conn.setAutoCommit(false);
+    try (PreparedStatement update = conn.prepareStatement(UPDATE_BALANCE_SQL)) {
+      for (Map.Entry<String, Integer> balance : balances.entrySet()) {
+        update.setInt(1, balance.getValue());
+        update.setString(2, balance.getKey());
+        update.addBatch();
+      }
+      update.executeBatch();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  private void writeCheckpoint(long offset) throws IOException {
+    Path tmp = directory.resolve(CHECKPOINT_FILE + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(ByteBuffer.allocate(8).putLong(offset).flip());
+      channel.force(true);
+    }
+    Files.move(tmp, directory.resolve(CHECKPOINT_FILE), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private long loadCheckpoint() throws IOException {
+    Path checkpoint = directory.resolve(CHECKPOINT_FILE);
+    if (!Files.exists(checkpoint)) {
+      return 0;
+    }
+    return ByteBuffer.wrap(Files.readAllBytes(checkpoint)).getLong();
+  }
+
+  /**
+   * Replay the entries after the checkpoint into Users, reversing pays and refunds whose
+   * reservation change never committed
+   */
+  private void recover() throws IOException, SQLException {
+    Map<String, Integer> balances = new HashMap<>();
+    // unreversed pays and refunds by reservation
+    Map<Integer, Object[]> open = new LinkedHashMap<>();
+    long position = loadCheckpoint();
+    ByteBuffer header = ByteBuffer.allocate(4);
+    while (position + 4 <= log.size()) {
+      header.clear();
+      readFully(header, position);
+      int length = header.getInt();
+      if (length <= 0 || position + 4 + length + 4 > log.size()) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.allocate(length + 4);
+      readFully(body, position + 4);
+      byte[] payload = new byte[length];
+      body.get(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int) crc.getValue() != body.getInt()) {
+        break;
+      }
+      try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+        byte type = in.readByte();
+        String username = in.readUTF();
+        int reservationId = in.readInt();
+        int amount = in.readInt();
+        balances.put(username, in.readInt());
+        if (type == REVERSAL) {
+          open.remove(reservationId);
+        } else {
+          open.put(reservationId, new Object[]{type, username, amount});
+        }
+      }
+      position += 4 + length + 4;
+    }
+    if (position < log.size()) {
+      log.truncate(position);
+    }
+    try (PreparedStatement state = conn.prepareStatement(RESERVATION_STATE_SQL)) {
+      for (Map.Entry<Integer, Object[]> entry : open.entrySet()) {
+        byte type = (byte) entry.getValue()[0];
+        String username = (String) entry.getValue()[1];
+        int amount = (int) entry.getValue()[2];
+        state.setInt(1, entry.getKey());
+        boolean committed;
+        try (ResultSet reservation = state.executeQuery()) {
+          committed = reservation.next() && reservation.getInt(type == PAY ? "paid" : "cancelled") == 1;
+        }
+        if (!committed) {
+          int balance = balances.get(username) - amount;
+          balances.put(username, balance);
+          ByteBuffer record = frame(encode(REVERSAL, username, entry.getKey(), -amount, balance));
+          while (record.hasRemaining()) {
+            log.write(record, log.size());
+          }
+        }
+      }
+    }
+    log.force(false);
+    writeBalances(balances);
+    writeCheckpoint(log.size());
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (log.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+  }
+
+  private static byte[] encode(byte type, String username, int reservationId, int amount, int balance) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(32 + username.length());
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(type);
+      out.writeUTF(username);
+      out.writeInt(reservationId);
+      out.writeInt(amount);
+      out.writeInt(balance);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static ByteBuffer frame(byte[] payload) {
+    CRC32 crc = new CRC32();
+    crc.update(payload);
+    ByteBuffer record = ByteBuffer.allocate(4 + payload.length + 4);
+    record.putInt(payload.length).put(payload).putInt((int) crc.getValue());
+    record.flip();
+    return record;
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (IOException | SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public void close() throws IOException, SQLException {
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    log.close();
+    conn.close();
+  }
+}
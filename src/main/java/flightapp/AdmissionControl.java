@@ -0,0 +1,262 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Supplier;
+
+/**
+ * Admission control in front of the commands that use the database.
+ *
+ * At most {@link #limit} commands run at once. A command arriving when that many are running
+ * waits in the bounded queue of its priority class, and each time one finishes the oldest waiter
+ * of the highest non-empty class is admitted, so under overload payments and bookings keep
+ * running while searches wait. A command is rejected at once when its class queue is full, and
+ * rejected when it has waited {@code max_wait_ms} without being admitted, instead of timing out
+ * later with the work still queued.
+ *
+ * The limit adapts to the latency of admitted commands: every window of samples the average is
+ * compared to the lowest average seen recently, and the limit shrinks by a fifth when latency has
+ * grown past {@code tolerance} times that, or grows by one when the window kept every slot busy.
+ * The lowest average is forgotten every {@link #PROBE_WINDOWS} windows so that a changed
+ * workload is measured again.
+ */
+public final class AdmissionControl {
+  /**
+   * Priority classes, highest first
+   */
+  public enum Priority {
+    PAY, BOOK, CANCEL, ACCOUNT, RESERVATIONS, SEARCH;
+
+    /**
+     * The class of a command, or null for commands that do not use the database
+     */
+    public static Priority of(String command) {
+      switch (command) {
+        case "pay":
+          return PAY;
+        case "book":
+        case "book_group":
+          return BOOK;
+        case "cancel":
+          return CANCEL;
+        case "login":
+        case "create":
+          return ACCOUNT;
+        case "reservations":
+          return RESERVATIONS;
+        case "search":
+        case "search_range":
+          return SEARCH;
+        default:
+          return null;
+      }
+    }
+  }
+
+  /**
+   * Permission to run one command; {@link #release} it when the command finishes
+   */
+  public final class Ticket {
+    private final long admittedNanos = System.nanoTime();
+    private boolean released;
+
+    private Ticket() {
+    }
+
+    public void release() {
+      AdmissionControl.this.release(this);
+    }
+  }
+
+  private static final class Waiter {
+    final CompletableFuture<Ticket> admitted = new CompletableFuture<>();
+    final Priority priority;
+
+    Waiter(Priority priority) {
+      this.priority = priority;
+    }
+  }
+
+  private static final int MIN_WINDOW = 16;
+  private static final int PROBE_WINDOWS = 20;
+
+  private static AdmissionControl instance;
+
+  private final int minLimit;
+  private final int maxLimit;
+  private final int queueSize;
+  private final long maxWaitMillis;
+  private final double tolerance;
+  private final List<Deque<Waiter>> queues;
+  private final long[] admittedCount = new long[Priority.values().length];
+  private final long[] rejectedCount = new long[Priority.values().length];
+
+  private int limit;
+  private int running;
+  // the current window of latency samples
+  private int samples;
+  private long sampleNanos;
+  private int peakRunning;
+  private long baselineNanos;
+  private int windows;
+
+  AdmissionControl(int initialLimit, int minLimit, int maxLimit, int queueSize, long maxWaitMillis,
+                   double tolerance) {
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.queueSize = queueSize;
+    this.maxWaitMillis = maxWaitMillis;
+    this.tolerance = tolerance;
+    this.queues = new ArrayList<>(Priority.values().length);
+    for (int i = 0; i < Priority.values().length; i++) {
+      queues.add(new ArrayDeque<>());
+    }
+  }
+
+  /**
+   * The shared admission control, or null unless {@code flightapp.admission} is set
+   */
+  static AdmissionControl get() {
+    synchronized (AdmissionControl.class) {
+      AppConfig config = AppConfig.get();
+      if (instance == null && config.getBoolean("flightapp.admission", false)) {
+        instance = new AdmissionControl(config.getInt("flightapp.admission.limit", 8),
+                config.getInt("flightapp.admission.min_limit", 1), config.getInt("flightapp.admission.max_limit", 64),
+                config.getInt("flightapp.admission.queue", 256), config.getLong("flightapp.admission.max_wait_ms", 1000),
+                config.getDouble("flightapp.admission.tolerance", 2.0));
+      }
+      return instance;
+    }
+  }
+
+  /**
+   * Ask to run a command of class {@code priority}
+   *
+   * @return a future completing with the ticket once admitted, or with a
+   * {@link RejectedExecutionException} if the command is shed
+   */
+  public CompletableFuture<Ticket> admit(Priority priority) {
+    Waiter waiter = new Waiter(priority);
+    synchronized (this) {
+      if (running < limit && waiting(priority.ordinal()) == 0) {
+        return CompletableFuture.completedFuture(grant(priority));
+      }
+      Deque<Waiter> queue = queues.get(priority.ordinal());
+      if (queue.size() >= queueSize) {
+        rejectedCount[priority.ordinal()]++;
+        return CompletableFuture.failedFuture(new RejectedExecutionException(priority + " queue is full"));
+      }
+      queue.addLast(waiter);
+    }
+    CompletableFuture.delayedExecutor(maxWaitMillis, TimeUnit.MILLISECONDS).execute(() -> shed(waiter));
+    return waiter.admitted;
+  }
+
+  /**
+   * Run {@code command} once admitted, on the calling thread
+   *
+   * @throws RejectedExecutionException if it is shed
+   */
+  public <T> T call(Priority priority, Supplier<T> command) {
+    Ticket ticket;
+    try {
+      ticket = admit(priority).join();
+    } catch (CompletionException e) {
+      throw (RejectedExecutionException) e.getCause();
+    }
+    try {
+      return command.get();
+    } finally {
+      ticket.release();
+    }
+  }
+
+  // waiters in classes at or above this one
+  private int waiting(int ordinal) {
+    int waiting = 0;
+    for (int i = 0; i <= ordinal; i++) {
+      waiting += queues.get(i).size();
+    }
+    return waiting;
+  }
+
+  private Ticket grant(Priority priority) {
+    running++;
+    peakRunning = Math.max(peakRunning, running);
+    admittedCount[priority.ordinal()]++;
+    return new Ticket();
+  }
+
+  private void shed(Waiter waiter) {
+    synchronized (this) {
+      if (!queues.get(waiter.priority.ordinal()).remove(waiter)) {
+        // admitted meanwhile
+        return;
+      }
+      rejectedCount[waiter.priority.ordinal()]++;
+    }
+    waiter.admitted.completeExceptionally(new RejectedExecutionException(
+            waiter.priority + " not admitted within " + maxWaitMillis + " ms"));
+  }
+
+  private void release(Ticket ticket) {
+    List<Waiter> admitted = new ArrayList<>();
+    List<Ticket> tickets = new ArrayList<>();
+    synchronized (this) {
+      if (ticket.released) {
+        return;
+      }
+      ticket.released = true;
+      running--;
+      sample(System.nanoTime() - ticket.admittedNanos);
+      for (int i = 0; i < queues.size() && running < limit; i++) {
+        Waiter waiter;
+        while (running < limit && (waiter = queues.get(i).pollFirst()) != null) {
+          admitted.add(waiter);
+          tickets.add(grant(waiter.priority));
+        }
+      }
+    }
+    // admitted commands may run on this thread, so not under the lock
+    for (int i = 0; i < admitted.size(); i++) {
+      admitted.get(i).admitted.complete(tickets.get(i));
+    }
+  }
+
+  private void sample(long latencyNanos) {
+    samples++;
+    sampleNanos += latencyNanos;
+    if (samples < Math.max(MIN_WINDOW, limit)) {
+      return;
+    }
+    long average = sampleNanos / samples;
+    if (++windows % PROBE_WINDOWS == 0 || baselineNanos == 0 || average < baselineNanos) {
+      baselineNanos = average;
+    }
+    if (average > tolerance * baselineNanos) {
+      limit = Math.max(minLimit, limit - Math.max(1, limit / 5));
+    } else if (peakRunning >= limit) {
+      limit = Math.min(maxLimit, limit + 1);
+    }
+    samples = 0;
+    sampleNanos = 0;
+    peakRunning = running;
+  }
+
+  public synchronized int limit() {
+    return limit;
+  }
+
+  public synchronized int running() {
+    return running;
+  }
+
+  public synchronized long admitted(Priority priority) {
+    return admittedCount[priority.ordinal()];
+  }
+
+  public synchronized long rejected(Priority priority) {
+    return rejectedCount[priority.ordinal()];
+  }
+}
@@ -0,0 +1,62 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Optional application settings, read once from dbconn.properties.
+ *
+ * Every setting has a default so a properties file holding only the connection credentials keeps
+ * the original single-connection behaviour.
+ */
+public class AppConfig {
+  private static final String CONFIG_FILE = "dbconn.properties";
+  private static AppConfig instance;
+
+  private final Properties props;
+
+  AppConfig(Properties props) {
+    this.props = props;
+  }
+
+  /**
+   * Return the process-wide configuration, loading it on first use
+   */
+  public static synchronized AppConfig get() {
+    if (instance == null) {
+      Properties props = new Properties();
+      try (FileInputStream in = new FileInputStream(CONFIG_FILE)) {
+        props.load(in);
+      } catch (IOException e) {
+        // No config file means defaults everywhere
+      }
+      instance = new AppConfig(props);
+    }
+    return instance;
+  }
+
+  public String getString(String key, String defaultValue) {
+    String value = props.getProperty(key);
+    return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+  }
+
+  public int getInt(String key, int defaultValue) {
+    String value = getString(key, null);
+    return value == null ? defaultValue : Integer.parseInt(value);
+  }
+
+  public long getLong(String key, long defaultValue) {
+    String value = getString(key, null);
+    return value == null ? defaultValue : Long.parseLong(value);
+  }
+
+  public double getDouble(String key, double defaultValue) {
+    String value = getString(key, null);
+    return value == null ? defaultValue : Double.parseDouble(value);
+  }
+
+  public boolean getBoolean(String key, boolean defaultValue) {
+    String value = getString(key, null);
+    return value == null ? defaultValue : Boolean.parseBoolean(value);
+  }
+}
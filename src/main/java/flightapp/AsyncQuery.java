@@ -0,0 +1,326 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Non-blocking front end to {@link Query}.
+ *
+ * An AsyncQuery is one user session: it only holds the session state (logged in user, last search
+ * results), so a server can keep thousands of them. Operations run on a small shared, bounded
+ * executor whose threads each own a pooled Query and connection, and different sessions proceed
+ * in parallel.
+ *
+ * Within a session, each operation declares which parts of the session it reads and writes: the
+ * logged in user, the search results, the user's reservations and the set of customers. An
+ * operation waits for every earlier one that writes a part it touches, and a write also waits for
+ * earlier reads of that part, so dependent operations (book after search, pay after login) run in
+ * submission order while independent ones (a search and a pay) may run at the same time. Each
+ * operation only writes back the parts it declared.
+ *
+ * Every returned future times out after {@code flightapp.async.timeout_ms}. Callers may also
+ * {@code cancel} it or apply a shorter {@code orTimeout}. An operation whose future is already
+ * done when its turn comes is skipped; one that is already running finishes in the background and
+ * its result is dropped. When the executor queue is full the future fails immediately with a
+ * {@link RejectedExecutionException}.
+ *
+ * With {@code flightapp.admission} set, each operation must also be admitted by the
+ * {@link AdmissionControl} once its turn in the session comes, and fails with a
+ * {@link RejectedExecutionException} if it is shed.
+ *
+ * With {@code flightapp.sessions.offload_idle_ms} set, idle sessions are moved out of the heap by
+ * the {@link SessionManager} and read back by their next operation.
+ */
+public class AsyncQuery {
+  /**
+   * One operation against a pooled Query
+   */
+  private interface Operation<T> {
+    QueryResult<T> apply(Query query) throws SQLException;
+  }
+
+  // parts of a session an operation can read or write
+  private static final int USER = 1;
+  private static final int RESULTS = 2;
+  private static final int RESERVATIONS = 4;
+  private static final int CUSTOMERS = 8;
+  private static final int PARTS = 4;
+
+  /**
+   * An unfinished operation and the parts it reads that have not been written since
+   */
+  private static class Reader {
+    final CompletableFuture<Void> done;
+    int parts;
+
+    Reader(CompletableFuture<Void> done, int parts) {
+      this.done = done;
+      this.parts = parts;
+    }
+  }
+
+  private static ThreadPoolExecutor executor;
+  private static final Queue<Query> idleQueries = new ConcurrentLinkedQueue<>();
+  private static final List<Query> allQueries = new CopyOnWriteArrayList<>();
+
+  private static final AtomicLong nextId = new AtomicLong();
+
+  private final long id = nextId.incrementAndGet();
+  private final long timeoutMillis;
+  private final SessionManager sessionManager = SessionManager.get();
+  private final AdmissionControl admission = AdmissionControl.get();
+  // null while offloaded by the session manager
+  private volatile Query.Session session = new Query.Session();
+  private volatile long lastUsed = System.nanoTime();
+  // completion of the last operation writing each part, and of later readers
+  private final List<CompletableFuture<Void>> lastWrites =
+          new ArrayList<>(Collections.nCopies(PARTS, CompletableFuture.completedFuture(null)));
+  private final List<Reader> readers = new ArrayList<>();
+  private int inFlight;
+
+  public AsyncQuery() {
+    this(AppConfig.get().getLong("flightapp.async.timeout_ms", 30000));
+  }
+
+  /**
+   * @param timeoutMillis default timeout for each operation, 0 for none
+   */
+  public AsyncQuery(long timeoutMillis) {
+    this.timeoutMillis = timeoutMillis;
+    executor();
+    if (sessionManager != null) {
+      sessionManager.register(this, id);
+    }
+  }
+
+  public CompletableFuture<QueryResult<String>> loginAsync(String username, String password) {
+    return submit(CUSTOMERS, USER, AdmissionControl.Priority.ACCOUNT, q -> q.login(username, password));
+  }
+
+  public CompletableFuture<QueryResult<String>> createCustomerAsync(String username, String password,
+                                                                   int initAmount) {
+    return submit(0, CUSTOMERS, AdmissionControl.Priority.ACCOUNT, q -> q.createCustomer(username, password, initAmount));
+  }
+
+  public CompletableFuture<QueryResult<List<Query.Itinerary>>> searchAsync(String originCity,
+          String destinationCity, boolean directFlight, int dayOfMonth, int numberOfItineraries) {
+    return submit(0, RESULTS, AdmissionControl.Priority.SEARCH, q -> q.search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries));
+  }
+
+  public CompletableFuture<QueryResult<List<Query.Itinerary>>> searchRangeAsync(String originCity,
+          String destinationCity, boolean directFlight, int firstDay, int lastDay, int numberOfItineraries) {
+    return submit(0, RESULTS, AdmissionControl.Priority.SEARCH, q -> q.searchRange(originCity, destinationCity, directFlight, firstDay, lastDay,
+            numberOfItineraries));
+  }
+
+  public CompletableFuture<QueryResult<Integer>> bookAsync(int itineraryId) {
+    return submit(USER | RESULTS, RESERVATIONS, AdmissionControl.Priority.BOOK, q -> q.book(itineraryId));
+  }
+
+  public CompletableFuture<QueryResult<List<Integer>>> bookGroupAsync(List<Integer> itineraryIds) {
+    List<Integer> ids = new ArrayList<>(itineraryIds);
+    return submit(USER | RESULTS, RESERVATIONS, AdmissionControl.Priority.BOOK, q -> q.bookGroup(ids));
+  }
+
+  public CompletableFuture<QueryResult<Integer>> payAsync(int reservationId) {
+    return submit(USER, RESERVATIONS, AdmissionControl.Priority.PAY, q -> q.pay(reservationId));
+  }
+
+  public CompletableFuture<QueryResult<Void>> reservationsAsync() {
+    return submit(USER | RESERVATIONS, 0, AdmissionControl.Priority.RESERVATIONS, Query::reservations);
+  }
+
+  public CompletableFuture<QueryResult<Void>> cancelAsync(int reservationId) {
+    return submit(USER, RESERVATIONS, AdmissionControl.Priority.CANCEL, q -> q.cancel(reservationId));
+  }
+
+  private synchronized <T> CompletableFuture<QueryResult<T>> submit(int reads, int writes,
+          AdmissionControl.Priority priority, Operation<T> operation) {
+    lastUsed = System.nanoTime();
+    CompletableFuture<QueryResult<T>> result = new CompletableFuture<>();
+    // completes when the operation has really finished, so dependent ones see its session state
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    Tracer.Span trace = Tracer.current();
+    inFlight++;
+    // admitted only once its turn in the session comes, so priorities never reorder a session
+    after(reads, writes, done).thenCompose(ignored -> admission != null ? admission.admit(priority)
+            : CompletableFuture.completedFuture(null)).whenComplete((ticket, error) -> {
+      if (error != null) {
+        result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+        finished(done);
+        return;
+      }
+      try {
+        executor().execute(() -> run(operation, writes, result, done, trace, ticket));
+      } catch (RejectedExecutionException e) {
+        result.completeExceptionally(e);
+        if (ticket != null) {
+          ticket.release();
+        }
+        finished(done);
+      }
+    });
+    return timeoutMillis > 0 ? result.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS) : result;
+  }
+
+  /**
+   * Completes once every earlier operation that this one depends on has finished, and records
+   * {@code done} as the latest reader or writer of its parts
+   */
+  private CompletableFuture<Void> after(int reads, int writes, CompletableFuture<Void> done) {
+    List<CompletableFuture<Void>> waits = new ArrayList<>();
+    for (int part = 0; part < PARTS; part++) {
+      if (((reads | writes) & (1 << part)) != 0) {
+        waits.add(lastWrites.get(part));
+      }
+      if ((writes & (1 << part)) != 0) {
+        lastWrites.set(part, done);
+      }
+    }
+    Iterator<Reader> it = readers.iterator();
+    while (it.hasNext()) {
+      Reader reader = it.next();
+      if (reader.done.isDone()) {
+        it.remove();
+      } else if ((reader.parts & writes) != 0) {
+        waits.add(reader.done);
+        reader.parts &= ~writes;
+        if (reader.parts == 0) {
+          it.remove();
+        }
+      }
+    }
+    if ((reads & ~writes) != 0) {
+      readers.add(new Reader(done, reads & ~writes));
+    }
+    return CompletableFuture.allOf(waits.toArray(new CompletableFuture<?>[0]));
+  }
+
+  private <T> void run(Operation<T> operation, int writes, CompletableFuture<QueryResult<T>> result,
+                       CompletableFuture<Void> done, Tracer.Span trace, AdmissionControl.Ticket ticket) {
+    try {
+      if (result.isDone()) {
+        // cancelled or timed out while queued
+        return;
+      }
+      Query query = borrow();
+      // the time spent queued is the trace's root span minus this one
+      Tracer.Span span = Tracer.startChild(trace, "run");
+      QueryResult<T> outcome;
+      try {
+        query.restoreSession(currentSession());
+        outcome = operation.apply(query);
+        saveSession(query.saveSession(), writes);
+      } finally {
+        Tracer.end(span);
+        idleQueries.offer(query);
+      }
+      result.complete(outcome);
+    } catch (Exception e) {
+      result.completeExceptionally(e);
+    } finally {
+      if (ticket != null) {
+        ticket.release();
+      }
+      finished(done);
+    }
+  }
+
+  private synchronized Query.Session currentSession() {
+    if (session == null) {
+      session = sessionManager.rehydrate(id);
+    }
+    return session;
+  }
+
+  /**
+   * Keep the parts of {@code saved} that the operation writes; operations running alongside it
+   * own the rest
+   */
+  private synchronized void saveSession(Query.Session saved, int writes) {
+    Query.Session merged = new Query.Session();
+    Query.Session current = session;
+    merged.currentUser = (writes & USER) != 0 ? saved.currentUser : current.currentUser;
+    if ((writes & RESULTS) != 0) {
+      merged.itineraries = saved.itineraries;
+      merged.searchFids = saved.searchFids;
+    } else {
+      merged.itineraries = current.itineraries;
+      merged.searchFids = current.searchFids;
+    }
+    session = merged;
+  }
+
+  private void finished(CompletableFuture<Void> done) {
+    synchronized (this) {
+      inFlight--;
+    }
+    // starts dependent operations, so not under the lock
+    done.complete(null);
+  }
+
+  /**
+   * Hand this session's state to the session manager if no operation is pending and it has been
+   * idle for {@code idleNanos}
+   */
+  synchronized void offloadIfIdle(SessionManager manager, long now, long idleNanos) {
+    if (session != null && inFlight == 0 && now - lastUsed > idleNanos && manager.offload(id, session)) {
+      session = null;
+    }
+  }
+
+  /**
+   * At most one Query per executor thread is ever created
+   */
+  private static Query borrow() throws SQLException, IOException {
+    Query query = idleQueries.poll();
+    if (query == null) {
+      query = new Query();
+      allQueries.add(query);
+    }
+    return query;
+  }
+
+  private static ThreadPoolExecutor executor() {
+    synchronized (AsyncQuery.class) {
+      if (executor == null) {
+        AppConfig config = AppConfig.get();
+        int threads = config.getInt("flightapp.async.threads", 8);
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(config.getInt("flightapp.async.queue", 1024)), r -> {
+                  Thread t = new Thread(r, "async-query");
+                  t.setDaemon(true);
+                  return t;
+                });
+      }
+      return executor;
+    }
+  }
+
+  /**
+   * Stop the shared executor and close the pooled connections
+   */
+  public static void shutdown() throws InterruptedException {
+    ThreadPoolExecutor stopping;
+    synchronized (AsyncQuery.class) {
+      stopping = executor;
+      executor = null;
+    }
+    if (stopping != null) {
+      stopping.shutdown();
+      stopping.awaitTermination(30, TimeUnit.SECONDS);
+    }
+    for (Query query : allQueries) {
+      try {
+        query.closeConnection();
+      } catch (Exception e) {
+        e.printStackTrace();
+      }
+    }
+    allQueries.clear();
+    idleQueries.clear();
+  }
+}
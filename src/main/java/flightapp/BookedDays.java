@@ -0,0 +1,94 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory copy of each user's booked days, the {@code Users.booked_days} column: bit
+ * {@code day - 1} is set while the user has an active reservation on that day.
+ *
+ * The column is the authority. A booking sets its day's bit with a conditional update, which
+ * fails if the bit is already set, in the same transaction that inserts the reservation; a
+ * cancellation clears it. This copy lets a booking claim its days with one compare-and-set, so a
+ * second booking for the same day in this process is turned away without waiting on the database,
+ * and the conditional update is only issued once the claim succeeds.
+ *
+ * The copy may hold bits the column no longer has, after a rolled back booking or a cancellation
+ * by another process; a claim refused by the copy is checked against the column before the
+ * booking is rejected. It may also miss bits set elsewhere, which the conditional update catches.
+ * Once {@code maxUsers} users are held the copy is cleared and refilled from the column on use.
+ */
+public class BookedDays {
+  /**
+   * Reads a user's mask from the column
+   */
+  public interface MaskLoader {
+    int load() throws SQLException;
+  }
+
+  // every user's mask from their active reservations
+  static final String REBUILD_SQL = "UPDATE U SET booked_days = ISNULL((SELECT SUM(DISTINCT POWER(2, R.dayofmonth - 1)) "
+          + "FROM Reservations AS R WHERE R.username = U.username AND R.cancelled = 0), 0) FROM Users AS U";
+
+  private final ConcurrentHashMap<String, AtomicInteger> masks = new ConcurrentHashMap<>();
+  private final int maxUsers;
+
+  public BookedDays(int maxUsers) {
+    this.maxUsers = maxUsers;
+  }
+
+  /**
+   * The bit of {@code dayOfMonth}, 1 to 31
+   */
+  public static int bit(int dayOfMonth) {
+    return 1 << (dayOfMonth - 1);
+  }
+
+  /**
+   * Set the bits of {@code days} for {@code username} unless any of them is set already
+   *
+   * @param loader reads the column if the user is not held
+   * @return whether they were all clear and are now set
+   */
+  public boolean claim(String username, int days, MaskLoader loader) throws SQLException {
+    AtomicInteger mask = masks.get(username);
+    if (mask == null) {
+      if (masks.size() >= maxUsers) {
+        masks.clear();
+      }
+      int loaded = loader.load();
+      mask = masks.computeIfAbsent(username, k -> new AtomicInteger(loaded));
+    }
+    while (true) {
+      int current = mask.get();
+      if ((current & days) != 0) {
+        return false;
+      }
+      if (mask.compareAndSet(current, current | days)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Clear the bits of {@code days} for {@code username}
+   */
+  public void release(String username, int days) {
+    AtomicInteger mask = masks.get(username);
+    if (mask != null) {
+      mask.getAndUpdate(current -> current & ~days);
+    }
+  }
+
+  /**
+   * Forget {@code username}'s mask, to be read from the column again
+   */
+  public void invalidate(String username) {
+    masks.remove(username);
+  }
+
+  public void clear() {
+    masks.clear();
+  }
+}
@@ -0,0 +1,303 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Books concurrent {@link Query#book} requests together, group-commit style.
+ *
+ * Requests are queued and drained by a single thread in micro-batches of at most
+ * {@code maxBatch} requests, waiting at most {@code maxWaitMicros} after the first one for others
+ * to arrive. For each batch, the seats booked on every flight involved and the reservations
+ * already held on the requested (user, day) pairs are read with one query each. Capacity and the
+ * same-day rule are then applied to the requests in arrival order in memory, and all accepted
+ * reservations are inserted in one batch and one transaction. Each caller gets its own result.
+ *
+ * Since one thread does all the writes, bookings no longer contend with each other for range
+ * locks; a deadlock with other transactions retries the whole batch.
+ */
+public class BookingEngine implements AutoCloseable {
+  private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
+
+  private static final String BOOKED_SEATS_SQL = "SELECT F.fid, F.capacity, "
+          + "(SELECT COUNT(*) FROM Reservations AS R WHERE R.cancelled = 0 AND (R.fid1 = F.fid OR R.fid2 = F.fid)) AS booked "
+          + "FROM Flights AS F WHERE F.fid IN (SELECT CAST(value AS int) FROM STRING_SPLIT(?, ','))";
+
+  // followed by one "(?,?)" row per requested (username, day) pair
+  private static final String SAME_DAY_SQL_FORMAT = "SELECT DISTINCT R.username, R.dayofmonth FROM Reservations AS R "
+          + "JOIN (VALUES %s) AS B(username, dayofmonth) ON R.username = B.username AND R.dayofmonth = B.dayofmonth "
+          + "WHERE R.cancelled = 0";
+
+  private static final String NUM_RESERVATIONS_SQL = "SELECT COUNT(*) AS count FROM Reservations";
+
+  private static final String CREATE_RESERVATION_SQL = "INSERT INTO Reservations "
+          + "(paid, cancelled, username, itineraryId, price, dayofmonth, fid1, fid2) VALUES ((?),(?),(?),(?),(?),(?),(?),(?))";
+
+  private static final int MAX_DEADLOCK_RETRIES = 3;
+
+  /**
+   * One queued booking
+   */
+  private static class Request {
+    final String username;
+    final int itineraryId;
+    final Query.Itinerary itinerary;
+    final CompletableFuture<QueryResult<Integer>> result = new CompletableFuture<>();
+
+    Request(String username, int itineraryId, Query.Itinerary itinerary) {
+      this.username = username;
+      this.itineraryId = itineraryId;
+      this.itinerary = itinerary;
+    }
+
+    String userDay() {
+      return username + "\n" + itinerary.day;
+    }
+  }
+
+  private final Connection conn;
+  private final int maxBatch;
+  private final long maxWaitNanos;
+  private final BlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+  private final Thread drainer;
+  private final PreparedStatement bookedSeatsStatement;
+  private final PreparedStatement numReservationsStatement;
+  private final PreparedStatement createReservationStatement;
+  // same-day queries by number of (username, day) pairs
+  private final Map<Integer, PreparedStatement> sameDayStatements = new HashMap<>();
+  private volatile boolean closed;
+
+  /**
+   * @param conn          connection used only by the engine
+   * @param maxBatch      most requests booked in one transaction
+   * @param maxWaitMicros longest wait for a batch to fill up after its first request
+   */
+  public BookingEngine(Connection conn, int maxBatch, long maxWaitMicros) throws SQLException {
+    this.conn = conn;
+    this.maxBatch = maxBatch;
+    this.maxWaitNanos = TimeUnit.MICROSECONDS.toNanos(maxWaitMicros);
+    bookedSeatsStatement = conn.prepareStatement(BOOKED_SEATS_SQL);
+    numReservationsStatement = conn.prepareStatement(NUM_RESERVATIONS_SQL);
+    createReservationStatement = conn.prepareStatement(CREATE_RESERVATION_SQL);
+    drainer = new Thread(this::drain, "booking-engine");
+    drainer.setDaemon(true);
+    drainer.start();
+  }
+
+  /**
+   * Queue a booking of {@code itinerary} for {@code username}
+   *
+   * @return completes with the same result {@link Query#book} would return
+   */
+  public CompletableFuture<QueryResult<Integer>> book(String username, int itineraryId, Query.Itinerary itinerary) {
+    Request request = new Request(username, itineraryId, itinerary);
+    if (closed) {
+      request.result.complete(QueryResult.failed("Booking failed\n"));
+      return request.result;
+    }
+    queue.add(request);
+    return request.result;
+  }
+
+  private void drain() {
+    List<Request> batch = new ArrayList<>(maxBatch);
+    while (!closed || !queue.isEmpty()) {
+      try {
+        Request first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        long deadline = System.nanoTime() + maxWaitNanos;
+        while (batch.size() < maxBatch) {
+          Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+          if (next == null) {
+            break;
+          }
+          batch.add(next);
+        }
+      } catch (InterruptedException e) {
+        // closing; book what was already taken
+      }
+      if (!batch.isEmpty()) {
+        bookBatch(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  private void bookBatch(List<Request> batch) {
+    Map<Request, QueryResult<Integer>> results;
+    try {
+      results = bookBatch(batch, MAX_DEADLOCK_RETRIES);
+    } catch (SQLException | RuntimeException e) {
+      e.printStackTrace();
+      results = Collections.emptyMap();
+    }
+    for (Request request : batch) {
+      request.result.complete(results.getOrDefault(request, QueryResult.failed("Booking failed\n")));
+    }
+  }
+
+  private Map<Request, QueryResult<Integer>> bookBatch(List<Request> batch, int retries) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      statement.execute(BEGIN_TRANSACTION_SQL);
+    }
+    try {
+      Map<Integer, Integer> remaining = remainingSeats(batch);
+      Set<String> takenDays = takenDays(batch);
+      Map<Request, QueryResult<Integer>> results = new HashMap<>();
+      List<Request> accepted = new ArrayList<>();
+      for (Request request : batch) {
+        Query.Itinerary it = request.itinerary;
+        int fid2 = it.f2 == null ? -1 : it.f2.fid;
+        if (remaining.getOrDefault(it.f1.fid, 0) <= 0 || (fid2 >= 0 && remaining.getOrDefault(fid2, 0) <= 0)) {
+          results.put(request, QueryResult.failed("Booking failed\n"));
+        } else if (!takenDays.add(request.userDay())) {
+          results.put(request, QueryResult.failed("You cannot book two flights in the same day\n"));
+        } else {
+          remaining.merge(it.f1.fid, -1, Integer::sum);
+          if (fid2 >= 0) {
+            remaining.merge(fid2, -1, Integer::sum);
+          }
+          accepted.add(request);
+        }
+      }
+      int firstReservationId = insert(accepted);
+      try (Statement statement = conn.createStatement()) {
+        statement.execute("COMMIT TRANSACTION");
+      }
+      for (int i = 0; i < accepted.size(); i++) {
+        int reservationId = firstReservationId + i;
+        results.put(accepted.get(i),
+                QueryResult.ok("Booked flight(s), reservation ID: " + reservationId + "\n", reservationId));
+      }
+      return results;
+    } catch (SQLException e) {
+      try (Statement statement = conn.createStatement()) {
+        statement.execute("IF @@TRANCOUNT > 0 ROLLBACK TRANSACTION");
+      }
+      if (Query.isDeadLock(e) && retries > 0) {
+        return bookBatch(batch, retries - 1);
+      }
+      throw e;
+    }
+  }
+
+  /**
+   * Seats left on every flight of the batch, by fid
+   */
+  private Map<Integer, Integer> remainingSeats(List<Request> batch) throws SQLException {
+    Set<Integer> fids = new HashSet<>();
+    for (Request request : batch) {
+      fids.add(request.itinerary.f1.fid);
+      if (request.itinerary.f2 != null) {
+        fids.add(request.itinerary.f2.fid);
+      }
+    }
+    StringBuilder list = new StringBuilder();
+    for (int fid : fids) {
+      if (list.length() > 0) {
+        list.append(',');
+      }
+      list.append(fid);
+    }
+    Map<Integer, Integer> remaining = new HashMap<>();
+    bookedSeatsStatement.clearParameters();
+    bookedSeatsStatement.setString(1, list.toString());
+    try (ResultSet seats = bookedSeatsStatement.executeQuery()) {
+      while (seats.next()) {
+        remaining.put(seats.getInt("fid"), seats.getInt("capacity") - seats.getInt("booked"));
+      }
+    }
+    return remaining;
+  }
+
+  /**
+   * The requested (username, day) pairs that already have a reservation
+   */
+  private Set<String> takenDays(List<Request> batch) throws SQLException {
+    Map<String, Request> pairs = new LinkedHashMap<>();
+    for (Request request : batch) {
+      pairs.putIfAbsent(request.userDay(), request);
+    }
+    PreparedStatement statement = sameDayStatement(pairs.size());
+    statement.clearParameters();
+    int index = 1;
+    for (Request request : pairs.values()) {
+      statement.setString(index++, request.username);
+      statement.setInt(index++, request.itinerary.day);
+    }
+    Set<String> taken = new HashSet<>();
+    try (ResultSet results = statement.executeQuery()) {
+      while (results.next()) {
+        taken.add(results.getString("username") + "\n" + results.getInt("dayofmonth"));
+      }
+    }
+    return taken;
+  }
+
+  private PreparedStatement sameDayStatement(int pairs) throws SQLException {
+    PreparedStatement statement = sameDayStatements.get(pairs);
+    if (statement == null) {
+      String rows = String.join(",", Collections.nCopies(pairs, "(?,?)"));
+      statement = conn.prepareStatement(String.format(SAME_DAY_SQL_FORMAT, rows));
+      sameDayStatements.put(pairs, statement);
+    }
+    return statement;
+  }
+
+  /**
+   * Insert the accepted reservations in one batch
+   *
+   * @return the ID of the first one; the others follow consecutively
+   */
+  private int insert(List<Request> accepted) throws SQLException {
+    int firstReservationId;
+    try (ResultSet numRes = numReservationsStatement.executeQuery()) {
+      firstReservationId = numRes.next() ? numRes.getInt("count") + 1 : 1;
+    }
+    if (accepted.isEmpty()) {
+      return firstReservationId;
+    }
+    createReservationStatement.clearParameters();
+    for (Request request : accepted) {
+      Query.Itinerary it = request.itinerary;
+      createReservationStatement.setInt(1, 0);
+      createReservationStatement.setInt(2, 0);
+      createReservationStatement.setString(3, request.username);
+      createReservationStatement.setInt(4, request.itineraryId);
+      createReservationStatement.setInt(5, it.price);
+      createReservationStatement.setInt(6, it.day);
+      createReservationStatement.setInt(7, it.f1.fid);
+      if (it.f2 == null) {
+        createReservationStatement.setNull(8, Types.INTEGER);
+      } else {
+        createReservationStatement.setInt(8, it.f2.fid);
+      }
+      createReservationStatement.addBatch();
+    }
+    createReservationStatement.executeBatch();
+    return firstReservationId;
+  }
+
+  /**
+   * Book everything already queued, then stop
+   */
+  @Override
+  public void close() throws SQLException {
+    closed = true;
+    try {
+      drainer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    // queued while the drainer was stopping
+    Request late;
+    while ((late = queue.poll()) != null) {
+      late.result.complete(QueryResult.failed("Booking failed\n"));
+    }
+    conn.close();
+  }
+}
@@ -0,0 +1,258 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Creates many users at once from a file of {@code username,password,initial amount} lines.
+ *
+ * The file is read in chunks. For each chunk, usernames already in Users are found with one join
+ * against a staged temp table and skipped before any hashing, the remaining passwords are hashed
+ * in parallel on every core, and the rows are inserted with one batch plus one guarded
+ * INSERT ... SELECT in a single transaction. Hashing of the next chunk overlaps with the insert of
+ * the current one.
+ *
+ * Users get the same lowercase names and salted hashes as {@link Query#createCustomer}. Only for the
+ * default SQL persistence on a single (unsharded) database.
+ *
+ * Usage: mvn exec:java -Dexec.mainClass=flightapp.BulkUserLoader
+ * -Dexec.args="users.csv [chunk size]"
+ */
+public class BulkUserLoader implements AutoCloseable {
+  private static final int MAX_USERNAME_LENGTH = 30;
+
+  private static final String CREATE_CANDIDATES_SQL =
+          "CREATE TABLE #BulkCandidates (username varchar(30) PRIMARY KEY)";
+  private static final String STAGE_CANDIDATE_SQL = "INSERT INTO #BulkCandidates VALUES (?)";
+  private static final String EXISTING_CANDIDATES_SQL =
+          "SELECT U.username FROM Users AS U JOIN #BulkCandidates AS C ON C.username = U.username";
+  private static final String CLEAR_CANDIDATES_SQL = "TRUNCATE TABLE #BulkCandidates";
+
+  private static final String CREATE_NEW_USERS_SQL = "CREATE TABLE #BulkUsers ("
+          + "username varchar(30) PRIMARY KEY, hash varchar(32), salt varchar(32), balance int)";
+  private static final String STAGE_USER_SQL = "INSERT INTO #BulkUsers VALUES (?,?,?,?)";
+  // skips users created since the candidate check
+  private static final String INSERT_NEW_USERS_SQL = "INSERT INTO Users (username, hash, salt, balance) "
+          + "SELECT N.username, N.hash, N.salt, N.balance "
+          + "FROM #BulkUsers AS N WHERE NOT EXISTS "
+          + "(SELECT * FROM Users AS U WITH (UPDLOCK, HOLDLOCK) WHERE U.username = N.username)";
+  private static final String CLEAR_NEW_USERS_SQL = "TRUNCATE TABLE #BulkUsers";
+
+  /**
+   * Counts for one load
+   */
+  public static class Result {
+    public long created;
+    public long duplicates;
+    public long rejected;
+    public long elapsedNanos;
+
+    public double usersPerSecond() {
+      return created / (elapsedNanos / 1e9);
+    }
+  }
+
+  private static class NewUser {
+    final String username;
+    final String password;
+    final int balance;
+    String hash;
+    String salt;
+
+    NewUser(String username, String password, int balance) {
+      this.username = username;
+      this.password = password;
+      this.balance = balance;
+    }
+  }
+
+  private final Connection conn;
+  private final int chunkSize;
+  // runs each chunk's parallel hashing, so it uses this pool rather than the common pool
+  private final ForkJoinPool hashers;
+
+  /**
+   * @param conn      connection used for the load; left in auto-commit mode afterwards
+   * @param chunkSize users per batch and transaction
+   */
+  public BulkUserLoader(Connection conn, int chunkSize) {
+    this.conn = conn;
+    this.chunkSize = chunkSize;
+    this.hashers = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Load every user from {@code reader}. Lines that are blank, malformed, have a username longer
+   * than 30 characters or a negative amount are counted as rejected.
+   */
+  public Result load(BufferedReader reader) throws IOException, SQLException, InterruptedException {
+    Result result = new Result();
+    long start = System.nanoTime();
+    try (Statement statement = conn.createStatement()) {
+      statement.execute(CREATE_CANDIDATES_SQL);
+      statement.execute(CREATE_NEW_USERS_SQL);
+    }
+    try {
+      Future<List<NewUser>> hashed = hashNext(reader, result);
+      while (hashed != null) {
+        List<NewUser> ready = get(hashed);
+        hashed = hashNext(reader, result);
+        int created = insert(ready);
+        result.created += created;
+        // taken by someone else since the candidate check
+        result.duplicates += ready.size() - created;
+      }
+    } finally {
+      try (Statement statement = conn.createStatement()) {
+        statement.execute("DROP TABLE #BulkCandidates; DROP TABLE #BulkUsers;");
+      }
+    }
+    result.elapsedNanos = System.nanoTime() - start;
+    return result;
+  }
+
+  /**
+   * Read the next chunk, drop existing users and start hashing the rest in the background
+   *
+   * @return the hashed chunk, or null at the end of the input
+   */
+  private Future<List<NewUser>> hashNext(BufferedReader reader, Result result) throws IOException, SQLException {
+    List<NewUser> chunk = readChunk(reader, result);
+    if (chunk.isEmpty()) {
+      return null;
+    }
+    List<NewUser> fresh = withoutExisting(chunk, result);
+    return hashers.submit(() -> hash(fresh));
+  }
+
+  private List<NewUser> readChunk(BufferedReader reader, Result result) throws IOException {
+    // keep the first occurrence of a username within the chunk
+    Map<String, NewUser> chunk = new LinkedHashMap<>();
+    String line;
+    while (chunk.size() < chunkSize && (line = reader.readLine()) != null) {
+      if (line.trim().isEmpty()) {
+        continue;
+      }
+      String[] fields = line.split(",", 3);
+      try {
+        String username = fields[0].trim().toLowerCase();
+        int balance = Integer.parseInt(fields[2].trim());
+        if (username.isEmpty() || username.length() > MAX_USERNAME_LENGTH || balance < 0) {
+          result.rejected++;
+        } else if (chunk.putIfAbsent(username, new NewUser(username, fields[1], balance)) != null) {
+          result.duplicates++;
+        }
+      } catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+        result.rejected++;
+      }
+    }
+    return new ArrayList<>(chunk.values());
+  }
+
+  /**
+   * Drop the users whose names are already taken, with one set-wise lookup
+   */
+  private List<NewUser> withoutExisting(List<NewUser> chunk, Result result) throws SQLException {
+    Set<String> existing = new HashSet<>();
+    try (PreparedStatement stage = conn.prepareStatement(STAGE_CANDIDATE_SQL);
+         Statement statement = conn.createStatement()) {
+      for (NewUser user : chunk) {
+        stage.setString(1, user.username);
+        stage.addBatch();
+      }
+      stage.executeBatch();
+      try (ResultSet rs = statement.executeQuery(EXISTING_CANDIDATES_SQL)) {
+        while (rs.next()) {
+          existing.add(rs.getString("username"));
+        }
+      }
+      statement.execute(CLEAR_CANDIDATES_SQL);
+    }
+    result.duplicates += existing.size();
+    List<NewUser> fresh = new ArrayList<>(chunk.size() - existing.size());
+    for (NewUser user : chunk) {
+      if (!existing.contains(user.username)) {
+        fresh.add(user);
+      }
+    }
+    return fresh;
+  }
+
+  private List<NewUser> hash(List<NewUser> users) {
+    users.parallelStream().forEach(user -> {
+      String[] key = Query.generateHash(user.password);
+      user.hash = key[0];
+      user.salt = key[1];
+    });
+    return users;
+  }
+
+  /**
+   * Insert one hashed chunk in one transaction
+   *
+   * @return users actually created
+   */
+  private int insert(List<NewUser> users) throws SQLException {
+    if (users.isEmpty()) {
+      return 0;
+    }
+    conn.setAutoCommit(false);
+    try (PreparedStatement stage = conn.prepareStatement(STAGE_USER_SQL);
+         Statement statement = conn.createStatement()) {
+      for (NewUser user : users) {
+        stage.setString(1, user.username);
+        stage.setString(2, user.hash);
+        stage.setString(3, user.salt);
+        stage.setInt(4, user.balance);
+        stage.addBatch();
+      }
+      stage.executeBatch();
+      int created = statement.executeUpdate(INSERT_NEW_USERS_SQL);
+      statement.execute(CLEAR_NEW_USERS_SQL);
+      conn.commit();
+      return created;
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  private static List<NewUser> get(Future<List<NewUser>> hashed) throws SQLException, InterruptedException {
+    try {
+      return hashed.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof SQLException) {
+        throw (SQLException) cause;
+      }
+      throw new IllegalStateException(cause);
+    }
+  }
+
+  @Override
+  public void close() {
+    hashers.shutdownNow();
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: BulkUserLoader <users file> [chunk size]");
+      System.exit(1);
+    }
+    int chunkSize = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    try (Connection conn = Query.openConnectionFromDbConn();
+         BufferedReader reader = Files.newBufferedReader(Paths.get(args[0]), StandardCharsets.UTF_8);
+         BulkUserLoader loader = new BulkUserLoader(conn, chunkSize)) {
+      Result result = loader.load(reader);
+      System.out.printf("created %d users (%d duplicates, %d rejected) in %.1f s, %.0f users/s%n",
+              result.created, result.duplicates, result.rejected, result.elapsedNanos / 1e9,
+              result.usersPerSecond());
+    }
+  }
+}
@@ -0,0 +1,421 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Feed of committed reservation changes, for caches that need to know what to invalidate.
+ *
+ * Write paths {@link #publish} one event per booking, payment or cancellation after it commits.
+ * Events go into a fixed ring buffer: a publisher claims a sequence number with one
+ * compare-and-set, fills in the slot's fields and marks the slot published, so publishing never
+ * takes a lock or allocates. A single dispatcher thread delivers events to the subscribers in
+ * sequence order and forwards local ones to the {@link Transport}, which hands back events
+ * published by other processes through the same ring.
+ *
+ * When the ring is full, events are dropped rather than stalling a commit; subscribers are told
+ * with {@link Subscriber#overflowed} and must then invalidate everything they hold.
+ */
+public class ChangeFeed implements AutoCloseable {
+  public static final byte BOOKED = 1;
+  public static final byte PAID = 2;
+  public static final byte CANCELLED = 3;
+
+  /**
+   * Receives events on the dispatcher thread
+   */
+  public interface Subscriber {
+    /**
+     * @param fid2   the second flight, or -1 for direct itineraries and when not known
+     * @param remote whether the event was published by another process
+     */
+    void changed(byte type, String username, int reservationId, int fid1, int fid2, boolean remote);
+
+    /**
+     * Some events were dropped
+     */
+    default void overflowed() {
+    }
+  }
+
+  /**
+   * Carries events between processes
+   */
+  public interface Transport extends AutoCloseable {
+    /**
+     * Start delivering events from other processes to {@code inbound}
+     */
+    void start(ChangeFeed inbound) throws IOException;
+
+    void send(byte type, String username, int reservationId, int fid1, int fid2) throws IOException;
+
+    /**
+     * Called when the dispatcher has caught up, to send what {@link #send} buffered
+     */
+    void flush() throws IOException;
+
+    @Override
+    void close() throws IOException;
+  }
+
+  private static final byte REMOTE = (byte) 0x80;
+  private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+  private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+  private final int mask;
+  private final byte[] types;
+  private final String[] usernames;
+  private final int[] reservationIds;
+  private final int[] fid1s;
+  private final int[] fid2s;
+  // the sequence number held by each slot once it is published
+  private final AtomicLongArray published;
+  private final AtomicLong claimed = new AtomicLong();
+  private volatile long consumed;
+  private final AtomicBoolean overflow = new AtomicBoolean();
+  private final AtomicLong dropped = new AtomicLong();
+  private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+  private final Transport transport;
+  private final Thread dispatcher;
+  private volatile boolean dispatcherParked;
+  private volatile boolean closed;
+
+  /**
+   * @param ringSize  events buffered between publishers and the dispatcher, rounded up to a power
+   *                  of two
+   * @param transport carries events to and from other processes, or null
+   */
+  public ChangeFeed(int ringSize, Transport transport) throws IOException {
+    int capacity = Integer.highestOneBit(Math.max(2, ringSize) - 1) << 1;
+    mask = capacity - 1;
+    types = new byte[capacity];
+    usernames = new String[capacity];
+    reservationIds = new int[capacity];
+    fid1s = new int[capacity];
+    fid2s = new int[capacity];
+    published = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      published.lazySet(i, -1);
+    }
+    this.transport = transport;
+    dispatcher = new Thread(this::dispatch, "change-feed");
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+    if (transport != null) {
+      transport.start(this);
+    }
+  }
+
+  public void subscribe(Subscriber subscriber) {
+    subscribers.add(subscriber);
+  }
+
+  /**
+   * Publish a committed change
+   *
+   * @return false if the ring was full and the event was dropped
+   */
+  public boolean publish(byte type, String username, int reservationId, int fid1, int fid2) {
+    return offer(type, username, reservationId, fid1, fid2, false);
+  }
+
+  /**
+   * Publish a change received from another process, for transports. Unlike {@link #publish}, this
+   * waits for room in the ring.
+   *
+   * @return false if the feed was closed
+   */
+  public boolean receive(byte type, String username, int reservationId, int fid1, int fid2) {
+    return offer((byte) (type | REMOTE), username, reservationId, fid1, fid2, true);
+  }
+
+  /**
+   * Events dropped because the ring was full
+   */
+  public long droppedCount() {
+    return dropped.get();
+  }
+
+  private boolean offer(byte type, String username, int reservationId, int fid1, int fid2, boolean wait) {
+    long sequence;
+    while (true) {
+      sequence = claimed.get();
+      if (sequence - consumed <= mask) {
+        if (claimed.compareAndSet(sequence, sequence + 1)) {
+          break;
+        }
+      } else if (wait && !closed) {
+        LockSupport.parkNanos(FULL_PARK_NANOS);
+      } else {
+        if (!wait) {
+          dropped.incrementAndGet();
+          overflow.set(true);
+        }
+        return false;
+      }
+    }
+    int slot = (int) sequence & mask;
+    types[slot] = type;
+    usernames[slot] = username;
+    reservationIds[slot] = reservationId;
+    fid1s[slot] = fid1;
+    fid2s[slot] = fid2;
+    // orders the field writes before the dispatcher can see the slot
+    published.set(slot, sequence);
+    if (dispatcherParked) {
+      LockSupport.unpark(dispatcher);
+    }
+    return true;
+  }
+
+  private void dispatch() {
+    long next = 0;
+    boolean unflushed = false;
+    while (true) {
+      if (overflow.getAndSet(false)) {
+        for (Subscriber subscriber : subscribers) {
+          subscriber.overflowed();
+        }
+      }
+      int slot = (int) next & mask;
+      if (published.get(slot) != next) {
+        if (unflushed) {
+          flushTransport();
+          unflushed = false;
+          continue;
+        }
+        if (closed) {
+          return;
+        }
+        dispatcherParked = true;
+        if (published.get(slot) != next && !closed) {
+          LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        dispatcherParked = false;
+        continue;
+      }
+      byte type = types[slot];
+      String username = usernames[slot];
+      int reservationId = reservationIds[slot];
+      int fid1 = fid1s[slot];
+      int fid2 = fid2s[slot];
+      usernames[slot] = null;
+      consumed = ++next;
+      boolean remote = (type & REMOTE) != 0;
+      type &= ~REMOTE;
+      for (Subscriber subscriber : subscribers) {
+        try {
+          subscriber.changed(type, username, reservationId, fid1, fid2, remote);
+        } catch (RuntimeException e) {
+          e.printStackTrace();
+        }
+      }
+      if (transport != null && !remote) {
+        try {
+          transport.send(type, username, reservationId, fid1, fid2);
+          unflushed = true;
+        } catch (IOException e) {
+          e.printStackTrace();
+        }
+      }
+    }
+  }
+
+  private void flushTransport() {
+    try {
+      transport.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * Deliver what was already published, then stop
+   */
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    LockSupport.unpark(dispatcher);
+    try {
+      dispatcher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    if (transport != null) {
+      transport.close();
+    }
+  }
+
+  /**
+   * Transports connecting {@code peers} feeds in this process to each other, standing in for
+   * separate processes in tests and benchmarks
+   */
+  public static Transport[] loopback(int peers) {
+    LoopbackTransport[] transports = new LoopbackTransport[peers];
+    List<LoopbackTransport> all = Collections.unmodifiableList(Arrays.asList(transports));
+    for (int i = 0; i < peers; i++) {
+      transports[i] = new LoopbackTransport(all);
+    }
+    return transports;
+  }
+
+  private static class LoopbackTransport implements Transport {
+    private final List<LoopbackTransport> peers;
+    private volatile ChangeFeed inbound;
+
+    LoopbackTransport(List<LoopbackTransport> peers) {
+      this.peers = peers;
+    }
+
+    @Override
+    public void start(ChangeFeed inbound) {
+      this.inbound = inbound;
+    }
+
+    @Override
+    public void send(byte type, String username, int reservationId, int fid1, int fid2) {
+      for (LoopbackTransport peer : peers) {
+        ChangeFeed feed = peer.inbound;
+        if (peer != this && feed != null) {
+          feed.receive(type, username, reservationId, fid1, fid2);
+        }
+      }
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+      inbound = null;
+    }
+  }
+
+  /**
+   * Shares events with the other processes appending to the same file.
+   *
+   * Each batch of events is appended with one write; every process tails the file from where it
+   * was when it started, every {@code pollMillis}, and skips its own records. Records are
+   * {@code [int length][long origin][byte type][int reservationId][int fid1][int fid2][username]}.
+   * The file only grows; it is truncated by {@link #reset} when the reservation tables are
+   * cleared.
+   */
+  public static class FileTransport implements Transport {
+    private static final int HEADER = 4 + 8 + 1 + 12;
+
+    private final Path file;
+    private final long pollMillis;
+    private final long origin = new Random().nextLong();
+    private final FileChannel out;
+    private ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+    private ScheduledExecutorService poller;
+    private ChangeFeed inbound;
+    private long position;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+
+    public FileTransport(Path file, long pollMillis) throws IOException {
+      this.file = file;
+      this.pollMillis = pollMillis;
+      out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    @Override
+    public void start(ChangeFeed inbound) throws IOException {
+      this.inbound = inbound;
+      position = out.size();
+      poller = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "change-feed-poll");
+        t.setDaemon(true);
+        return t;
+      });
+      poller.scheduleWithFixedDelay(this::poll, pollMillis, pollMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void send(byte type, String username, int reservationId, int fid1, int fid2) throws IOException {
+      byte[] name = username == null ? new byte[0] : username.getBytes(StandardCharsets.UTF_8);
+      int length = HEADER + name.length;
+      if (batch.remaining() < length) {
+        flush();
+        if (batch.capacity() < length) {
+          batch = ByteBuffer.allocate(length);
+        }
+      }
+      batch.putInt(length).putLong(origin).put(type).putInt(reservationId).putInt(fid1).putInt(fid2).put(name);
+    }
+
+    @Override
+    public void flush() throws IOException {
+      batch.flip();
+      while (batch.hasRemaining()) {
+        out.write(batch);
+      }
+      batch.clear();
+    }
+
+    /**
+     * Empty the file, for when the reservation tables are cleared
+     */
+    public synchronized void reset() throws IOException {
+      out.truncate(0);
+      position = 0;
+    }
+
+    private synchronized void poll() {
+      try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+        if (in.size() < position) {
+          // truncated by another process
+          position = 0;
+        }
+        while (in.read(readBuffer, position + readBuffer.position()) > 0) {
+          readBuffer.flip();
+          while (readBuffer.remaining() >= 4 && readBuffer.remaining() >= readBuffer.getInt(readBuffer.position())) {
+            int length = readBuffer.getInt(readBuffer.position());
+            readRecord(length);
+            position += length;
+          }
+          if (readBuffer.remaining() >= 4 && readBuffer.getInt(readBuffer.position()) > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(readBuffer.getInt(readBuffer.position()));
+            larger.put(readBuffer);
+            readBuffer = larger;
+          } else {
+            readBuffer.compact();
+          }
+        }
+        readBuffer.clear();
+      } catch (IOException | RuntimeException e) {
+        e.printStackTrace();
+      }
+    }
+
+    private void readRecord(int length) {
+      readBuffer.getInt();
+      long from = readBuffer.getLong();
+      byte type = readBuffer.get();
+      int reservationId = readBuffer.getInt();
+      int fid1 = readBuffer.getInt();
+      int fid2 = readBuffer.getInt();
+      byte[] name = new byte[length - HEADER];
+      readBuffer.get(name);
+      if (from != origin) {
+        inbound.receive(type, name.length == 0 ? null : new String(name, StandardCharsets.UTF_8), reservationId, fid1, fid2);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (poller != null) {
+        poller.shutdownNow();
+      }
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,101 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * A tokenized command, kept as token offsets into the command string.
+ *
+ * Tokens are runs of non-whitespace or double-quoted strings such as {@code "Seattle WA"}; a quote
+ * without a closing quote starts an ordinary token. One instance is reused for every command a
+ * thread parses, so parsing allocates nothing: strings and ints are only produced for the tokens a
+ * command actually reads.
+ */
+final class CommandLine {
+  private String command;
+  private int[] starts = new int[8];
+  private int[] ends = new int[8];
+  private int size;
+
+  /**
+   * Tokenize {@code command}, ignoring leading and trailing whitespace and control characters
+   */
+  CommandLine parse(String command) {
+    this.command = command;
+    size = 0;
+    int end = command.length();
+    while (end > 0 && command.charAt(end - 1) <= ' ') {
+      end--;
+    }
+    int i = 0;
+    while (i < end && command.charAt(i) <= ' ') {
+      i++;
+    }
+    while (i < end) {
+      char c = command.charAt(i);
+      if (isSpace(c)) {
+        i++;
+        continue;
+      }
+      if (c == '"') {
+        int close = command.indexOf('"', i + 1);
+        if (close >= 0 && close < end) {
+          add(i + 1, close);
+          i = close + 1;
+          continue;
+        }
+      }
+      int start = i;
+      while (i < end && !isSpace(command.charAt(i))) {
+        i++;
+      }
+      add(start, i);
+    }
+    return this;
+  }
+
+  int size() {
+    return size;
+  }
+
+  String get(int index) {
+    return command.substring(starts[index], ends[index]);
+  }
+
+  /**
+   * Decode a token as a decimal int, like {@link Integer#parseInt(String)}
+   */
+  int getInt(int index) {
+    return Integer.parseInt(command, starts[index], ends[index], 10);
+  }
+
+  boolean is(int index, String value) {
+    int length = ends[index] - starts[index];
+    return length == value.length() && command.regionMatches(starts[index], value, 0, length);
+  }
+
+  /**
+   * Same as {@code get(index).hashCode()}
+   */
+  int hash(int index) {
+    int h = 0;
+    for (int i = starts[index]; i < ends[index]; i++) {
+      h = 31 * h + command.charAt(i);
+    }
+    return h;
+  }
+
+  private void add(int start, int end) {
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, 2 * size);
+      ends = Arrays.copyOf(ends, 2 * size);
+    }
+    starts[size] = start;
+    ends[size] = end;
+    size++;
+  }
+
+  // whitespace as matched by \s
+  private static boolean isSpace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+}
@@ -0,0 +1,176 @@
+package flightapp;
+
+import java.io.*;
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A small bounded pool of database connections.
+ *
+ * Connections are opened lazily up to {@code maxSize}; once the pool is full, borrowers wait up to
+ * {@code waitMillis} for another caller to release a connection, or for a broken one to be
+ * dropped so a new one can be opened. A connection that sat idle for a while is checked with
+ * {@link Connection#isValid} before it is handed out again; busy connections are not, so a
+ * borrow costs no round trip to the database.
+ */
+public class ConnectionPool implements AutoCloseable {
+  /**
+   * Opens a new physical connection for the pool
+   */
+  public interface ConnectionFactory {
+    Connection open() throws SQLException, IOException;
+  }
+
+  private static final long DEFAULT_WAIT_MILLIS = 30000;
+  // how often a waiting borrower looks for a slot freed by a dropped connection
+  private static final long RECHECK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+  private static final int VALID_TIMEOUT_SECONDS = 1;
+  // idle time after which a connection is validated before reuse
+  private static final long VALIDATE_AFTER_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+  /**
+   * A released connection and when it was released
+   */
+  private static class Idle {
+    final Connection conn;
+    final long since;
+
+    Idle(Connection conn) {
+      this.conn = conn;
+      this.since = System.nanoTime();
+    }
+  }
+
+  private final ConnectionFactory factory;
+  private final int maxSize;
+  private final long waitMillis;
+  private final BlockingQueue<Idle> idle;
+  private final AtomicInteger opened = new AtomicInteger();
+
+  public ConnectionPool(ConnectionFactory factory, int maxSize) {
+    this(factory, maxSize, DEFAULT_WAIT_MILLIS);
+  }
+
+  public ConnectionPool(ConnectionFactory factory, int maxSize, long waitMillis) {
+    if (maxSize <= 0) {
+      throw new IllegalArgumentException("Pool size must be positive: " + maxSize);
+    }
+    this.factory = factory;
+    this.maxSize = maxSize;
+    this.waitMillis = waitMillis;
+    this.idle = new ArrayBlockingQueue<>(maxSize);
+  }
+
+  public int maxSize() {
+    return maxSize;
+  }
+
+  /**
+   * Take a connection from the pool, opening a new one if the pool has not reached its limit
+   *
+   * @throws SQLException if none could be had within the pool's wait time
+   */
+  public Connection borrow() throws SQLException {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+    while (true) {
+      Connection conn = usable(idle.poll());
+      if (conn != null) {
+        return conn;
+      }
+      int current = opened.get();
+      if (current < maxSize) {
+        if (opened.compareAndSet(current, current + 1)) {
+          try {
+            return factory.open();
+          } catch (SQLException | IOException | RuntimeException e) {
+            opened.decrementAndGet();
+            throw e instanceof SQLException ? (SQLException) e : new SQLException("Failed to open connection", e);
+          }
+        }
+        continue;
+      }
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        throw new SQLException("Timed out after " + waitMillis + " ms waiting for a connection");
+      }
+      try {
+        conn = usable(idle.poll(Math.min(remaining, RECHECK_NANOS), TimeUnit.NANOSECONDS));
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new SQLException("Interrupted while waiting for a connection", e);
+      }
+      if (conn != null) {
+        return conn;
+      }
+    }
+  }
+
+  /**
+   * The connection of an idle entry, or null if there is none or it turned out to be broken, in
+   * which case it is dropped so a fresh one can be opened
+   */
+  private Connection usable(Idle entry) {
+    if (entry == null) {
+      return null;
+    }
+    if (System.nanoTime() - entry.since < VALIDATE_AFTER_NANOS) {
+      return entry.conn;
+    }
+    try {
+      if (entry.conn.isValid(VALID_TIMEOUT_SECONDS)) {
+        return entry.conn;
+      }
+    } catch (SQLException e) {
+      // dropped below
+    }
+    closeQuietly(entry.conn);
+    opened.decrementAndGet();
+    return null;
+  }
+
+  /**
+   * Return a borrowed connection. Closed connections, and those whose transaction cannot be rolled
+   * back, are dropped so a fresh one can be opened.
+   */
+  public void release(Connection conn) {
+    if (conn == null) {
+      return;
+    }
+    try {
+      if (conn.isClosed()) {
+        opened.decrementAndGet();
+        return;
+      }
+      if (!conn.getAutoCommit()) {
+        conn.rollback();
+        conn.setAutoCommit(true);
+      }
+    } catch (SQLException e) {
+      closeQuietly(conn);
+      opened.decrementAndGet();
+      return;
+    }
+    if (!idle.offer(new Idle(conn))) {
+      closeQuietly(conn);
+      opened.decrementAndGet();
+    }
+  }
+
+  @Override
+  public void close() {
+    Idle entry;
+    while ((entry = idle.poll()) != null) {
+      closeQuietly(entry.conn);
+      opened.decrementAndGet();
+    }
+  }
+
+  private static void closeQuietly(Connection conn) {
+    try {
+      conn.close();
+    } catch (SQLException e) {
+      e.printStackTrace();
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package flightapp;
+
+import java.sql.*;
+
+/**
+ * Maps the flight columns of a result set row to a {@link Query.Flight} by column index.
+ *
+ * Column indexes are looked up by label once per statement, the first time one of its rows is
+ * mapped, rather than once per field per row. When a {@link FlightStore} is given, a row whose
+ * flight is already cached maps to the cached object after reading only its fid, so repeated
+ * searches allocate no flights or strings. Not thread-safe.
+ */
+final class FlightMapper {
+  private static final String[] FLIGHT = {"fid", "day_of_month", "carrier_id", "flight_num", "origin_city",
+          "dest_city", "actual_time", "capacity", "price"};
+  // legs of an INDIRECT_FLIGHTS row; the second leg shares the day and connecting city of the first
+  private static final String[] FIRST_LEG = {"Ffid", "Fday_of_month", "Fcarrier_id", "Fflight_num", "Forigin_city",
+          "Fdest_city", "Factual_time", "Fcapacity", "Fprice"};
+  private static final String[] SECOND_LEG = {"F2fid", "Fday_of_month", "F2carrier_id", "F2flight_num", "Fdest_city",
+          "F2dest_city", "F2actual_time", "F2capacity", "F2price"};
+
+  private static final int MAX_FETCH_SIZE = 1000;
+
+  private final String[] labels;
+  private final int[] columns;
+  private Object resolvedFor;
+
+  private FlightMapper(String[] labels) {
+    this.labels = labels;
+    this.columns = new int[labels.length];
+  }
+
+  /**
+   * Mapper for rows of the Flights table, such as DIRECT_FLIGHTS and SEARCH_FLIGHT_SQL
+   */
+  static FlightMapper flight() {
+    return new FlightMapper(FLIGHT);
+  }
+
+  static FlightMapper firstLeg() {
+    return new FlightMapper(FIRST_LEG);
+  }
+
+  static FlightMapper secondLeg() {
+    return new FlightMapper(SECOND_LEG);
+  }
+
+  /**
+   * Map the current row of {@code results}
+   *
+   * @param store cache of flights to return instead of new ones, or null
+   */
+  Query.Flight map(ResultSet results, FlightStore store) throws SQLException {
+    // result sets without a statement are resolved once each
+    Statement statement = results.getStatement();
+    Object source = statement != null ? statement : results;
+    if (source != resolvedFor) {
+      for (int i = 0; i < labels.length; i++) {
+        columns[i] = results.findColumn(labels[i]);
+      }
+      resolvedFor = source;
+    }
+    int fid = results.getInt(columns[0]);
+    if (store != null) {
+      Query.Flight cached = store.cached(fid);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    Query.Flight flight = new Query.Flight();
+    flight.fid = fid;
+    flight.dayOfMonth = results.getInt(columns[1]);
+    flight.carrierId = results.getString(columns[2]);
+    flight.flightNum = results.getString(columns[3]);
+    flight.originCity = results.getString(columns[4]);
+    flight.destCity = results.getString(columns[5]);
+    flight.time = results.getInt(columns[6]);
+    flight.capacity = results.getInt(columns[7]);
+    flight.price = results.getInt(columns[8]);
+    return store == null ? flight : store.intern(flight);
+  }
+
+  /**
+   * Fetch a {@code TOP (rows)} query's rows in one round trip, up to a limit
+   */
+  static void fetchSize(Statement statement, int rows) throws SQLException {
+    statement.setFetchSize(Math.max(1, Math.min(rows, MAX_FETCH_SIZE)));
+  }
+}
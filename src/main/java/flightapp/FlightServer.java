@@ -0,0 +1,119 @@
+package flightapp;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * TCP front end with a pipelined protocol; each connection is one {@link AsyncQuery} session.
+ *
+ * A client sends one command per line, prefixed with a request ID of its choosing, for example
+ * {@code 7 search "Seattle WA" "Boston MA" 1 14 10}, and may send more commands without waiting
+ * for replies. Each reply is a header line holding the request ID and the length in bytes of the
+ * UTF-8 response that follows, e.g. {@code 7 412}; the response is the text the REPL would print.
+ * Replies are written as commands complete, so they may come back out of order: the session runs
+ * dependent commands (book after search) in order and independent ones concurrently.
+ *
+ * {@code quit} is answered once every earlier command has been answered, and closes the
+ * connection.
+ *
+ * Usage: mvn exec:java -Dexec.mainClass=flightapp.FlightServer [-Dexec.args="port"]
+ */
+public class FlightServer implements AutoCloseable {
+  private final ServerSocket serverSocket;
+
+  public FlightServer(int port) throws IOException {
+    serverSocket = new ServerSocket(port);
+  }
+
+  public int port() {
+    return serverSocket.getLocalPort();
+  }
+
+  /**
+   * Accept connections until the server is closed, serving each on its own thread
+   */
+  public void serve() throws IOException {
+    while (!serverSocket.isClosed()) {
+      Socket socket;
+      try {
+        socket = serverSocket.accept();
+      } catch (SocketException e) {
+        // closed
+        return;
+      }
+      Thread t = new Thread(() -> handle(socket), "flight-server-" + socket.getRemoteSocketAddress());
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  private void handle(Socket socket) {
+    AsyncQuery session = new AsyncQuery();
+    List<CompletableFuture<Void>> pending = new ArrayList<>();
+    try (Socket s = socket;
+         BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+         OutputStream out = new BufferedOutputStream(s.getOutputStream())) {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty()) {
+          continue;
+        }
+        int space = line.indexOf(' ');
+        String requestId = space < 0 ? line : line.substring(0, space);
+        String command = space < 0 ? "" : line.substring(space + 1);
+
+        CompletableFuture<String> response = FlightService.executeAsync(session, command);
+        if ("Goodbye\n".equals(response.getNow(null))) {
+          CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+          reply(out, requestId, "Goodbye\n");
+          return;
+        }
+        pending.removeIf(CompletableFuture::isDone);
+        pending.add(response.thenAccept(text -> reply(out, requestId, text)));
+      }
+      CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+    } catch (IOException e) {
+      // client went away; operations still running finish in the background
+    }
+  }
+
+  private static void reply(OutputStream out, String requestId, String text) {
+    byte[] body = text.getBytes(StandardCharsets.UTF_8);
+    synchronized (out) {
+      try {
+        out.write((requestId + " " + body.length + "\n").getBytes(StandardCharsets.UTF_8));
+        out.write(body);
+        out.flush();
+      } catch (IOException e) {
+        // client went away
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    serverSocket.close();
+  }
+
+  public static void main(String[] args) throws Exception {
+    int port = args.length > 0 ? Integer.parseInt(args[0])
+            : AppConfig.get().getInt("flightapp.server.port", 7070);
+    // before listening, so no client waits on a cold instance
+    long begin = System.nanoTime();
+    int searches = Query.prewarm();
+    if (searches > 0) {
+      System.out.printf("Pre-warmed with %d searches in %d ms%n", searches,
+              TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+    }
+    try (FlightServer server = new FlightServer(port)) {
+      System.out.println("Listening on port " + server.port());
+      server.serve();
+    } finally {
+      AsyncQuery.shutdown();
+    }
+  }
+}
@@ -2,7 +2,7 @@ package flightapp;
 
 import java.io.*;
 import java.util.*;
-import java.util.regex.*;
+import java.util.concurrent.*;
 import java.sql.*;
 
 public class FlightService {
@@ -11,102 +11,310 @@ public class FlightService {
    * Execute the specified command on the database query connection
    */
   public static String execute(Query q, String command) {
-    String[] tokens = tokenize(command.trim());
-    String response;
+    return execute(q, command, null);
+  }
+
+  /**
+   * Execute the specified command, writing search results to {@code progress} as they are found
+   * when it is not null. Anything already written is not part of the returned response.
+   */
+  public static String execute(Query q, String command, PrintStream progress) {
+    CommandLine args = parse(command);
 
     // empty input
-    if (tokens.length == 0) {
-      response = "Please enter a command";
-    }
-
-    // login
-    else if (tokens[0].equals("login")) {
-      if (tokens.length == 3) {
-        String username = tokens[1];
-        String password = tokens[2];
-        response = q.transaction_login(username, password);
-      } else {
-        response = "Error: Please provide a username and password";
-      }
+    if (args.size() == 0) {
+      return "Please enter a command";
     }
-
-    // create
-    else if (tokens[0].equals("create")) {
-      if (tokens.length == 4) {
-        String username = tokens[1];
-        String password = tokens[2];
-        int initAmount = Integer.parseInt(tokens[3]);
-        response = q.transaction_createCustomer(username, password, initAmount);
-      } else {
-        response = "Error: Please provide a username, password, and initial amount in the account";
+    Entry entry = lookup(args);
+    if (entry == null) {
+      return "Error: unrecognized command '" + args.get(0) + "'";
+    }
+    if (args.size() < entry.minTokens || args.size() > entry.maxTokens) {
+      return entry.usage;
+    }
+    AdmissionControl.Priority priority = AdmissionControl.Priority.of(entry.name);
+    AdmissionControl admission = priority != null ? AdmissionControl.get() : null;
+    Tracer.Span span = Tracer.start(entry.name);
+    try {
+      if (admission == null) {
+        return entry.command.run(q, args, progress);
       }
+      return admission.call(priority, () -> entry.command.run(q, args, progress));
+    } catch (RejectedExecutionException e) {
+      return "Error: Server busy\n";
+    } finally {
+      Tracer.end(span);
     }
+  }
 
-    // search
-    else if (tokens[0].equals("search")) {
-      if (tokens.length == 6) {
-        String originCity = tokens[1];
-        String destinationCity = tokens[2];
-        boolean direct = tokens[3].equals("1");
-        try {
-          int day = Integer.valueOf(tokens[4]);
-          int count = Integer.valueOf(tokens[5]);
-          response = q.transaction_search(originCity, destinationCity, direct, day, count);
-        } catch (NumberFormatException e) {
-          response = "Failed to parse integer";
+  /**
+   * Start the specified command on an {@link AsyncQuery} session. The response is the text
+   * {@link #execute} would return, or an error message if the operation fails, times out or is
+   * rejected.
+   */
+  public static CompletableFuture<String> executeAsync(AsyncQuery q, String command) {
+    CommandLine args = parse(command);
+    if (args.size() == 0) {
+      return CompletableFuture.completedFuture("Please enter a command");
+    }
+    Entry entry = lookup(args);
+    if (entry == null) {
+      return CompletableFuture.completedFuture("Error: unrecognized command '" + args.get(0) + "'");
+    }
+    if (args.size() < entry.minTokens || args.size() > entry.maxTokens) {
+      return CompletableFuture.completedFuture(entry.usage);
+    }
+    if (entry.async == null) {
+      return CompletableFuture.completedFuture(entry.command.run(null, args, null));
+    }
+    // finished when the response is ready, on whichever thread that is
+    Tracer.Span span = Tracer.start(entry.name);
+    try {
+      return entry.async.run(q, args).handle((result, error) -> {
+        Tracer.finish(span);
+        if (error == null) {
+          return result.message();
         }
-      } else {
-        response = "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>";
-      }
+        Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+        if (cause instanceof TimeoutException) {
+          return "Error: " + entry.name + " timed out\n";
+        }
+        if (cause instanceof RejectedExecutionException) {
+          return "Error: Server busy\n";
+        }
+        cause.printStackTrace();
+        return "Failed to " + entry.name + "\n";
+      });
+    } catch (NumberFormatException e) {
+      Tracer.finish(span);
+      return CompletableFuture.completedFuture("Failed to parse integer");
+    } finally {
+      Tracer.detach(span);
     }
+  }
 
-    // book
-    else if (tokens[0].equals("book")) {
-      if (tokens.length == 2) {
-        int itinerary_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_book(itinerary_id);
-      } else {
-        response = "Error: Please provide an itinerary_id";
-      }
-    }
+  /**
+   * Runs one command, given its tokens with the command name at index 0
+   */
+  interface Command {
+    String run(Query q, CommandLine args, PrintStream progress);
+  }
 
-    // reservations
-    else if (tokens[0].equals("reservations")) {
-      response = q.transaction_reservations();
+  /**
+   * Starts one command on an {@link AsyncQuery} session; must read its arguments before returning
+   */
+  interface AsyncCommand {
+    CompletableFuture<? extends QueryResult<?>> run(AsyncQuery q, CommandLine args);
+  }
+
+  /**
+   * A command with the number of tokens it takes, counting its name
+   */
+  static final class Entry {
+    final String name;
+    final int minTokens;
+    final int maxTokens;
+    final String usage;
+    final Command command;
+    // null for commands that do not use the session
+    final AsyncCommand async;
+
+    Entry(String name, int minTokens, int maxTokens, String usage, Command command, AsyncCommand async) {
+      this.name = name;
+      this.minTokens = minTokens;
+      this.maxTokens = maxTokens;
+      this.usage = usage;
+      this.command = command;
+      this.async = async;
     }
+  }
 
-    // pay
-    else if (tokens[0].equals("pay")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_pay(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
-      }
+  private static final ThreadLocal<CommandLine> COMMAND_LINES = ThreadLocal.withInitial(CommandLine::new);
+
+  // open-addressed by the hash of the command name, so lookups need no String
+  private static final Entry[] COMMANDS = new Entry[32];
+
+  static {
+    register(new Entry("login", 3, 3, "Error: Please provide a username and password",
+            (q, args, progress) -> q.transaction_login(args.get(1), args.get(2)),
+            (q, args) -> q.loginAsync(args.get(1), args.get(2))));
+
+    register(new Entry("create", 4, 4, "Error: Please provide a username, password, and initial amount in the account",
+            (q, args, progress) -> q.transaction_createCustomer(args.get(1), args.get(2), args.getInt(3)),
+            (q, args) -> q.createCustomerAsync(args.get(1), args.get(2), args.getInt(3))));
+
+    register(new Entry("search", 6, 6, "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <date> <nb itineraries>",
+            (q, args, progress) -> {
+              try {
+                int day = args.getInt(4);
+                int count = args.getInt(5);
+                boolean direct = args.is(3, "1");
+                if (progress != null && count > 0) {
+                  return streamSearch(q, args.get(1), args.get(2), direct, day, count, progress);
+                }
+                return q.transaction_search(args.get(1), args.get(2), direct, day, count);
+              } catch (NumberFormatException e) {
+                return "Failed to parse integer";
+              }
+            },
+            (q, args) -> q.searchAsync(args.get(1), args.get(2), args.is(3, "1"), args.getInt(4), args.getInt(5))));
+
+    // search over a range of days
+    register(new Entry("search_range", 7, 7, "Error: Please provide all search parameters <origin_city> <destination_city> <direct> <first day> <last day> <nb itineraries>",
+            (q, args, progress) -> {
+              try {
+                int firstDay = args.getInt(4);
+                int lastDay = args.getInt(5);
+                int count = args.getInt(6);
+                return q.transaction_searchRange(args.get(1), args.get(2), args.is(3, "1"), firstDay, lastDay, count);
+              } catch (NumberFormatException e) {
+                return "Failed to parse integer";
+              }
+            },
+            (q, args) -> q.searchRangeAsync(args.get(1), args.get(2), args.is(3, "1"), args.getInt(4), args.getInt(5),
+                    args.getInt(6))));
+
+    register(new Entry("book", 2, 2, "Error: Please provide an itinerary_id",
+            (q, args, progress) -> q.transaction_book(args.getInt(1)),
+            (q, args) -> q.bookAsync(args.getInt(1))));
+
+    // book several itineraries at once
+    register(new Entry("book_group", 2, Integer.MAX_VALUE, "Error: Please provide one or more itinerary_ids",
+            (q, args, progress) -> {
+              try {
+                List<Integer> itineraryIds = new ArrayList<>(args.size() - 1);
+                for (int i = 1; i < args.size(); i++) {
+                  itineraryIds.add(args.getInt(i));
+                }
+                return q.transaction_bookGroup(itineraryIds);
+              } catch (NumberFormatException e) {
+                return "Failed to parse integer";
+              }
+            },
+            (q, args) -> {
+              List<Integer> itineraryIds = new ArrayList<>(args.size() - 1);
+              for (int i = 1; i < args.size(); i++) {
+                itineraryIds.add(args.getInt(i));
+              }
+              return q.bookGroupAsync(itineraryIds);
+            }));
+
+    register(new Entry("reservations", 1, Integer.MAX_VALUE, null,
+            (q, args, progress) -> q.transaction_reservations(),
+            (q, args) -> q.reservationsAsync()));
+
+    register(new Entry("pay", 2, 2, "Error: Please provide a reservation_id",
+            (q, args, progress) -> q.transaction_pay(args.getInt(1)),
+            (q, args) -> q.payAsync(args.getInt(1))));
+
+    register(new Entry("cancel", 2, 2, "Error: Please provide a reservation_id",
+            (q, args, progress) -> q.transaction_cancel(args.getInt(1)),
+            (q, args) -> q.cancelAsync(args.getInt(1))));
+
+    // unpaid reservation expiry metrics
+    register(new Entry("holds", 1, 1, "Error: holds takes no arguments", (q, args, progress) -> holds(), null));
+
+    // slowest statement executions since startup
+    register(new Entry("slowlog", 1, 2, "Error: Please provide at most a number of statements",
+            (q, args, progress) -> slowlog(args.size() > 1 ? args.getInt(1) : 10), null));
+
+    register(new Entry("quit", 1, Integer.MAX_VALUE, null, (q, args, progress) -> "Goodbye\n", null));
+  }
+
+  private static String holds() {
+    HoldExpiry expiry = Query.holdExpiry();
+    if (expiry == null) {
+      return "Unpaid reservations do not expire\n";
     }
+    return "Holds pending: " + expiry.pendingCount() + ", expired: " + expiry.expiredCount()
+            + ", already paid or cancelled: " + expiry.skippedCount() + ", expiry lag: "
+            + expiry.lastLagMillis() + " ms (max " + expiry.maxLagMillis() + " ms)\n";
+  }
 
-    // cancel
-    else if (tokens[0].equals("cancel")) {
-      if (tokens.length == 2) {
-        int reservation_id = Integer.parseInt(tokens[1]);
-        response = q.transaction_cancel(reservation_id);
-      } else {
-        response = "Error: Please provide a reservation_id";
-      }
+  private static String slowlog(int n) {
+    if (!SlowLog.enabled()) {
+      return "Slow statements are not recorded\n";
+    }
+    StringBuilder sb = new StringBuilder();
+    sb.append("Statements over " + SlowLog.thresholdMillis() + " ms since startup: " + SlowLog.recordedCount() + "\n");
+    int rank = 1;
+    for (SlowLog.Record record : SlowLog.slowest(n)) {
+      sb.append(rank++ + ". " + record + "\n");
     }
+    return sb.toString();
+  }
 
-    // quit
-    else if (tokens[0].equals("quit")) {
-//      q.clearTables();
-      response = "Goodbye\n";
+  private static void register(Entry entry) {
+    int slot = entry.name.hashCode() & (COMMANDS.length - 1);
+    while (COMMANDS[slot] != null) {
+      slot = (slot + 1) & (COMMANDS.length - 1);
     }
+    COMMANDS[slot] = entry;
+  }
 
-    // unknown command
-    else {
-      response = "Error: unrecognized command '" + tokens[0] + "'";
+  /**
+   * The command named by the first token of {@code args}, or null
+   */
+  static Entry lookup(CommandLine args) {
+    int slot = args.hash(0) & (COMMANDS.length - 1);
+    for (Entry entry; (entry = COMMANDS[slot]) != null; slot = (slot + 1) & (COMMANDS.length - 1)) {
+      if (args.is(0, entry.name)) {
+        return entry;
+      }
     }
+    return null;
+  }
 
-    return response;
+  /**
+   * Tokenize {@code command} into this thread's reusable command line
+   */
+  static CommandLine parse(String command) {
+    return COMMAND_LINES.get().parse(command);
+  }
+
+  /**
+   * Print each itinerary of a search as soon as it is published, asking for the next one only
+   * after the previous one was written
+   */
+  private static String streamSearch(Query q, String originCity, String destinationCity, boolean direct,
+                                     int day, int count, PrintStream out) {
+    CompletableFuture<Void> done = new CompletableFuture<>();
+    q.searchPublisher(originCity, destinationCity, direct, day, count).subscribe(new Flow.Subscriber<Query.Itinerary>() {
+      private Flow.Subscription subscription;
+      private int index;
+
+      @Override
+      public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(1);
+      }
+
+      @Override
+      public void onNext(Query.Itinerary itinerary) {
+        StringBuilder sb = new StringBuilder();
+        Query.appendItinerary(sb, index++, itinerary);
+        out.print(sb);
+        out.flush();
+        subscription.request(1);
+      }
+
+      @Override
+      public void onError(Throwable throwable) {
+        done.completeExceptionally(throwable);
+      }
+
+      @Override
+      public void onComplete() {
+        done.complete(null);
+      }
+    });
+    try {
+      done.join();
+      return "";
+    } catch (CompletionException e) {
+      e.printStackTrace();
+      return "Failed to search\n";
+    }
   }
 
   /**
@@ -131,6 +339,8 @@ public class FlightService {
    * @throws IOException
    */
   private static void menu(Query q) throws IOException {
+    boolean streamSearch = AppConfig.get().getBoolean("flightapp.stream_search", false);
+    BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
     while (true) {
       // print the command options
       System.out.println();
@@ -138,39 +348,26 @@ public class FlightService {
       System.out.println("> create <username> <password> <initial amount>");
       System.out.println("> login <username> <password>");
       System.out.println("> search <origin city> <destination city> <direct> <day of the month> <num itineraries>");
+      System.out.println("> search_range <origin city> <destination city> <direct> <first day> <last day> <num itineraries>");
       System.out.println("> book <itinerary id>");
+      System.out.println("> book_group <itinerary id> [<itinerary id> ...]");
       System.out.println("> pay <reservation id>");
       System.out.println("> reservations");
       System.out.println("> cancel <reservation id>");
+      System.out.println("> holds");
+      System.out.println("> slowlog [<n>]");
       System.out.println("> quit");
 
       // read an input command from the REPL
-      BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
       System.out.print("> ");
       String command = r.readLine();
 
       // execute the given input command
-      String response = execute(q, command);
+      String response = execute(q, command, streamSearch ? System.out : null);
       System.out.print(response);
       if (response.equals("Goodbye\n")) {
         break;
       }
     }
   }
-
-  /**
-   * Tokenize a string into a string array
-   */
-  private static String[] tokenize(String command) {
-    String regex = "\"([^\"]*)\"|(\\S+)";
-    Matcher m = Pattern.compile(regex).matcher(command);
-    List<String> tokens = new ArrayList<>();
-    while (m.find()) {
-      if (m.group(1) != null)
-        tokens.add(m.group(1));
-      else
-        tokens.add(m.group(2));
-    }
-    return tokens.toArray(new String[0]);
-  }
 }
@@ -0,0 +1,76 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.concurrent.*;
+
+/**
+ * Process-wide cache of {@link Query.Flight} objects by fid, shared by every session's
+ * {@link SearchResults}.
+ *
+ * Flights are reference data, so one canonical object per fid serves all sessions. The city and
+ * carrier strings are interned as well, since a handful of values repeat across most rows. Once
+ * {@code maxFlights} flights are cached, new ones are loaded from the database on each use.
+ */
+public class FlightStore {
+  /**
+   * Reads one flight from the database
+   */
+  public interface FlightLoader {
+    Query.Flight load(int fid) throws SQLException;
+  }
+
+  private final ConcurrentHashMap<Integer, Query.Flight> flights = new ConcurrentHashMap<>();
+  private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+  private final int maxFlights;
+  private final FlightLoader loader;
+
+  public FlightStore(int maxFlights, FlightLoader loader) {
+    this.maxFlights = maxFlights;
+    this.loader = loader;
+  }
+
+  /**
+   * Return the canonical object for {@code flight}'s fid, adding it if there is room
+   */
+  public Query.Flight intern(Query.Flight flight) {
+    Query.Flight cached = flights.get(flight.fid);
+    if (cached != null) {
+      return cached;
+    }
+    flight.carrierId = internString(flight.carrierId);
+    flight.originCity = internString(flight.originCity);
+    flight.destCity = internString(flight.destCity);
+    if (flights.size() >= maxFlights) {
+      return flight;
+    }
+    cached = flights.putIfAbsent(flight.fid, flight);
+    return cached == null ? flight : cached;
+  }
+
+  /**
+   * The cached flight with {@code fid}, or null
+   */
+  public Query.Flight cached(int fid) {
+    return flights.get(fid);
+  }
+
+  /**
+   * Look up a flight, loading it if it is not cached
+   */
+  public Query.Flight get(int fid) throws SQLException {
+    Query.Flight cached = flights.get(fid);
+    return cached != null ? cached : intern(loader.load(fid));
+  }
+
+  public int size() {
+    return flights.size();
+  }
+
+  private String internString(String value) {
+    if (value == null) {
+      return null;
+    }
+    String cached = strings.putIfAbsent(value, value);
+    return cached == null ? value : cached;
+  }
+}
@@ -0,0 +1,209 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Cancels reservations that are still unpaid {@code ttlMillis} after they were booked, giving
+ * their seats back.
+ *
+ * Each new hold is filed in a {@link TimingWheel} under its deadline, so neither booking nor
+ * expiry ever scans Reservations. Every tick, the holds that came due are cancelled with one
+ * UPDATE per 1000 IDs, which skips those paid or cancelled in the meantime and returns the flights
+ * of the ones it cancelled.
+ *
+ * Holds only live in memory: on startup, every unpaid reservation gets a full TTL from then on.
+ */
+public class HoldExpiry implements AutoCloseable {
+  private static final String UNPAID_SQL = "SELECT id FROM Reservations WHERE paid = 0 AND cancelled = 0";
+  private static final String EXPIRE_SQL = "UPDATE Reservations SET cancelled = 1 "
+          + "OUTPUT inserted.id, inserted.username, inserted.dayofmonth, inserted.fid1, inserted.fid2 "
+          + "WHERE paid = 0 AND cancelled = 0 AND id IN (SELECT CAST(value AS int) FROM STRING_SPLIT(?, ','))";
+  // the same, also clearing the expired days from Users.booked_days in one transaction
+  private static final String EXPIRE_AND_RELEASE_DAYS_SQL = "SET NOCOUNT ON; SET XACT_ABORT ON; "
+          + "DECLARE @expired TABLE (id int, username varchar(30), dayofmonth int, fid1 int, fid2 int); "
+          + "BEGIN TRANSACTION; "
+          + "UPDATE Reservations SET cancelled = 1 "
+          + "OUTPUT inserted.id, inserted.username, inserted.dayofmonth, inserted.fid1, inserted.fid2 INTO @expired "
+          + "WHERE paid = 0 AND cancelled = 0 AND id IN (SELECT CAST(value AS int) FROM STRING_SPLIT(?, ',')); "
+          + "UPDATE U SET booked_days = U.booked_days & ~E.days FROM Users AS U JOIN "
+          + "(SELECT username, SUM(DISTINCT POWER(2, dayofmonth - 1)) AS days FROM @expired GROUP BY username) AS E "
+          + "ON E.username = U.username; "
+          + "COMMIT TRANSACTION; "
+          + "SELECT * FROM @expired;";
+  private static final int EXPIRE_BATCH = 1000;
+
+  /**
+   * Told about each expired hold, to give back its seats
+   */
+  public interface ExpiryListener {
+    /**
+     * @param fid2 the second flight, or -1 for a direct itinerary
+     */
+    void expired(int reservationId, String username, int dayOfMonth, int fid1, int fid2);
+  }
+
+  private final Connection conn;
+  private final long tickMillis;
+  private final long ttlTicks;
+  private final ExpiryListener listener;
+  private final long startNanos = System.nanoTime();
+  private TimingWheel wheel = new TimingWheel(0);
+  private final PreparedStatement expireStatement;
+  private final ScheduledExecutorService ticker;
+
+  private final AtomicLong expired = new AtomicLong();
+  private final AtomicLong skipped = new AtomicLong();
+  private volatile long lastLagMillis;
+  private volatile long maxLagMillis;
+
+  /**
+   * @param conn        connection used only for expiry
+   * @param ttlMillis   how long a reservation may stay unpaid
+   * @param tickMillis  expiry granularity
+   * @param listener    called for each expired hold, or null
+   */
+  public HoldExpiry(Connection conn, long ttlMillis, long tickMillis, ExpiryListener listener) throws SQLException {
+    this(conn, ttlMillis, tickMillis, false, listener);
+  }
+
+  /**
+   * @param releaseDays also clear expired reservations' days from {@code Users.booked_days}
+   */
+  public HoldExpiry(Connection conn, long ttlMillis, long tickMillis, boolean releaseDays, ExpiryListener listener)
+          throws SQLException {
+    this.conn = conn;
+    this.tickMillis = tickMillis;
+    this.ttlTicks = Math.max(1, ttlMillis / tickMillis);
+    this.listener = listener;
+    expireStatement = conn.prepareStatement(releaseDays ? EXPIRE_AND_RELEASE_DAYS_SQL : EXPIRE_SQL);
+    try (Statement statement = conn.createStatement();
+         ResultSet unpaid = statement.executeQuery(UNPAID_SQL)) {
+      while (unpaid.next()) {
+        hold(unpaid.getInt("id"));
+      }
+    }
+    ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "hold-expiry");
+      t.setDaemon(true);
+      return t;
+    });
+    ticker.scheduleWithFixedDelay(this::tick, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Start the TTL of a newly booked, unpaid reservation
+   */
+  public synchronized void hold(int reservationId) {
+    wheel.add(reservationId, currentTick() + ttlTicks);
+  }
+
+  /**
+   * Forget every hold, for when Reservations is cleared and its IDs start over
+   */
+  public synchronized void clear() {
+    wheel = new TimingWheel(wheel.now());
+  }
+
+  public synchronized int pendingCount() {
+    return wheel.pending();
+  }
+
+  /**
+   * Holds cancelled because they expired
+   */
+  public long expiredCount() {
+    return expired.get();
+  }
+
+  /**
+   * Holds that came due but had already been paid or cancelled
+   */
+  public long skippedCount() {
+    return skipped.get();
+  }
+
+  /**
+   * How long after its deadline the last expired hold was cancelled
+   */
+  public long lastLagMillis() {
+    return lastLagMillis;
+  }
+
+  public long maxLagMillis() {
+    return maxLagMillis;
+  }
+
+  private long currentTick() {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) / tickMillis;
+  }
+
+  private void tick() {
+    List<Integer> due = new ArrayList<>();
+    long firstDueTick;
+    synchronized (this) {
+      long target = currentTick();
+      firstDueTick = wheel.now() + 1;
+      while (wheel.now() < target) {
+        wheel.advance(due::add);
+      }
+    }
+    if (due.isEmpty()) {
+      return;
+    }
+    for (int from = 0; from < due.size(); from += EXPIRE_BATCH) {
+      List<Integer> batch = due.subList(from, Math.min(from + EXPIRE_BATCH, due.size()));
+      try {
+        expire(batch);
+      } catch (SQLException e) {
+        e.printStackTrace();
+        // try again on the next tick
+        synchronized (this) {
+          for (int reservationId : batch) {
+            wheel.add(reservationId, wheel.now() + 1);
+          }
+        }
+      }
+    }
+    long lag = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos) - firstDueTick * tickMillis;
+    lastLagMillis = lag;
+    maxLagMillis = Math.max(maxLagMillis, lag);
+  }
+
+  private void expire(List<Integer> reservationIds) throws SQLException {
+    StringBuilder ids = new StringBuilder();
+    for (int reservationId : reservationIds) {
+      if (ids.length() > 0) {
+        ids.append(',');
+      }
+      ids.append(reservationId);
+    }
+    int cancelled = 0;
+    expireStatement.clearParameters();
+    expireStatement.setString(1, ids.toString());
+    try (ResultSet released = expireStatement.executeQuery()) {
+      while (released.next()) {
+        cancelled++;
+        int fid1 = released.getInt("fid1");
+        int fid2 = released.getInt("fid2");
+        if (released.wasNull()) {
+          fid2 = -1;
+        }
+        if (listener != null) {
+          listener.expired(released.getInt("id"), released.getString("username"), released.getInt("dayofmonth"),
+                  fid1, fid2);
+        }
+      }
+    }
+    expired.addAndGet(cancelled);
+    skipped.addAndGet(reservationIds.size() - cancelled);
+  }
+
+  @Override
+  public void close() throws SQLException {
+    ticker.shutdownNow();
+    conn.close();
+  }
+}
@@ -0,0 +1,195 @@
+package flightapp;
+
+import java.lang.reflect.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Wraps a JDBC connection so that listeners see every statement execution on it.
+ *
+ * The statements the connection creates remember their SQL and bound parameters. Each execute is
+ * offered to every listener, and a listener that wants to follow it returns an {@link Execution}
+ * that is told how the execute ended and, for a query, how long each read of a row took and when
+ * the result set was closed. Result sets are only wrapped when some listener follows the execute.
+ */
+public final class JdbcInterceptor {
+  /**
+   * Decides, per statement execution, whether to follow it
+   */
+  public interface Listener {
+    /**
+     * An execute of {@code sql} is about to start on this thread
+     *
+     * @param method     the execute method called, such as executeQuery
+     * @param parameters the bound parameters, indexed from 0; not to be modified
+     * @return the execution to notify, or null to ignore it
+     */
+    Execution starting(String method, String sql, Object[] parameters);
+  }
+
+  /**
+   * One followed statement execution
+   */
+  public interface Execution {
+    /**
+     * The execute returned {@code result}, a result set, update count or counts, or boolean, or
+     * else threw {@code error}
+     */
+    void executed(Object result, Throwable error);
+
+    /**
+     * A call to {@link ResultSet#next} took {@code nanos}; {@code more} is false once the rows
+     * have run out
+     */
+    default void fetched(boolean more, long nanos) {
+    }
+
+    /**
+     * The result set was closed
+     */
+    default void closed() {
+    }
+  }
+
+  private static final Object[] NO_PARAMETERS = {};
+
+  private JdbcInterceptor() {
+  }
+
+  /**
+   * {@code conn} with its statement executions offered to {@code listeners}; null listeners are
+   * skipped, and {@code conn} itself is returned if none are left
+   */
+  public static Connection wrap(Connection conn, Listener... listeners) {
+    Listener[] active = Arrays.stream(listeners).filter(Objects::nonNull).toArray(Listener[]::new);
+    if (active.length == 0) {
+      return conn;
+    }
+    return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class},
+            (proxy, method, args) -> {
+              Object result = invoke(proxy, conn, method, args);
+              if (result instanceof Statement) {
+                String sql = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+                StatementHandler handler = new StatementHandler(result, sql, active);
+                return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{method.getReturnType()},
+                        handler);
+              }
+              return result;
+            });
+  }
+
+  /**
+   * One statement, with the parameters bound to it so far
+   */
+  private static class StatementHandler implements InvocationHandler {
+    private final Object statement;
+    private final String preparedSql;
+    private final Listener[] listeners;
+    private Object[] parameters = NO_PARAMETERS;
+    private int parameterCount;
+
+    StatementHandler(Object statement, String preparedSql, Listener[] listeners) {
+      this.statement = statement;
+      this.preparedSql = preparedSql;
+      this.listeners = listeners;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+      String name = method.getName();
+      if (name.startsWith("set") && args != null && args.length >= 2 && args[0] instanceof Integer) {
+        bind((Integer) args[0], name.equals("setNull") ? null : args[1]);
+      } else if (name.equals("clearParameters")) {
+        Arrays.fill(parameters, null);
+        parameterCount = 0;
+      }
+      if (!name.startsWith("execute")) {
+        return JdbcInterceptor.invoke(proxy, statement, method, args);
+      }
+      String sql = preparedSql != null ? preparedSql
+              : args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+      Object[] bound = Arrays.copyOf(parameters, parameterCount);
+      Execution[] executions = new Execution[listeners.length];
+      boolean followed = false;
+      for (int i = 0; i < listeners.length; i++) {
+        executions[i] = listeners[i].starting(name, sql, bound);
+        followed |= executions[i] != null;
+      }
+      if (!followed) {
+        return JdbcInterceptor.invoke(proxy, statement, method, args);
+      }
+      Object result;
+      try {
+        result = JdbcInterceptor.invoke(proxy, statement, method, args);
+      } catch (Throwable e) {
+        executed(executions, null, e);
+        throw e;
+      }
+      executed(executions, result, null);
+      if (result instanceof ResultSet) {
+        ResultSet results = (ResultSet) result;
+        return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (resultProxy, resultMethod, resultArgs) -> resultSet(resultProxy, results, executions, resultMethod,
+                        resultArgs));
+      }
+      return result;
+    }
+
+    private void bind(int index, Object value) {
+      if (index > parameters.length) {
+        parameters = Arrays.copyOf(parameters, Math.max(index, 2 * parameters.length));
+      }
+      parameters[index - 1] = value;
+      parameterCount = Math.max(parameterCount, index);
+    }
+  }
+
+  // the last listener to start is the first to hear the execute ended, so that spans nest
+  private static void executed(Execution[] executions, Object result, Throwable error) {
+    for (int i = executions.length - 1; i >= 0; i--) {
+      if (executions[i] != null) {
+        executions[i].executed(result, error);
+      }
+    }
+  }
+
+  private static Object resultSet(Object proxy, ResultSet results, Execution[] executions, Method method,
+                                  Object[] args) throws Throwable {
+    switch (method.getName()) {
+      case "next":
+        long begin = System.nanoTime();
+        boolean more = results.next();
+        long nanos = System.nanoTime() - begin;
+        for (Execution execution : executions) {
+          if (execution != null) {
+            execution.fetched(more, nanos);
+          }
+        }
+        return more;
+      case "close":
+        for (Execution execution : executions) {
+          if (execution != null) {
+            execution.closed();
+          }
+        }
+        return invoke(proxy, results, method, args);
+      default:
+        return invoke(proxy, results, method, args);
+    }
+  }
+
+  private static Object invoke(Object proxy, Object target, Method method, Object[] args) throws Throwable {
+    switch (method.getName()) {
+      case "equals":
+        return proxy == args[0];
+      case "hashCode":
+        return System.identityHashCode(proxy);
+      default:
+        try {
+          return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+          throw e.getCause();
+        }
+    }
+  }
+}
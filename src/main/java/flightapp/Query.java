@@ -3,6 +3,9 @@ import java.io.*;
 import java.math.BigInteger;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.*;
 import java.security.spec.*;
 import javax.crypto.*;
@@ -15,6 +18,49 @@ import java.util.Comparator;
 public class Query {
   // DB Connection
   private Connection conn;
+  private final String serverURL;
+  private final String dbName;
+  private final String adminName;
+  private final String password;
+  // Whether flightapp.migrate keeps the schema and indexes up to date
+  private boolean migrate;
+  // Read replica for flight lookups, null when not configured
+  private ReadRouter readRouter;
+  // Username sharding of Users and Reservations, null when there is a single database
+  private ShardRing shardRing;
+  private Connection[] shardConns;
+  // each shard connection's statements, prepared on its first use and reused from then on
+  private PreparedStatement[][] shardStatements;
+  private int currentShard;
+  private ShardCoordinator coordinator;
+  // Shared connections and workers for multi-day searches
+  private static ConnectionPool searchPool;
+  private static ConnectionPool replicaSearchPool;
+  private static ExecutorService searchExecutor;
+  // Flights referenced by the sessions' compact search results
+  private static FlightStore flightStore;
+  // In-memory seat counts, null unless flightapp.seat_inventory is enabled
+  private static SeatInventory seatInventory;
+  private static SeatWriteBehind seatWriteBehind;
+  // Event-sourced reservations, null unless flightapp.persistence = journal
+  private static ReservationJournal reservationJournal;
+  // Batched bookings, null unless flightapp.booking.group_commit is enabled
+  private static BookingEngine bookingEngine;
+  // Cancels unpaid reservations, null unless flightapp.holds.ttl_ms is set
+  private static HoldExpiry holdExpiry;
+  // In-process balances for pay and cancel, null unless flightapp.ledger is enabled
+  private static AccountLedger accountLedger;
+  // Committed reservation changes, null unless flightapp.change_feed is enabled
+  private static ChangeFeed changeFeed;
+  private static ChangeFeed.FileTransport changeFeedFile;
+  // Booked days by user, null unless flightapp.booked_days is enabled
+  private static BookedDays bookedDays;
+  // Rendered reservations by user, null unless flightapp.reservation_views is enabled
+  private static ReservationViews reservationViews;
+  // Search counts by route for pre-warming, null unless flightapp.route_sketch is enabled
+  private static RouteSketch routeSketch;
+  // Set while pre-warming, so its searches are not counted
+  private boolean warming;
   // Password hashing parameter constants
   private static final int HASH_STRENGTH = 65536;
   private static final int KEY_LENGTH = 128;
@@ -28,7 +74,8 @@ public class Query {
   // Current user stuff
   private String currentUser = null;
   private int maxDeadlock = 3;
-  public List<Itinerary> itineraries;
+  // volatile since a streamed search hands its results over from a search thread
+  public volatile List<Itinerary> itineraries;
 
   private static final String BEGIN_TRANSACTION_SQL = "SET TRANSACTION ISOLATION LEVEL SERIALIZABLE; BEGIN TRANSACTION;";
   protected PreparedStatement beginTransactionStatement;
@@ -49,19 +96,29 @@ public class Query {
           "username varchar(30) FOREIGN KEY REFERENCES Users(username)," +
           "itineraryId int," +
           "price int," +
-          "dayofmonth int);";
+          "dayofmonth int," +
+          "fid1 int," +
+          "fid2 int);";
   protected PreparedStatement recreateReservationStatement;
 
   private static final String CLEARTABLES_SQL = "DELETE FROM Reservations; DELETE FROM Users;";
   protected PreparedStatement clearTablesStatement;
 
   // Create function
-  private static final String CREATE_USER_SQL = "INSERT INTO Users VALUES ((?),(?),(?),(?))";
+  private static final String CREATE_USER_SQL = "INSERT INTO Users (username, hash, salt, balance) VALUES ((?),(?),(?),(?))";
   protected PreparedStatement createUserStatement;
 
-  private static final String CREATE_RESERVATION_SQL = "INSERT INTO Reservations VALUES ((?),(?),(?),(?),(?),(?))";
+  private static final String CREATE_RESERVATION_SQL = "INSERT INTO Reservations "
+          + "(paid, cancelled, username, itineraryId, price, dayofmonth, fid1, fid2) VALUES ((?),(?),(?),(?),(?),(?),(?),(?))";
   protected PreparedStatement createReservationStatement;
 
+  // Sharded mode: the reservation ID is allocated by the ShardCoordinator
+  private static final String CREATE_RESERVATION_WITH_ID_SQL = "SET IDENTITY_INSERT Reservations ON; "
+          + "INSERT INTO Reservations (id, paid, cancelled, username, itineraryId, price, dayofmonth, fid1, fid2) "
+          + "VALUES ((?),(?),(?),(?),(?),(?),(?),(?),(?)); "
+          + "SET IDENTITY_INSERT Reservations OFF;";
+  protected PreparedStatement createReservationWithIdStatement;
+
   // Login function
   private static final String CHECKUSEREXIST_SQL = "SELECT * FROM Users WHERE username = ?";
   protected PreparedStatement userExistStatement;
@@ -80,9 +137,12 @@ public class Query {
           + "WHERE F.origin_city = ? AND F2.dest_city = ? AND F.day_of_month = ? AND F2.day_of_month = F.day_of_month AND F2.origin_city = F.dest_city AND F.canceled = 0 AND F2.canceled = 0 "
           + "ORDER BY F.actual_time + F2.actual_time ASC ";
   protected PreparedStatement indirectFlightStatement;
+  private final FlightMapper directMapper = FlightMapper.flight();
+  private final FlightMapper firstLegMapper = FlightMapper.firstLeg();
+  private final FlightMapper secondLegMapper = FlightMapper.secondLeg();
   // Pay function
   private static final String SEARCH_USERNAME_RESERVATION_UNPAID = "SELECT * "
-          + "FROM Reservations as R where R.id = ? AND R.username = ? AND R.paid = 0";
+          + "FROM Reservations as R where R.id = ? AND R.username = ? AND R.paid = 0 AND R.cancelled = 0";
   private PreparedStatement searchUsernameWithReservationUnpaidStatement;
 
   private static final String SEARCH_USER_BALANCE = "SELECT U.balance FROM Users as U WHERE U.username = ? ";
@@ -111,20 +171,447 @@ public class Query {
   private static final String GET_ALL_RESERVATIONS = "SELECT * FROM Reservations";
   protected PreparedStatement getAllReservations;
 
-  private static final String SEARCH_USER_RESERVATION_DAY_SQL = "SELECT * FROM Reservations AS R WHERE R.username = ? AND R.dayofmonth = ?";
+  // cancelled reservations do not take up their day, on every booking path
+  private static final String SEARCH_USER_RESERVATION_DAY_SQL = "SELECT * FROM Reservations AS R WHERE R.username = ? AND R.dayofmonth = ? AND R.cancelled = 0";
   protected PreparedStatement searchReservationsForUserDayStatement;
 
   private static final String SEARCH_FLIGHT_SQL = "SELECT * FROM Flights WHERE fid = ?";
   protected PreparedStatement searchFlightStatement;
 
+  private static final String COUNT_ACTIVE_SEATS_SQL = "SELECT COUNT(*) AS count FROM Reservations "
+          + "WHERE cancelled = 0 AND (fid1 = ? OR fid2 = ?)";
+  protected PreparedStatement countActiveSeatsStatement;
+
+  // Group booking: seats taken on a set of flights, and any reservation on a set of days
+  private static final String GROUP_BOOKED_SEATS_SQL = "SELECT F.fid, F.capacity, "
+          + "(SELECT COUNT(*) FROM Reservations AS R WHERE R.cancelled = 0 AND (R.fid1 = F.fid OR R.fid2 = F.fid)) AS booked "
+          + "FROM Flights AS F WHERE F.fid IN (SELECT CAST(value AS int) FROM STRING_SPLIT(?, ','))";
+  protected PreparedStatement groupBookedSeatsStatement;
+
+  private static final String GROUP_SAME_DAY_SQL = "SELECT TOP (1) id FROM Reservations WHERE username = ? "
+          + "AND cancelled = 0 AND dayofmonth IN (SELECT CAST(value AS int) FROM STRING_SPLIT(?, ','))";
+  protected PreparedStatement groupSameDayStatement;
+
+  // Booked-day masks, with flightapp.booked_days
+  private static final String BOOKED_DAYS_SQL = "SELECT booked_days FROM Users WHERE username = ?";
+  private PreparedStatement bookedDaysStatement;
+  private static final String CLAIM_BOOKED_DAYS_SQL = "UPDATE Users SET booked_days = booked_days | ? "
+          + "WHERE username = ? AND booked_days & ? = 0";
+  private PreparedStatement claimBookedDaysStatement;
+  private static final String RELEASE_BOOKED_DAY_SQL = "UPDATE Users SET booked_days = booked_days & ~? "
+          + "WHERE username = ?";
+  private PreparedStatement releaseBookedDayStatement;
+
   public Query() throws SQLException, IOException {
     this(null, null, null, null);
   }
   protected Query(String serverURL, String dbName, String adminName, String password)
           throws SQLException, IOException {
-    conn = serverURL == null ? openConnectionFromDbConn()
-            : openConnectionFromCredential(serverURL, dbName, adminName, password);
+    this.serverURL = serverURL;
+    this.dbName = dbName;
+    this.adminName = adminName;
+    this.password = password;
+    checkFlags(AppConfig.get());
+    conn = openConnection();
+    migrate = AppConfig.get().getBoolean("flightapp.migrate", false);
+    if (migrate) {
+      SchemaMigrator.migrateOnce(conn);
+    }
+    readRouter = ReadRouter.create(conn, this::replicaSearchPool, AppConfig.get());
+    int shards = AppConfig.get().getInt("flightapp.shards", 1);
+    if (shards > 1) {
+      shardRing = new ShardRing(shards);
+      shardConns = new Connection[shards];
+      shardConns[0] = conn;
+      shardStatements = new PreparedStatement[shards][];
+      coordinator = new ShardCoordinator(openConnection());
+    } else if (AppConfig.get().getBoolean("flightapp.seat_inventory", false)) {
+      initSeatInventory();
+    }
+    if (AppConfig.get().getBoolean("flightapp.change_feed", false)) {
+      initChangeFeed();
+    }
+    if (AppConfig.get().getBoolean("flightapp.route_sketch", false)) {
+      initRouteSketch();
+    }
+    if (AppConfig.get().getBoolean("flightapp.reservation_views", false)) {
+      initReservationViews();
+    }
+    if (AppConfig.get().getString("flightapp.persistence", "sql").equalsIgnoreCase("journal")) {
+      initReservationJournal();
+    } else if (shardRing == null && AppConfig.get().getBoolean("flightapp.booked_days", false)) {
+      initBookedDays();
+    } else if (shardRing == null && seatInventory == null
+            && AppConfig.get().getBoolean("flightapp.booking.group_commit", false)) {
+      initBookingEngine();
+    }
+    if (shardRing == null && reservationJournal == null && AppConfig.get().getLong("flightapp.holds.ttl_ms", 0) > 0) {
+      initHoldExpiry();
+    }
+    if (shardRing == null && reservationJournal == null && AppConfig.get().getBoolean("flightapp.ledger", false)) {
+      initAccountLedger();
+    }
     prepareStatements();
+    if (shardRing != null) {
+      shardStatements[0] = statements();
+    }
+  }
+  /**
+   * Pairs of options that cannot both be on, since each replaces a path the other relies on: the
+   * journal takes over every reservation path, sharding moves reservations off the database the
+   * in-process state is kept for, and the group-commit engine checks seats and days with its own
+   * queries, outside the seat inventory and the booked-day masks
+   */
+  private static final String[][] CONFLICTING_FLAGS = {
+          {"flightapp.shards", "flightapp.persistence = journal"},
+          {"flightapp.shards", "flightapp.seat_inventory"},
+          {"flightapp.shards", "flightapp.booked_days"},
+          {"flightapp.shards", "flightapp.booking.group_commit"},
+          {"flightapp.shards", "flightapp.holds.ttl_ms"},
+          {"flightapp.shards", "flightapp.ledger"},
+          {"flightapp.persistence = journal", "flightapp.seat_inventory"},
+          {"flightapp.persistence = journal", "flightapp.booked_days"},
+          {"flightapp.persistence = journal", "flightapp.booking.group_commit"},
+          {"flightapp.persistence = journal", "flightapp.holds.ttl_ms"},
+          {"flightapp.persistence = journal", "flightapp.ledger"},
+          {"flightapp.persistence = journal", "flightapp.reservation_views"},
+          {"flightapp.seat_inventory", "flightapp.booking.group_commit"},
+          {"flightapp.booked_days", "flightapp.booking.group_commit"},
+  };
+
+  /**
+   * Fail on options that cannot be combined, rather than leaving one of them silently off
+   */
+  static void checkFlags(AppConfig config) {
+    Map<String, Boolean> on = new HashMap<>();
+    on.put("flightapp.shards", config.getInt("flightapp.shards", 1) > 1);
+    on.put("flightapp.persistence = journal",
+            config.getString("flightapp.persistence", "sql").equalsIgnoreCase("journal"));
+    on.put("flightapp.seat_inventory", config.getBoolean("flightapp.seat_inventory", false));
+    on.put("flightapp.booked_days", config.getBoolean("flightapp.booked_days", false));
+    on.put("flightapp.booking.group_commit", config.getBoolean("flightapp.booking.group_commit", false));
+    on.put("flightapp.holds.ttl_ms", config.getLong("flightapp.holds.ttl_ms", 0) > 0);
+    on.put("flightapp.ledger", config.getBoolean("flightapp.ledger", false));
+    on.put("flightapp.reservation_views", config.getBoolean("flightapp.reservation_views", false));
+    for (String[] flags : CONFLICTING_FLAGS) {
+      if (on.get(flags[0]) && on.get(flags[1])) {
+        throw new IllegalStateException(flags[0] + " and " + flags[1] + " cannot both be on");
+      }
+    }
+  }
+  private static void initReservationJournal() throws IOException {
+    synchronized (Query.class) {
+      if (reservationJournal == null) {
+        AppConfig config = AppConfig.get();
+        reservationJournal = new ReservationJournal(Paths.get(config.getString("flightapp.journal.dir", "journal")),
+                config.getInt("flightapp.journal.snapshot_every", 10000));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            reservationJournal.close();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }));
+      }
+    }
+  }
+  private void initBookingEngine() throws SQLException, IOException {
+    synchronized (Query.class) {
+      if (bookingEngine == null) {
+        AppConfig config = AppConfig.get();
+        bookingEngine = new BookingEngine(openConnection(), config.getInt("flightapp.booking.batch_size", 64),
+                config.getLong("flightapp.booking.batch_wait_us", 500));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            bookingEngine.close();
+          } catch (SQLException e) {
+            e.printStackTrace();
+          }
+        }));
+      }
+    }
+  }
+  private void initBookedDays() throws SQLException {
+    synchronized (Query.class) {
+      if (bookedDays == null) {
+        AppConfig config = AppConfig.get();
+        if (config.getBoolean("flightapp.booked_days.rebuild", true)) {
+          // bookings made while the masks were not kept
+          boolean autoCommit = conn.getAutoCommit();
+          int isolation = conn.getTransactionIsolation();
+          conn.setAutoCommit(false);
+          conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+          try (Statement statement = conn.createStatement()) {
+            statement.executeUpdate(BookedDays.REBUILD_SQL);
+            conn.commit();
+          } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+          } finally {
+            conn.setAutoCommit(autoCommit);
+            conn.setTransactionIsolation(isolation);
+          }
+        }
+        BookedDays days = new BookedDays(config.getInt("flightapp.booked_days.max_users", 100000));
+        if (changeFeed != null) {
+          // days booked or cancelled by another process
+          changeFeed.subscribe(new ChangeFeed.Subscriber() {
+            @Override
+            public void changed(byte type, String username, int reservationId, int fid1, int fid2, boolean remote) {
+              if (remote && type != ChangeFeed.PAID) {
+                days.invalidate(username);
+              }
+            }
+
+            @Override
+            public void overflowed() {
+              days.clear();
+            }
+          });
+        }
+        bookedDays = days;
+      }
+    }
+  }
+  private void initHoldExpiry() throws SQLException, IOException {
+    synchronized (Query.class) {
+      if (holdExpiry == null) {
+        AppConfig config = AppConfig.get();
+        HoldExpiry.ExpiryListener listener = (reservationId, username, dayOfMonth, fid1, fid2) -> {
+          if (bookedDays != null) {
+            bookedDays.release(username, BookedDays.bit(dayOfMonth));
+          }
+          if (seatInventory != null) {
+            seatInventory.release(fid1);
+            if (fid2 >= 0) {
+              seatInventory.release(fid2);
+            }
+            recordSeats(fid1, fid2, -1);
+          }
+          if (changeFeed != null) {
+            changeFeed.publish(ChangeFeed.CANCELLED, username, reservationId, fid1, fid2);
+          }
+        };
+        holdExpiry = new HoldExpiry(openConnection(), config.getLong("flightapp.holds.ttl_ms", 0),
+                config.getLong("flightapp.holds.tick_ms", 100), bookedDays != null, listener);
+      }
+    }
+  }
+  private static void initChangeFeed() throws IOException {
+    synchronized (Query.class) {
+      if (changeFeed == null) {
+        AppConfig config = AppConfig.get();
+        if (config.getString("flightapp.change_feed.transport", "none").equalsIgnoreCase("file")) {
+          changeFeedFile = new ChangeFeed.FileTransport(
+                  Paths.get(config.getString("flightapp.change_feed.file", "change_feed.log")),
+                  config.getLong("flightapp.change_feed.poll_ms", 50));
+        }
+        changeFeed = new ChangeFeed(config.getInt("flightapp.change_feed.ring_size", 65536), changeFeedFile);
+        if (seatInventory != null) {
+          // seats booked or given back by another process
+          changeFeed.subscribe(new ChangeFeed.Subscriber() {
+            @Override
+            public void changed(byte type, String username, int reservationId, int fid1, int fid2, boolean remote) {
+              if (remote && type != ChangeFeed.PAID) {
+                seatInventory.invalidate(fid1);
+                if (fid2 >= 0) {
+                  seatInventory.invalidate(fid2);
+                }
+              }
+            }
+
+            @Override
+            public void overflowed() {
+              seatInventory.clear();
+            }
+          });
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            changeFeed.close();
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        }));
+      }
+    }
+  }
+  private static void initReservationViews() {
+    synchronized (Query.class) {
+      if (reservationViews == null) {
+        ReservationViews views = new ReservationViews(
+                AppConfig.get().getInt("flightapp.reservation_views.max_users", 10000));
+        if (changeFeed != null) {
+          // reservations changed by another process
+          changeFeed.subscribe(new ChangeFeed.Subscriber() {
+            @Override
+            public void changed(byte type, String username, int reservationId, int fid1, int fid2, boolean remote) {
+              if (remote) {
+                views.invalidate(username);
+              }
+            }
+
+            @Override
+            public void overflowed() {
+              views.clear();
+            }
+          });
+        }
+        reservationViews = views;
+      }
+    }
+  }
+  private static void initRouteSketch() throws IOException {
+    synchronized (Query.class) {
+      if (routeSketch == null) {
+        AppConfig config = AppConfig.get();
+        Path file = Paths.get(config.getString("flightapp.route_sketch.file", "route_sketch.dat"));
+        RouteSketch sketch = new RouteSketch(config.getInt("flightapp.route_sketch.depth", 4),
+                config.getInt("flightapp.route_sketch.width", 16384), config.getInt("flightapp.route_sketch.top", 1000));
+        sketch.load(file);
+        Runnable save = () -> {
+          try {
+            sketch.save(file);
+          } catch (IOException e) {
+            e.printStackTrace();
+          }
+        };
+        long saveMillis = config.getLong("flightapp.route_sketch.save_ms", 60000);
+        ScheduledExecutorService saver = Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread t = new Thread(r, "route-sketch-save");
+          t.setDaemon(true);
+          return t;
+        });
+        saver.scheduleWithFixedDelay(save, saveMillis, saveMillis, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(save));
+        routeSketch = sketch;
+      }
+    }
+  }
+  /**
+   * Search the most searched routes in {@link RouteSketch}, and run the reads of booking their
+   * itineraries, once each, so that the flight cache is filled, the statements are planned and the
+   * JIT has started compiling the search and book paths before traffic arrives. Does nothing unless
+   * flightapp.route_sketch is enabled.
+   *
+   * @return the number of searches run
+   */
+  public static int prewarm() throws SQLException, IOException {
+    AppConfig config = AppConfig.get();
+    if (!config.getBoolean("flightapp.route_sketch", false)) {
+      return 0;
+    }
+    Query q = new Query();
+    try {
+      return q.prewarm(routeSketch.top(config.getInt("flightapp.prewarm.routes", 100)),
+              config.getInt("flightapp.prewarm.itineraries", 10));
+    } finally {
+      q.closeConnection();
+    }
+  }
+  int prewarm(List<RouteSketch.Route> routes, int numberOfItineraries) throws SQLException {
+    int searches = 0;
+    warming = true;
+    try {
+      for (RouteSketch.Route route : routes) {
+        transaction_search(route.originCity, route.destCity, false, route.dayOfMonth, numberOfItineraries);
+        searches++;
+        if (coordinator == null && reservationJournal == null) {
+          for (Itinerary it : itineraries) {
+            warmBook(it);
+          }
+        }
+      }
+    } finally {
+      warming = false;
+      itineraries = null;
+    }
+    return searches;
+  }
+  /**
+   * The reads {@link #book} makes for {@code it}, without booking it
+   */
+  private void warmBook(Itinerary it) throws SQLException {
+    remainingSeats(it.f1.fid);
+    if (it.f2 != null) {
+      remainingSeats(it.f2.fid);
+    }
+    searchReservationsForUserDayStatement.clearParameters();
+    searchReservationsForUserDayStatement.setString(1, "");
+    searchReservationsForUserDayStatement.setInt(2, it.day);
+    try (ResultSet reservations = searchReservationsForUserDayStatement.executeQuery()) {
+      reservations.next();
+    }
+  }
+  /**
+   * The feed of committed reservation changes, or null when it is not enabled
+   */
+  static ChangeFeed changeFeed() {
+    synchronized (Query.class) {
+      return changeFeed;
+    }
+  }
+  private void initAccountLedger() throws SQLException, IOException {
+    synchronized (Query.class) {
+      if (accountLedger == null) {
+        AppConfig config = AppConfig.get();
+        accountLedger = new AccountLedger(openConnection(), Paths.get(config.getString("flightapp.ledger.dir", "ledger")),
+                config.getInt("flightapp.ledger.stripes", 64), config.getLong("flightapp.ledger.flush_ms", 200));
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            accountLedger.close();
+          } catch (IOException | SQLException e) {
+            e.printStackTrace();
+          }
+        }));
+      }
+    }
+  }
+  /**
+   * The unpaid reservation expiry, or null when it is not enabled
+   */
+  static HoldExpiry holdExpiry() {
+    synchronized (Query.class) {
+      return holdExpiry;
+    }
+  }
+  /**
+   * The largest flight id, which sizes the seat inventory so every flight is tracked
+   */
+  private int maxFid() throws SQLException {
+    try (Statement statement = conn.createStatement();
+         ResultSet results = statement.executeQuery("SELECT MAX(fid) FROM Flights")) {
+      results.next();
+      return results.getInt(1);
+    }
+  }
+  private void initSeatInventory() throws SQLException, IOException {
+    synchronized (Query.class) {
+      if (seatInventory == null) {
+        AppConfig config = AppConfig.get();
+        seatWriteBehind = new SeatWriteBehind(openConnection(),
+                Paths.get(config.getString("flightapp.seat_inventory.journal_dir", "seat_journal")),
+                config.getLong("flightapp.seat_inventory.flush_ms", 200));
+        SeatInventory inventory = new SeatInventory(maxFid());
+        // flights booked before this start, as of the write-behind's recovery
+        seatWriteBehind.loadInto(inventory);
+        seatInventory = inventory;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+          try {
+            seatWriteBehind.close();
+          } catch (IOException | SQLException e) {
+            e.printStackTrace();
+          }
+        }));
+      }
+    }
+  }
+  /**
+   * Open a new connection with the same credentials this Query was created with
+   */
+  Connection openConnection() throws SQLException, IOException {
+    return serverURL == null ? openConnectionFromDbConn()
+            : openConnectionFromCredential(serverURL, dbName, adminName, password);
   }
   /**
    * Return a connecion by using dbconn.properties file
@@ -162,7 +649,52 @@ public class Query {
     conn.setAutoCommit(true);
     // By default, set the transaction isolation level to serializable
     conn.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
-    return conn;
+    return JdbcInterceptor.wrap(conn, Tracer.listener(), SlowLog.listener());
+  }
+  /**
+   * Open a connection to shard {@code shard}. Shard 0 is the primary database; the others are
+   * configured as flightapp.shard.[n].server_url and so on.
+   */
+  private Connection openShardConnection(int shard) throws SQLException, IOException {
+    if (shard == 0) {
+      return openConnection();
+    }
+    AppConfig config = AppConfig.get();
+    String prefix = "flightapp.shard." + shard + ".";
+    return openConnectionFromCredential(config.getString(prefix + "server_url", null),
+            config.getString(prefix + "database_name", null), config.getString(prefix + "username", null),
+            config.getString(prefix + "password", null));
+  }
+  /**
+   * Point this session's connection and statements at the shard that owns {@code username}
+   */
+  private void bindShard(String username) throws SQLException {
+    if (shardRing != null) {
+      useShard(shardRing.shardFor(username.toLowerCase()));
+    }
+  }
+  private void useShard(int shard) throws SQLException {
+    if (shard == currentShard) {
+      return;
+    }
+    if (shardConns[shard] == null) {
+      try {
+        shardConns[shard] = openShardConnection(shard);
+        if (migrate) {
+          SchemaMigrator.migrateOnce(shardConns[shard]);
+        }
+      } catch (IOException e) {
+        throw new SQLException("Failed to open shard " + shard, e);
+      }
+    }
+    conn = shardConns[shard];
+    currentShard = shard;
+    if (shardStatements[shard] == null) {
+      prepareStatements();
+      shardStatements[shard] = statements();
+    } else {
+      useStatements(shardStatements[shard]);
+    }
   }
   /**
    * Get underlying connection
@@ -174,6 +706,18 @@ public class Query {
    * Closes the application-to-database connection
    */
   public void closeConnection() throws SQLException {
+    if (readRouter != null) {
+      readRouter.close();
+    }
+    if (shardRing != null) {
+      coordinator.close();
+      for (Connection shard : shardConns) {
+        if (shard != null) {
+          shard.close();
+        }
+      }
+      return;
+    }
     conn.close();
   }
   /**
@@ -182,13 +726,88 @@ public class Query {
    * WARNING! Do not drop any tables and do not clear the flights table.
    */
   public void clearTables() {
+    if (reservationViews != null) {
+      reservationViews.clear();
+    }
+    if (bookedDays != null) {
+      bookedDays.clear();
+    }
+    if (shardRing != null) {
+      try {
+        int boundShard = currentShard;
+        for (int shard = 0; shard < shardRing.shardCount(); shard++) {
+          useShard(shard);
+          clearShardTables();
+        }
+        useShard(boundShard);
+        coordinator.reset();
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+      return;
+    }
+    clearShardTables();
+    if (seatInventory != null) {
+      seatInventory.clear();
+      try {
+        seatWriteBehind.clear();
+      } catch (IOException | SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    if (reservationJournal != null) {
+      try {
+        reservationJournal.reset();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+    if (accountLedger != null) {
+      try {
+        accountLedger.reset();
+      } catch (IOException | SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    if (changeFeedFile != null) {
+      try {
+        changeFeedFile.reset();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Recount FlightSeats from the reservations on every shard. Run after a crash in sharded mode.
+   */
+  public void reconcileShardSeats() throws SQLException {
+    if (shardRing == null) {
+      return;
+    }
+    int boundShard = currentShard;
+    for (int shard = 0; shard < shardRing.shardCount(); shard++) {
+      useShard(shard);
+    }
+    useShard(boundShard);
+    coordinator.reconcile(Arrays.asList(shardConns));
+  }
+
+  private void clearShardTables() {
     try {
       beginTransaction();
       dropTablesStatement.executeUpdate();
       recreateReservationStatement.executeUpdate();
+      if (migrate) {
+        // Reservations was just recreated without its indexes
+        new SchemaMigrator(conn).reapplyAll();
+      }
       clearTablesStatement.executeUpdate();
       maxDeadlock = 3;
       commitTransaction();
+      if (holdExpiry != null) {
+        holdExpiry.clear();
+      }
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -214,13 +833,136 @@ public class Query {
     searchReservationsForUserStatement = conn.prepareStatement(SEARCH_USER_RESERVATION_SQL);
     searchFlightStatement = conn.prepareStatement(SEARCH_FLIGHT_SQL);
     createReservationStatement = conn.prepareStatement(CREATE_RESERVATION_SQL);
+    createReservationWithIdStatement = conn.prepareStatement(CREATE_RESERVATION_WITH_ID_SQL);
     searchReservationId = conn.prepareStatement(SEARCH_RESERVATION_ID);
     updateCancelledStatusStatement = conn.prepareStatement(UPDATE_CANCELLED_STATUS);
     recreateReservationStatement = conn.prepareStatement(RECREATE_RES_SQL);
     dropTablesStatement = conn.prepareStatement(DROP_TABLES);
     searchReservationsForUserDayStatement = conn.prepareStatement(SEARCH_USER_RESERVATION_DAY_SQL);
+    countActiveSeatsStatement = conn.prepareStatement(COUNT_ACTIVE_SEATS_SQL);
+    groupBookedSeatsStatement = conn.prepareStatement(GROUP_BOOKED_SEATS_SQL);
+    groupSameDayStatement = conn.prepareStatement(GROUP_SAME_DAY_SQL);
     getAllReservations = conn.prepareStatement(GET_ALL_RESERVATIONS);
+    if (bookedDays != null) {
+      bookedDaysStatement = conn.prepareStatement(BOOKED_DAYS_SQL);
+      claimBookedDaysStatement = conn.prepareStatement(CLAIM_BOOKED_DAYS_SQL);
+      releaseBookedDayStatement = conn.prepareStatement(RELEASE_BOOKED_DAY_SQL);
+    }
+  }
+
+  /**
+   * This connection's statements, in the order {@link #useStatements} takes them
+   */
+  private PreparedStatement[] statements() {
+    return new PreparedStatement[]{
+            checkFlightCapacityStatement, tranCountStatement, beginTransactionStatement,
+            commitTransactionStatement, rollbackTransactionStatement, clearTablesStatement,
+            numReservationsStatement, createUserStatement, loginStatement, userExistStatement,
+            directFlightStatement, indirectFlightStatement, searchUsernameWithReservationUnpaidStatement,
+            searchUserBalanceStatement, updateUserBalanceStatement, updatePayStatusStatement,
+            searchReservationsForUserStatement, searchFlightStatement, createReservationStatement,
+            createReservationWithIdStatement, searchReservationId, updateCancelledStatusStatement,
+            recreateReservationStatement, dropTablesStatement, searchReservationsForUserDayStatement,
+            countActiveSeatsStatement, groupBookedSeatsStatement, groupSameDayStatement, getAllReservations,
+            bookedDaysStatement, claimBookedDaysStatement, releaseBookedDayStatement
+    };
+  }
+  private void useStatements(PreparedStatement[] statements) {
+    int i = 0;
+    checkFlightCapacityStatement = statements[i++];
+    tranCountStatement = statements[i++];
+    beginTransactionStatement = statements[i++];
+    commitTransactionStatement = statements[i++];
+    rollbackTransactionStatement = statements[i++];
+    clearTablesStatement = statements[i++];
+    numReservationsStatement = statements[i++];
+    createUserStatement = statements[i++];
+    loginStatement = statements[i++];
+    userExistStatement = statements[i++];
+    directFlightStatement = statements[i++];
+    indirectFlightStatement = statements[i++];
+    searchUsernameWithReservationUnpaidStatement = statements[i++];
+    searchUserBalanceStatement = statements[i++];
+    updateUserBalanceStatement = statements[i++];
+    updatePayStatusStatement = statements[i++];
+    searchReservationsForUserStatement = statements[i++];
+    searchFlightStatement = statements[i++];
+    createReservationStatement = statements[i++];
+    createReservationWithIdStatement = statements[i++];
+    searchReservationId = statements[i++];
+    updateCancelledStatusStatement = statements[i++];
+    recreateReservationStatement = statements[i++];
+    dropTablesStatement = statements[i++];
+    searchReservationsForUserDayStatement = statements[i++];
+    countActiveSeatsStatement = statements[i++];
+    groupBookedSeatsStatement = statements[i++];
+    groupSameDayStatement = statements[i++];
+    getAllReservations = statements[i++];
+    bookedDaysStatement = statements[i++];
+    claimBookedDaysStatement = statements[i++];
+    releaseBookedDayStatement = statements[i++];
+  }
+  /*
+   * String forms of the operations below, used by FlightService
+   */
+  public String transaction_login(String username, String password) {
+    return login(username, password).message();
+  }
+  public String transaction_createCustomer(String username, String password, int initAmount) {
+    return createCustomer(username, password, initAmount).message();
+  }
+  public String transaction_search(String originCity, String destinationCity, boolean directFlight,
+                                   int dayOfMonth, int numberOfItineraries) {
+    return search(originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries).message();
+  }
+  public String transaction_searchRange(String originCity, String destinationCity, boolean directFlight,
+                                        int firstDay, int lastDay, int numberOfItineraries) {
+    return searchRange(originCity, destinationCity, directFlight, firstDay, lastDay, numberOfItineraries)
+            .message();
+  }
+  public String transaction_book(int itineraryId) {
+    return book(itineraryId).message();
+  }
+  public String transaction_bookGroup(List<Integer> itineraryIds) {
+    return bookGroup(itineraryIds).message();
+  }
+  public String transaction_pay(int reservationId) {
+    return pay(reservationId).message();
+  }
+  public String transaction_reservations() {
+    return reservations().message();
+  }
+  public String transaction_cancel(int reservationId) {
+    return cancel(reservationId).message();
+  }
+
+  /**
+   * The per-session state of a Query: the logged in user and the last search results. Lets a
+   * pooled Query serve many sessions one operation at a time (see {@link AsyncQuery}).
+   */
+  static class Session {
+    String currentUser;
+    List<Itinerary> itineraries;
+    // search results as saved by SessionManager, used when itineraries is null
+    int[] searchFids;
+  }
+  Session saveSession() {
+    Session session = new Session();
+    session.currentUser = currentUser;
+    session.itineraries = itineraries;
+    return session;
   }
+  void restoreSession(Session session) throws SQLException {
+    currentUser = session.currentUser;
+    itineraries = session.itineraries;
+    if (itineraries == null && session.searchFids != null) {
+      itineraries = SearchResults.decode(session.searchFids, flightStore());
+    }
+    if (currentUser != null) {
+      bindShard(currentUser);
+    }
+  }
+
   /**
    * Takes a user's username and password and attempts to log the user in.
    *
@@ -230,12 +972,13 @@ public class Query {
    * @return If someone has already logged in, then return "User already logged in\n" For all other
    *         errors, return "Login failed\n". Otherwise, return "Logged in as [username]\n".
    */
-  public String transaction_login(String username, String password) {
+  public QueryResult<String> login(String username, String password) {
     if(currentUser != null) {
-      return "User already logged in\n";
+      return QueryResult.failed("User already logged in\n");
     }
     username = username.toLowerCase();
     try {
+      bindShard(username);
       beginTransaction();
       loginStatement.clearParameters();
       loginStatement.setString(1, username);
@@ -247,23 +990,28 @@ public class Query {
         } else {
           String storedHash = result.getString("hash");
           String storedSalt = result.getString("salt");
+          int storedBalance = result.getInt("balance");
           String[] currHash = generateHash(password, decodeHexString(storedSalt));
           result.close();
           if(currHash[0].equals(storedHash)) {
             currentUser = username;
             commitTransaction();
-            return "Logged in as " + currentUser + "\n";
+            if (reservationJournal != null) {
+              // accounts created before the journal was enabled start from Users.balance
+              openJournalAccount(username, storedBalance, false);
+            }
+            return QueryResult.ok("Logged in as " + currentUser + "\n", currentUser);
           }
           commitTransaction();
         }
-        return "Login failed\n";
+        return QueryResult.failed("Login failed\n");
       } catch(SQLException e) {
         if(isDeadLock(e) && maxDeadlock > 0) {
           try {
             rollbackTransaction();
-            return transaction_login(username, password);
+            return login(username, password);
           } catch(SQLException rollbackErr) {
-            return rollbackErr.getMessage();
+            return QueryResult.failed(rollbackErr.getMessage());
           }
         }
         e.printStackTrace();
@@ -271,7 +1019,7 @@ public class Query {
     } catch(SQLException e) {
       e.printStackTrace();
     }
-    return "Login failed\n";
+    return QueryResult.failed("Login failed\n");
   }
 
 
@@ -285,17 +1033,39 @@ public class Query {
    *
    * @return either "Created user {@code username}\n" or "Failed to create user\n" if failed.
    */
-  public String transaction_createCustomer(String username, String password, int initAmount) {
+  public QueryResult<String> createCustomer(String username, String password, int initAmount) {
     if (initAmount < 0) {
-      return "Failed to create user\n";
+      return QueryResult.failed("Failed to create user\n");
+    }
+    if (shardRing != null) {
+      try {
+        bindShard(username);
+        return createCustomerOnShard(username, password, initAmount);
+      } catch (SQLException e) {
+        e.printStackTrace();
+        return QueryResult.failed("Failed to create user\n");
+      } finally {
+        try {
+          // stay on the logged in user's shard
+          if (currentUser != null) {
+            bindShard(currentUser);
+          }
+        } catch (SQLException e) {
+          e.printStackTrace();
+        }
+      }
     }
+    return createCustomerOnShard(username, password, initAmount);
+  }
+
+  private QueryResult<String> createCustomerOnShard(String username, String password, int initAmount) {
     try {
       beginTransaction();
       userExistStatement.clearParameters();
       userExistStatement.setString(1, username.toLowerCase());
       ResultSet Results = userExistStatement.executeQuery();
       if (Results.next()) {
-        return "Failed to create user\n";
+        return QueryResult.failed("Failed to create user\n");
       }
       // Create a new user
       Results.close();
@@ -309,17 +1079,20 @@ public class Query {
       try {
         createUserStatement.executeUpdate();
         commitTransaction();
-        return "Created user " + username + "\n";
+        if (reservationJournal != null) {
+          openJournalAccount(username.toLowerCase(), initAmount, true);
+        }
+        return QueryResult.ok("Created user " + username + "\n", username);
       } catch(SQLException deadlock) {
         if(isDeadLock(deadlock) && maxDeadlock > 0) {
           maxDeadlock--;
-          return transaction_createCustomer(username, password, initAmount);
+          return createCustomerOnShard(username, password, initAmount);
         }
       }
       rollbackTransaction();
-      return "Failed to create user\n";
+      return QueryResult.failed("Failed to create user\n");
     } catch (SQLException e) {e.printStackTrace();}
-    return "Failed to create user\n";
+    return QueryResult.failed("Failed to create user\n");
   }
 
   /**
@@ -352,13 +1125,29 @@ public class Query {
    *
    * @see Flight#toString()
    */
-  public String transaction_search(String originCity, String destinationCity, boolean directFlight,
+  public QueryResult<List<Itinerary>> search(String originCity, String destinationCity, boolean directFlight,
                                    int dayOfMonth, int numberOfItineraries) {
     if (numberOfItineraries <= 0) {
-      return "No flights match your selection\n";
+      return QueryResult.ok("No flights match your selection\n", Collections.emptyList());
+    }
+    if (routeSketch != null && !warming) {
+      routeSketch.add(originCity, destinationCity, dayOfMonth);
     }
     itineraries = new ArrayList<Itinerary>();
     StringBuilder sb = new StringBuilder();
+    if (readRouter != null && readRouter.useReplica()) {
+      // read-only lookup on the replica, no transaction on the primary
+      try {
+        List<Itinerary> found = readRouter.read(c -> searchDay(c, originCity, destinationCity, directFlight,
+                dayOfMonth, numberOfItineraries));
+        appendItineraries(sb, found);
+        keepSearchResults(found);
+        return QueryResult.ok(sb.toString(), found);
+      } catch (SQLException e) {
+        e.printStackTrace();
+        return QueryResult.failed("Failed to search\n");
+      }
+    }
     try {
       // find direct flights
       ArrayList<Flight[]> flightsList = new ArrayList<Flight[]>();
@@ -371,19 +1160,131 @@ public class Query {
       }
       // add everything to itineraries and build string
       itineraries.sort(Itinerary::compareTo);
-      for(int i = 0; i < itineraries.size(); i++) {
-        Itinerary it = itineraries.get(i);
-        sb.append("Itinerary " + i + ": "+ it.numFlights + " flight(s), " + it.totalTime +
-                " minutes\n");
-        sb.append(it.f1.toString() + "\n");
-        if(it.numFlights == 2) {
-          sb.append(it.f2.toString() + "\n");
+      appendItineraries(sb, itineraries);
+    } finally {
+      checkDanglingTransaction();
+    }
+    List<Itinerary> found = itineraries;
+    keepSearchResults(found);
+    return QueryResult.ok(sb.toString(), found);
+  }
+
+  /**
+   * Implements the flexible-date search function.
+   *
+   * Runs the same search as {@link #search} for every day from {@code firstDay} to
+   * {@code lastDay}, one day per pooled connection, and merges the per-day results into a single
+   * list ranked by total flight time. Ties keep the earlier day first.
+   *
+   * @param firstDay            first day of the month to search, inclusive
+   * @param lastDay             last day of the month to search, inclusive
+   * @param numberOfItineraries number of itineraries to return across all days
+   *
+   * @return If no itineraries were found, return "No flights match your selection\n". If an error
+   *         occurs, then return "Failed to search\n". Otherwise the itineraries in the same format
+   *         as {@link #search}; they can be booked by itinerary number.
+   */
+  public QueryResult<List<Itinerary>> searchRange(String originCity, String destinationCity, boolean directFlight,
+                                        int firstDay, int lastDay, int numberOfItineraries) {
+    if (numberOfItineraries <= 0 || firstDay < 1 || lastDay > 31 || firstDay > lastDay) {
+      return QueryResult.ok("No flights match your selection\n", Collections.emptyList());
+    }
+    List<Future<List<Itinerary>>> days = new ArrayList<>();
+    try {
+      ExecutorService executor = searchExecutor();
+      ConnectionPool pool = readRouter != null && readRouter.useReplica() ? readRouter.replicas()
+              : searchPool();
+      for (int day = firstDay; day <= lastDay; day++) {
+        final int dayOfMonth = day;
+        if (routeSketch != null) {
+          routeSketch.add(originCity, destinationCity, dayOfMonth);
         }
+        days.add(executor.submit(() -> {
+          Connection c = pool.borrow();
+          try {
+            return searchDay(c, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries);
+          } finally {
+            pool.release(c);
+          }
+        }));
+      }
+      List<Itinerary> merged = new ArrayList<>();
+      for (Future<List<Itinerary>> day : days) {
+        merged.addAll(day.get());
+      }
+      merged.sort(Itinerary::compareTo);
+      if (merged.size() > numberOfItineraries) {
+        merged = new ArrayList<>(merged.subList(0, numberOfItineraries));
+      }
+      keepSearchResults(merged);
+      if (merged.isEmpty()) {
+        return QueryResult.ok("No flights match your selection\n", Collections.emptyList());
       }
+      StringBuilder sb = new StringBuilder();
+      appendItineraries(sb, merged);
+      return QueryResult.ok(sb.toString(), merged);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (ExecutionException e) {
+      e.printStackTrace();
     } finally {
-      checkDanglingTransaction();
+      for (Future<List<Itinerary>> day : days) {
+        day.cancel(true);
+      }
     }
-    return sb.toString();
+    return QueryResult.failed("Failed to search\n");
+  }
+
+  /**
+   * Streaming form of {@link #search}.
+   *
+   * Each subscription runs the search on a pooled connection and publishes itineraries in the same
+   * order as {@link #search}, each as soon as no later row can rank ahead of it. Once
+   * flightapp.stream_search.buffer itineraries are waiting for a slow subscriber, reading stops
+   * until it requests more; cancelling the subscription ends the search. When the search runs to
+   * the end, the published itineraries become this session's search results for booking, before
+   * the subscriber is completed; a cancelled search leaves the previous results in place.
+   */
+  public Flow.Publisher<Itinerary> searchPublisher(String originCity, String destinationCity,
+                                                   boolean directFlight, int dayOfMonth,
+                                                   int numberOfItineraries) {
+    return subscriber -> {
+      SubmissionPublisher<Itinerary> publisher = new SubmissionPublisher<>(ForkJoinPool.commonPool(),
+              AppConfig.get().getInt("flightapp.stream_search.buffer", 16));
+      publisher.subscribe(subscriber);
+      Runnable search = () -> {
+        ConnectionPool pool = readRouter != null && readRouter.useReplica() ? readRouter.replicas()
+                : searchPool();
+        Connection c = null;
+        try {
+          c = pool.borrow();
+          List<Itinerary> published = new ArrayList<>();
+          try (PreparedStatement direct = c.prepareStatement(DIRECT_FLIGHTS);
+               PreparedStatement indirect = c.prepareStatement(INDIRECT_FLIGHTS)) {
+            searchDay(direct, indirect, originCity, destinationCity, directFlight, dayOfMonth,
+                    Math.max(numberOfItineraries, 0), it -> {
+                      published.add(it);
+                      publisher.submit(it);
+                      return publisher.hasSubscribers();
+                    });
+          }
+          // a cancelled subscription stopped the search early, so its results are partial
+          if (publisher.hasSubscribers()) {
+            keepSearchResults(published);
+          }
+          publisher.close();
+        } catch (SQLException | RuntimeException e) {
+          publisher.closeExceptionally(e);
+        } finally {
+          pool.release(c);
+        }
+      };
+      try {
+        searchExecutor().execute(search);
+      } catch (RejectedExecutionException e) {
+        publisher.closeExceptionally(e);
+      }
+    };
   }
 
   /**
@@ -403,81 +1304,95 @@ public class Query {
    *         where reservationId is a unique number in the reservation system that starts from 1 and
    *         increments by 1 each time a successful reservation is made by any user in the system.
    */
-  public String transaction_book(int itineraryId) {
+  public QueryResult<Integer> book(int itineraryId) {
     if (currentUser == null) {
-      return "Cannot book reservations, not logged in\n";
+      return QueryResult.failed("Cannot book reservations, not logged in\n");
+    }
+    if (itineraries == null || itineraryId >= this.itineraries.size()  || itineraryId < 0){
+        return QueryResult.failed("No such itinerary " + itineraryId + "\n");
     }
-    if (itineraries == null || itineraryId > this.itineraries.size()  || itineraryId < 0){
-        return "No such itinerary " + itineraryId + "\n";
+    Itinerary it;
+    try {
+      it = itinerary(itineraryId);
+    } catch (IndexOutOfBoundsException e) {
+      // the session's results were evicted after the size check
+      return QueryResult.failed("No such itinerary " + itineraryId + "\n");
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return QueryResult.failed("Booking failed\n");
     }
-    Itinerary it = itineraries.get(itineraryId);
     if(it == null) {
-      return "Booking failed\n";
+      return QueryResult.failed("Booking failed\n");
     }
     Flight f1 = it.f1;
     Flight f2 = it.f2;
+    if (reservationJournal != null) {
+      return journalBook(itineraryId, it);
+    }
+    if (bookingEngine != null) {
+      return held(bookingEngine.book(currentUser, itineraryId, it).join(), it);
+    }
     try {
       beginTransaction();
-      // check for capacity
-      int count1 = 0;
-      int count2 = 0;
-      ResultSet reservationList = getAllReservations.executeQuery();
-      while (reservationList.next()) {
-        if (itineraries.get(reservationList.getInt("itineraryId")).f1 == f1 || itineraries.get(reservationList.getInt("itineraryId")).f2 == f1){
-          count1++;
-        }
-        if (itineraries.get(reservationList.getInt("itineraryId")).f1 == f2 || itineraries.get(reservationList.getInt("itineraryId")).f2 == f2){
-          count2++;
+      // check for capacity by the active reservations on each flight; sharded seats are counted
+      // by the coordinator and the seat inventory counts its own
+      if (coordinator == null && seatInventory == null) {
+        if (remainingSeats(f1.fid) <= 0 || (f2 != null && remainingSeats(f2.fid) <= 0)) {
+          rollbackTransaction();
+          return QueryResult.failed("Booking failed\n");
         }
       }
-      reservationList.close();
-      if (f1.capacity - count1 <= 0 || (f2 != null && f2.capacity - count2 <= 0)) {
-        rollbackTransaction();
-        return "Booking failed\n";
-      }
       // booking in the same day
-      searchReservationsForUserDayStatement.clearParameters();
-      searchReservationsForUserDayStatement.setString(1, currentUser);
-      searchReservationsForUserDayStatement.setInt(2, it.day);
-      try {
-        ResultSet reservations = searchReservationsForUserDayStatement.executeQuery();
-        if(reservations.next()) {
-          reservations.close();
+      if (bookedDays != null) {
+        boolean claimed;
+        try {
+          claimed = claimBookedDays(BookedDays.bit(it.day));
+        } catch (SQLException e) {
           rollbackTransaction();
-          return "You cannot book two flights in the same day\n";
-        } else {
-          reservations.close();
+          if (isDeadLock(e)) {
+            return book(itineraryId);
+          }
+          throw e;
         }
-      } catch(SQLException e) {
-        rollbackTransaction();
-        if(isDeadLock(e)) {
-          return transaction_book(itineraryId);
+        if (!claimed) {
+          rollbackTransaction();
+          return QueryResult.failed("You cannot book two flights in the same day\n");
         }
-        e.printStackTrace();
+      } else {
+        searchReservationsForUserDayStatement.clearParameters();
+        searchReservationsForUserDayStatement.setString(1, currentUser);
+        searchReservationsForUserDayStatement.setInt(2, it.day);
+        try {
+          ResultSet reservations = searchReservationsForUserDayStatement.executeQuery();
+          if(reservations.next()) {
+            reservations.close();
+            rollbackTransaction();
+            return QueryResult.failed("You cannot book two flights in the same day\n");
+          } else {
+            reservations.close();
+          }
+        } catch(SQLException e) {
+          rollbackTransaction();
+          if(isDeadLock(e)) {
+            return book(itineraryId);
+          }
+          e.printStackTrace();
+        }
+      }
+      if (coordinator != null) {
+        return bookOnShard(itineraryId, it);
+      }
+      if (seatInventory != null) {
+        return bookWithInventory(itineraryId, it);
       }
       // create reservation
-      int nextReserve;
-      numReservationsStatement.clearParameters();
-      ResultSet numRes = numReservationsStatement.executeQuery();
-      if(numRes.next()) {
-        nextReserve = numRes.getInt("count");
-      } else {
-        nextReserve = 0;
-      }
-      createReservationStatement.clearParameters();
-      createReservationStatement.setInt(1, 0);
-      createReservationStatement.setInt(2, 0);
-      createReservationStatement.setString(3, currentUser);
-      createReservationStatement.setInt(4, itineraryId);
-      createReservationStatement.setInt(5, it.price);
-      createReservationStatement.setInt(6, it.day);
       try {
-        createReservationStatement.executeUpdate();
+        int reservationId = insertReservation(itineraryId, it);
         commitTransaction();
-        return "Booked flight(s), reservation ID: " + (nextReserve + 1) + "\n";
+        return held(QueryResult.ok("Booked flight(s), reservation ID: " + reservationId + "\n", reservationId), it);
       } catch(SQLException e) {
         if(isDeadLock(e)) {
-          return transaction_book(itineraryId);
+          return book(itineraryId);
         }
         e.printStackTrace();
       }
@@ -486,8 +1401,480 @@ public class Query {
     } finally {
       checkDanglingTransaction();
     }
-    return "Booking failed \n";
+    return QueryResult.failed("Booking failed \n");
+  }
+  /**
+   * Start the hold TTL of a successful booking and publish it
+   */
+  private QueryResult<Integer> held(QueryResult<Integer> booked, Itinerary it) {
+    if (booked.isOk()) {
+      if (holdExpiry != null) {
+        holdExpiry.hold(booked.value());
+      }
+      changed(ChangeFeed.BOOKED, booked.value(), it.f1.fid, it.f2 == null ? -1 : it.f2.fid);
+    }
+    return booked;
   }
+  /**
+   * Publish a committed change to one of the current user's reservations
+   *
+   * @param fid1 the first flight, or -1 when the change does not concern seats
+   */
+  private void changed(byte type, int reservationId, int fid1, int fid2) {
+    if (reservationViews != null) {
+      if (type == ChangeFeed.BOOKED) {
+        // resolved here so the views are never locked while a flight is loaded
+        try {
+          reservationViews.changed(type, currentUser, reservationId, flightStore().get(fid1),
+                  fid2 < 0 ? null : flightStore().get(fid2));
+        } catch (SQLException e) {
+          e.printStackTrace();
+          reservationViews.invalidate(currentUser);
+        }
+      } else {
+        reservationViews.changed(type, currentUser, reservationId, null, null);
+      }
+    }
+    if (changeFeed != null) {
+      changeFeed.publish(type, currentUser, reservationId, fid1, fid2);
+    }
+  }
+  /**
+   * Set the bits of {@code days} in the current user's booked days inside the open transaction
+   *
+   * @return false if any of the days is booked already
+   */
+  private boolean claimBookedDays(int days) throws SQLException {
+    if (!bookedDays.claim(currentUser, days, this::loadBookedDays)) {
+      // the copy may be out of date, so the column decides
+      bookedDays.invalidate(currentUser);
+      if (!bookedDays.claim(currentUser, days, this::loadBookedDays)) {
+        return false;
+      }
+    }
+    claimBookedDaysStatement.clearParameters();
+    claimBookedDaysStatement.setInt(1, days);
+    claimBookedDaysStatement.setString(2, currentUser);
+    claimBookedDaysStatement.setInt(3, days);
+    if (claimBookedDaysStatement.executeUpdate() == 0) {
+      // booked by another process
+      bookedDays.invalidate(currentUser);
+      return false;
+    }
+    return true;
+  }
+  private int loadBookedDays() throws SQLException {
+    bookedDaysStatement.clearParameters();
+    bookedDaysStatement.setString(1, currentUser);
+    try (ResultSet results = bookedDaysStatement.executeQuery()) {
+      return results.next() ? results.getInt("booked_days") : 0;
+    }
+  }
+  /**
+   * Clear a cancelled reservation's day from the current user's booked days inside the open
+   * transaction
+   */
+  private void releaseBookedDay(int dayOfMonth) throws SQLException {
+    if (bookedDays != null) {
+      releaseBookedDayStatement.clearParameters();
+      releaseBookedDayStatement.setInt(1, BookedDays.bit(dayOfMonth));
+      releaseBookedDayStatement.setString(2, currentUser);
+      releaseBookedDayStatement.executeUpdate();
+    }
+  }
+  /**
+   * Insert a reservation for the current user inside the open transaction
+   *
+   * @return the new reservation ID
+   */
+  private int insertReservation(int itineraryId, Itinerary it) throws SQLException {
+    int nextReserve;
+    numReservationsStatement.clearParameters();
+    ResultSet numRes = numReservationsStatement.executeQuery();
+    if(numRes.next()) {
+      nextReserve = numRes.getInt("count");
+    } else {
+      nextReserve = 0;
+    }
+    numRes.close();
+    createReservationStatement.clearParameters();
+    createReservationStatement.setInt(1, 0);
+    createReservationStatement.setInt(2, 0);
+    createReservationStatement.setString(3, currentUser);
+    createReservationStatement.setInt(4, itineraryId);
+    createReservationStatement.setInt(5, it.price);
+    createReservationStatement.setInt(6, it.day);
+    createReservationStatement.setInt(7, it.f1.fid);
+    setFid(createReservationStatement, 8, it.f2);
+    createReservationStatement.executeUpdate();
+    return nextReserve + 1;
+  }
+  /**
+   * Booking against the in-memory seat inventory, called inside the transaction once the same-day
+   * check passed. Seats are taken before the insert and given back if it does not commit.
+   */
+  private QueryResult<Integer> bookWithInventory(int itineraryId, Itinerary it) throws SQLException {
+    if (!seatInventory.reserve(it.f1.fid, this::remainingSeats)) {
+      rollbackTransaction();
+      return QueryResult.failed("Booking failed\n");
+    }
+    if (it.f2 != null && !seatInventory.reserve(it.f2.fid, this::remainingSeats)) {
+      seatInventory.release(it.f1.fid);
+      rollbackTransaction();
+      return QueryResult.failed("Booking failed\n");
+    }
+    try {
+      int reservationId = insertReservation(itineraryId, it);
+      commitTransaction();
+      recordSeats(it.f1.fid, it.f2 == null ? -1 : it.f2.fid, 1);
+      return held(QueryResult.ok("Booked flight(s), reservation ID: " + reservationId + "\n", reservationId), it);
+    } catch (SQLException e) {
+      rollbackTransaction();
+      seatInventory.release(it.f1.fid);
+      if (it.f2 != null) {
+        seatInventory.release(it.f2.fid);
+      }
+      if (isDeadLock(e)) {
+        return book(itineraryId);
+      }
+      e.printStackTrace();
+      return QueryResult.failed("Booking failed\n");
+    }
+  }
+  /**
+   * Seats left on a flight according to the database: capacity minus active reservations
+   */
+  private int remainingSeats(int fid) throws SQLException {
+    countActiveSeatsStatement.clearParameters();
+    countActiveSeatsStatement.setInt(1, fid);
+    countActiveSeatsStatement.setInt(2, fid);
+    try (ResultSet results = countActiveSeatsStatement.executeQuery()) {
+      results.next();
+      return checkFlightCapacity(fid) - results.getInt("count");
+    }
+  }
+  /**
+   * Queue a committed seat change for write-behind to FlightSeats
+   */
+  private static void recordSeats(int fid1, int fid2, int delta) {
+    try {
+      seatWriteBehind.record(fid1, delta);
+      if (fid2 >= 0) {
+        seatWriteBehind.record(fid2, delta);
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+  /**
+   * Sharded booking, called inside the shard transaction once the same-day check passed. Seats and
+   * the reservation ID are taken on the coordinator first and given back if the shard insert fails.
+   */
+  private QueryResult<Integer> bookOnShard(int itineraryId, Itinerary it) throws SQLException {
+    int fid2 = it.f2 == null ? -1 : it.f2.fid;
+    int capacity2 = it.f2 == null ? 0 : it.f2.capacity;
+    int reservationId = coordinator.reserve(it.f1.fid, it.f1.capacity, fid2, capacity2);
+    if (reservationId < 0) {
+      rollbackTransaction();
+      return QueryResult.failed("Booking failed\n");
+    }
+    try {
+      createReservationWithIdStatement.clearParameters();
+      createReservationWithIdStatement.setInt(1, reservationId);
+      createReservationWithIdStatement.setInt(2, 0);
+      createReservationWithIdStatement.setInt(3, 0);
+      createReservationWithIdStatement.setString(4, currentUser);
+      createReservationWithIdStatement.setInt(5, itineraryId);
+      createReservationWithIdStatement.setInt(6, it.price);
+      createReservationWithIdStatement.setInt(7, it.day);
+      createReservationWithIdStatement.setInt(8, it.f1.fid);
+      setFid(createReservationWithIdStatement, 9, it.f2);
+      createReservationWithIdStatement.executeUpdate();
+      commitTransaction();
+      changed(ChangeFeed.BOOKED, reservationId, it.f1.fid, fid2);
+      return QueryResult.ok("Booked flight(s), reservation ID: " + reservationId + "\n", reservationId);
+    } catch (SQLException e) {
+      rollbackTransaction();
+      coordinator.release(it.f1.fid, fid2);
+      if (isDeadLock(e)) {
+        return book(itineraryId);
+      }
+      e.printStackTrace();
+      return QueryResult.failed("Booking failed\n");
+    }
+  }
+
+  private static void setFid(PreparedStatement statement, int index, Flight flight) throws SQLException {
+    if (flight == null) {
+      statement.setNull(index, Types.INTEGER);
+    } else {
+      statement.setInt(index, flight.fid);
+    }
+  }
+
+  /**
+   * Implements the group booking function: book several itineraries from the current search in
+   * one transaction, all or nothing.
+   *
+   * Capacity of every leg and the same-day rule for every day are each checked with one query, the
+   * reservation IDs are allocated as one consecutive block, and the reservations are inserted in
+   * one batch. With sharding or the seat inventory, the seats are taken from the coordinator or
+   * the inventory before the insert and given back if it does not commit; with the journal, the
+   * bookings are logged as one record.
+   *
+   * @param itineraryIds IDs of itineraries returned by search in the current session, at most one
+   *                     per day
+   *
+   * @return the same failure messages as {@link #book}; if booking succeeded, one "Booked
+   *         flight(s), reservation ID: [reservationId]\n" line per itinerary, in the given order.
+   */
+  public QueryResult<List<Integer>> bookGroup(List<Integer> itineraryIds) {
+    if (currentUser == null) {
+      return QueryResult.failed("Cannot book reservations, not logged in\n");
+    }
+    List<Itinerary> group = new ArrayList<>();
+    Set<Integer> days = new HashSet<>();
+    for (int itineraryId : itineraryIds) {
+      if (itineraries == null || itineraryId >= itineraries.size() || itineraryId < 0) {
+        return QueryResult.failed("No such itinerary " + itineraryId + "\n");
+      }
+      Itinerary it;
+      try {
+        it = itinerary(itineraryId);
+      } catch (IndexOutOfBoundsException e) {
+        return QueryResult.failed("No such itinerary " + itineraryId + "\n");
+      } catch (SQLException e) {
+        e.printStackTrace();
+        return QueryResult.failed("Booking failed\n");
+      }
+      if (!days.add(it.day)) {
+        return QueryResult.failed("You cannot book two flights in the same day\n");
+      }
+      group.add(it);
+    }
+    if (group.isEmpty()) {
+      return QueryResult.failed("Booking failed\n");
+    }
+    if (reservationJournal != null) {
+      return journalBookGroup(itineraryIds, group);
+    }
+    // seats needed per flight
+    Map<Integer, Integer> needed = new HashMap<>();
+    for (Itinerary it : group) {
+      needed.merge(it.f1.fid, 1, Integer::sum);
+      if (it.f2 != null) {
+        needed.merge(it.f2.fid, 1, Integer::sum);
+      }
+    }
+    // seats taken outside the transaction, given back unless it commits
+    List<Integer> shardReservationIds = new ArrayList<>();
+    List<Integer> inventorySeats = new ArrayList<>();
+    boolean committed = false;
+    try {
+      beginTransaction();
+      if (coordinator == null && seatInventory == null) {
+        groupBookedSeatsStatement.clearParameters();
+        groupBookedSeatsStatement.setString(1, joinInts(needed.keySet()));
+        try (ResultSet seats = groupBookedSeatsStatement.executeQuery()) {
+          while (seats.next()) {
+            if (seats.getInt("capacity") - seats.getInt("booked") < needed.get(seats.getInt("fid"))) {
+              rollbackTransaction();
+              return QueryResult.failed("Booking failed\n");
+            }
+          }
+        }
+      }
+      if (bookedDays != null) {
+        int mask = 0;
+        for (int day : days) {
+          mask |= BookedDays.bit(day);
+        }
+        if (!claimBookedDays(mask)) {
+          rollbackTransaction();
+          return QueryResult.failed("You cannot book two flights in the same day\n");
+        }
+      } else {
+        groupSameDayStatement.clearParameters();
+        groupSameDayStatement.setString(1, currentUser);
+        groupSameDayStatement.setString(2, joinInts(days));
+        try (ResultSet sameDay = groupSameDayStatement.executeQuery()) {
+          if (sameDay.next()) {
+            rollbackTransaction();
+            return QueryResult.failed("You cannot book two flights in the same day\n");
+          }
+        }
+      }
+      List<Integer> reservationIds = new ArrayList<>();
+      if (coordinator != null) {
+        for (Itinerary it : group) {
+          int reservationId = coordinator.reserve(it.f1.fid, it.f1.capacity, it.f2 == null ? -1 : it.f2.fid,
+                  it.f2 == null ? 0 : it.f2.capacity);
+          if (reservationId < 0) {
+            rollbackTransaction();
+            return QueryResult.failed("Booking failed\n");
+          }
+          shardReservationIds.add(reservationId);
+        }
+        reservationIds.addAll(shardReservationIds);
+      } else {
+        if (seatInventory != null) {
+          for (Map.Entry<Integer, Integer> seats : needed.entrySet()) {
+            for (int n = 0; n < seats.getValue(); n++) {
+              if (!seatInventory.reserve(seats.getKey(), this::remainingSeats)) {
+                rollbackTransaction();
+                return QueryResult.failed("Booking failed\n");
+              }
+              inventorySeats.add(seats.getKey());
+            }
+          }
+        }
+        int firstReservationId;
+        try (ResultSet numRes = numReservationsStatement.executeQuery()) {
+          firstReservationId = numRes.next() ? numRes.getInt("count") + 1 : 1;
+        }
+        for (int i = 0; i < group.size(); i++) {
+          reservationIds.add(firstReservationId + i);
+        }
+      }
+      PreparedStatement insert = coordinator != null ? createReservationWithIdStatement : createReservationStatement;
+      int column = coordinator != null ? 1 : 0;
+      insert.clearParameters();
+      for (int i = 0; i < group.size(); i++) {
+        Itinerary it = group.get(i);
+        if (coordinator != null) {
+          insert.setInt(1, reservationIds.get(i));
+        }
+        insert.setInt(column + 1, 0);
+        insert.setInt(column + 2, 0);
+        insert.setString(column + 3, currentUser);
+        insert.setInt(column + 4, itineraryIds.get(i));
+        insert.setInt(column + 5, it.price);
+        insert.setInt(column + 6, it.day);
+        insert.setInt(column + 7, it.f1.fid);
+        setFid(insert, column + 8, it.f2);
+        insert.addBatch();
+      }
+      insert.executeBatch();
+      commitTransaction();
+      committed = true;
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < group.size(); i++) {
+        int reservationId = reservationIds.get(i);
+        Itinerary it = group.get(i);
+        if (seatInventory != null) {
+          recordSeats(it.f1.fid, it.f2 == null ? -1 : it.f2.fid, 1);
+        }
+        if (holdExpiry != null) {
+          holdExpiry.hold(reservationId);
+        }
+        changed(ChangeFeed.BOOKED, reservationId, it.f1.fid, it.f2 == null ? -1 : it.f2.fid);
+        sb.append("Booked flight(s), reservation ID: " + reservationId + "\n");
+      }
+      return QueryResult.ok(sb.toString(), reservationIds);
+    } catch (SQLException e) {
+      try {
+        rollbackTransaction();
+      } catch (SQLException rollbackErr) {
+        rollbackErr.printStackTrace();
+      }
+      // before a retry, which may need them
+      giveBackGroupSeats(shardReservationIds, group, inventorySeats);
+      shardReservationIds.clear();
+      inventorySeats.clear();
+      if (isDeadLock(e) && maxDeadlock > 0) {
+        maxDeadlock--;
+        return bookGroup(itineraryIds);
+      }
+      e.printStackTrace();
+      return QueryResult.failed("Booking failed\n");
+    } finally {
+      if (!committed) {
+        giveBackGroupSeats(shardReservationIds, group, inventorySeats);
+      }
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Give back the seats a group booking took from the coordinator or the seat inventory
+   *
+   * @param shardReservationIds the coordinator reservations, one per itinerary of {@code group}
+   */
+  private void giveBackGroupSeats(List<Integer> shardReservationIds, List<Itinerary> group,
+                                  List<Integer> inventorySeats) {
+    for (int i = 0; i < shardReservationIds.size(); i++) {
+      Itinerary it = group.get(i);
+      try {
+        coordinator.release(it.f1.fid, it.f2 == null ? -1 : it.f2.fid);
+      } catch (SQLException e) {
+        e.printStackTrace();
+      }
+    }
+    for (int fid : inventorySeats) {
+      seatInventory.release(fid);
+    }
+  }
+
+  /**
+   * Journal mode group booking: every check is made and every booking applied under the journal
+   * lock, and the bookings are logged as one {@link ReservationJournal#group} record
+   */
+  private QueryResult<List<Integer>> journalBookGroup(List<Integer> itineraryIds, List<Itinerary> group) {
+    CompletableFuture<Void> durable;
+    List<Integer> reservationIds = new ArrayList<>();
+    synchronized (reservationJournal) {
+      ReservationState state = reservationJournal.state();
+      // seats needed so far per flight
+      Map<Integer, Integer> needed = new HashMap<>();
+      for (Itinerary it : group) {
+        if (state.bookedSeats(it.f1.fid) + needed.merge(it.f1.fid, 1, Integer::sum) > it.f1.capacity) {
+          return QueryResult.failed("Booking failed\n");
+        }
+        if (it.f2 != null && state.bookedSeats(it.f2.fid) + needed.merge(it.f2.fid, 1, Integer::sum) > it.f2.capacity) {
+          return QueryResult.failed("Booking failed\n");
+        }
+      }
+      for (Itinerary it : group) {
+        if (state.hasBookingOnDay(currentUser, it.day)) {
+          return QueryResult.failed("You cannot book two flights in the same day\n");
+        }
+      }
+      List<byte[]> events = new ArrayList<>();
+      for (int i = 0; i < group.size(); i++) {
+        Itinerary it = group.get(i);
+        int reservationId = state.nextReservationId() + i;
+        reservationIds.add(reservationId);
+        events.add(ReservationJournal.booked(reservationId, currentUser, itineraryIds.get(i), it.price, it.day,
+                it.f1.fid, it.f2 == null ? -1 : it.f2.fid));
+      }
+      durable = reservationJournal.append(ReservationJournal.group(events));
+    }
+    try {
+      durable.join();
+    } catch (CompletionException e) {
+      e.printStackTrace();
+      return QueryResult.failed("Booking failed\n");
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < group.size(); i++) {
+      Itinerary it = group.get(i);
+      changed(ChangeFeed.BOOKED, reservationIds.get(i), it.f1.fid, it.f2 == null ? -1 : it.f2.fid);
+      sb.append("Booked flight(s), reservation ID: " + reservationIds.get(i) + "\n");
+    }
+    return QueryResult.ok(sb.toString(), reservationIds);
+  }
+
+  private static String joinInts(Collection<Integer> values) {
+    StringBuilder sb = new StringBuilder();
+    for (int value : values) {
+      if (sb.length() > 0) {
+        sb.append(',');
+      }
+      sb.append(value);
+    }
+    return sb.toString();
+  }
+
   /**
    * Implements the pay function.
    *
@@ -503,9 +1890,15 @@ public class Query {
    *         If successful, return "Paid reservation: [reservationId] remaining balance:
    *         [balance]\n" where [balance] is the remaining balance in the user's account.
    */
-  public String transaction_pay(int reservationId) {
+  public QueryResult<Integer> pay(int reservationId) {
     if(currentUser == null) {
-      return "Cannot pay, not logged in\n";
+      return QueryResult.failed("Cannot pay, not logged in\n");
+    }
+    if (reservationJournal != null) {
+      return journalPay(reservationId);
+    }
+    if (accountLedger != null) {
+      return ledgerPay(reservationId);
     }
     try {
       beginTransaction();
@@ -517,7 +1910,7 @@ public class Query {
       if(!reservationResult.next()) {
         commitTransaction();
         reservationResult.close();
-        return "Cannot find unpaid reservation " + reservationId + " under user: " + currentUser + "\n";
+        return QueryResult.failed("Cannot find unpaid reservation " + reservationId + " under user: " + currentUser + "\n");
       } else {
         int reservationPrice = reservationResult.getInt("price");
         // find balance in user account
@@ -531,7 +1924,7 @@ public class Query {
         int newUserBalance = userBalance - reservationPrice;
         if(newUserBalance < 0) {
           rollbackTransaction();
-          return "User has only " + userBalance + " in account but itinerary costs " + reservationPrice + "\n";
+          return QueryResult.failed("User has only " + userBalance + " in account but itinerary costs " + reservationPrice + "\n");
         }
         // update user balance
         updateUserBalanceStatement.clearParameters();
@@ -546,11 +1939,12 @@ public class Query {
         updatePayStatusStatement.executeUpdate();
         // Complete pay
         commitTransaction();
-        return "Paid reservation: " + reservationId + " remaining balance: " + newUserBalance + "\n";
+        changed(ChangeFeed.PAID, reservationId, -1, -1);
+        return QueryResult.ok("Paid reservation: " + reservationId + " remaining balance: " + newUserBalance + "\n", newUserBalance);
       }
     } catch(SQLException e) {
       e.printStackTrace();
-      return "Failed to pay reservation " + reservationId + "\n";
+      return QueryResult.failed("Failed to pay reservation " + reservationId + "\n");
     } finally {
       checkDanglingTransaction();
     }
@@ -573,9 +1967,15 @@ public class Query {
    *
    * @see Flight#toString()
    */
-  public String transaction_reservations() {
+  public QueryResult<Void> reservations() {
     if(currentUser == null) {
-      return "Cannot view reservations, not logged in\n";
+      return QueryResult.failed("Cannot view reservations, not logged in\n");
+    }
+    if (reservationJournal != null) {
+      return journalReservations();
+    }
+    if (reservationViews != null) {
+      return viewReservations();
     }
     try {
       beginTransaction();
@@ -587,22 +1987,60 @@ public class Query {
         String resId = reservations.getString("id");
         String ifPaid = (reservations.getInt("paid") == 1) ? "true" : "false";
         sb.append("Reservation " + resId + " paid: " + ifPaid + ":\n");
-        Itinerary currIt = itineraries.get(reservations.getInt("itineraryId"));
-        if(currIt == null) {
-          rollbackTransaction();
-          return "Failed to retrieve reservations\n";
-        }
-        sb.append(currIt.f1.toString() + "\n");
-        if(currIt.f2 != null) {
-          sb.append(currIt.f2.toString() + "\n");
+        // from the reservation's own flights, since the session may have searched again since
+        int fid1 = reservations.getInt("fid1");
+        int fid2 = reservations.getInt("fid2");
+        boolean direct = reservations.wasNull();
+        sb.append(flightStore().get(fid1).toString() + "\n");
+        if (!direct) {
+          sb.append(flightStore().get(fid2).toString() + "\n");
         }
       }
       reservations.close();
       commitTransaction();
-      return sb.toString();
+      return QueryResult.ok(sb.toString(), null);
     } catch(SQLException e) {
       e.printStackTrace();
-      return "Failed to retrieve reservations\n";
+      return QueryResult.failed("Failed to retrieve reservations\n");
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+  /**
+   * Reservations from the user's {@link ReservationViews} view, loading it on a miss. Flights are
+   * rendered from the reservation's fids rather than the session's search results.
+   */
+  private QueryResult<Void> viewReservations() {
+    String cached = reservationViews.get(currentUser);
+    if (cached != null) {
+      return QueryResult.ok(cached, null);
+    }
+    ReservationViews.View view = reservationViews.loading(currentUser);
+    try {
+      beginTransaction();
+      searchReservationsForUserStatement.clearParameters();
+      searchReservationsForUserStatement.setString(1, currentUser);
+      try (ResultSet reservations = searchReservationsForUserStatement.executeQuery()) {
+        while (reservations.next()) {
+          int id = reservations.getInt("id");
+          boolean paid = reservations.getInt("paid") == 1;
+          int fid1 = reservations.getInt("fid1");
+          int fid2 = reservations.getInt("fid2");
+          boolean direct = reservations.wasNull();
+          view.add(id, paid, flightStore().get(fid1), direct ? null : flightStore().get(fid2));
+        }
+      }
+      commitTransaction();
+      return QueryResult.ok(reservationViews.install(currentUser, view), null);
+    } catch (SQLException e) {
+      e.printStackTrace();
+      reservationViews.abandon(currentUser, view);
+      try {
+        rollbackTransaction();
+      } catch (SQLException err) {
+        err.printStackTrace();
+      }
+      return QueryResult.failed("Failed to retrieve reservations\n");
     } finally {
       checkDanglingTransaction();
     }
@@ -615,15 +2053,20 @@ public class Query {
    * @return If no user has logged in, then return "Cannot cancel reservations, not logged in\n" For
    *         all other errors, return "Failed to cancel reservation [reservationId]\n"
    *
-   *         If successful, return "Canceled reservation [reservationId]\n"
+   *         If successful, return "Canceled reservation [reservationId]\n". A paid reservation is
+   *         refunded to the user's balance, whichever persistence mode is on.
    *
    *         Even though a reservation has been canceled, its ID should not be reused by the system.
    */
-  public String transaction_cancel(int reservationId) {
+  public QueryResult<Void> cancel(int reservationId) {
     try {
       if (currentUser == null) {
-        return "Cannot cancel reservations, not logged in\n";
-      }	else {
+        return QueryResult.failed("Cannot cancel reservations, not logged in\n");
+      }	else if (reservationJournal != null) {
+        return journalCancel(reservationId);
+      } else if (accountLedger != null) {
+        return ledgerCancel(reservationId);
+      } else {
         beginTransaction();
         searchUserBalanceStatement.clearParameters();
         searchUserBalanceStatement.setString(1, currentUser);
@@ -637,18 +2080,45 @@ public class Query {
         ResultSet currBalance = searchReservationId.executeQuery();
         if (!currBalance.next() || currBalance.getInt("cancelled") != 0) {
           rollbackTransaction();
-          return "Failed to cancel reservation " + reservationId + "\n";
+          return QueryResult.failed("Failed to cancel reservation " + reservationId + "\n");
+        }
+        int fid1 = currBalance.getInt("fid1");
+        int fid2 = currBalance.getInt("fid2");
+        if (currBalance.wasNull()) {
+          fid2 = -1;
         }
-        Itinerary currIt = itineraries.get(currBalance.getInt("itineraryId"));
+        int day = currBalance.getInt("dayofmonth");
+        boolean paid = currBalance.getInt("paid") == 1;
+        int price = currBalance.getInt("price");
         currBalance.close();
-        updateUserBalanceStatement.setInt(1, userBalance + currIt.price);
+        if (paid) {
+          // refunded, as by the ledger and the journal
+          updateUserBalanceStatement.clearParameters();
+          updateUserBalanceStatement.setInt(1, userBalance + price);
+          updateUserBalanceStatement.setString(2, currentUser);
+          updateUserBalanceStatement.executeUpdate();
+        }
         updateCancelledStatusStatement.clearParameters();
         updateCancelledStatusStatement.setInt(1, 1);
         updateCancelledStatusStatement.setString(2, currentUser);
         updateCancelledStatusStatement.setInt(3, reservationId);
         updateCancelledStatusStatement.executeUpdate();
+        releaseBookedDay(day);
         commitTransaction();
-        return "Canceled reservation " + reservationId + "\n";
+        if (bookedDays != null) {
+          bookedDays.release(currentUser, BookedDays.bit(day));
+        }
+        changed(ChangeFeed.CANCELLED, reservationId, fid1, fid2);
+        if (coordinator != null) {
+          coordinator.release(fid1, fid2);
+        } else if (seatInventory != null) {
+          seatInventory.release(fid1);
+          if (fid2 >= 0) {
+            seatInventory.release(fid2);
+          }
+          recordSeats(fid1, fid2, -1);
+        }
+        return QueryResult.ok("Canceled reservation " + reservationId + "\n", null);
       }
     } catch(SQLException e) {
       try {
@@ -657,14 +2127,282 @@ public class Query {
         e.printStackTrace();
       }
       if(isDeadLock(e)) {
-        return transaction_cancel(reservationId);
+        return cancel(reservationId);
       }
-      return "Failed to cancel reservation " + reservationId + "\n";
+      return QueryResult.failed("Failed to cancel reservation " + reservationId + "\n");
     } finally {
       checkDanglingTransaction();
     }
   }
 
+  /**
+   * Journal persistence mode: reservations and balances live in the ReservationJournal. Each
+   * operation checks and appends under the journal lock, then waits for the group commit.
+   */
+  private void openJournalAccount(String username, int balance, boolean replace) {
+    CompletableFuture<Void> durable = null;
+    synchronized (reservationJournal) {
+      if (replace || reservationJournal.state().account(username) == null) {
+        durable = reservationJournal.append(ReservationJournal.accountOpened(username, balance));
+      }
+    }
+    if (durable != null) {
+      durable.join();
+    }
+  }
+
+  private QueryResult<Integer> journalBook(int itineraryId, Itinerary it) {
+    CompletableFuture<Void> durable;
+    int reservationId;
+    synchronized (reservationJournal) {
+      ReservationState state = reservationJournal.state();
+      if (state.bookedSeats(it.f1.fid) >= it.f1.capacity
+              || (it.f2 != null && state.bookedSeats(it.f2.fid) >= it.f2.capacity)) {
+        return QueryResult.failed("Booking failed\n");
+      }
+      if (state.hasBookingOnDay(currentUser, it.day)) {
+        return QueryResult.failed("You cannot book two flights in the same day\n");
+      }
+      reservationId = state.nextReservationId();
+      durable = reservationJournal.append(ReservationJournal.booked(reservationId, currentUser, itineraryId,
+              it.price, it.day, it.f1.fid, it.f2 == null ? -1 : it.f2.fid));
+    }
+    try {
+      durable.join();
+    } catch (CompletionException e) {
+      e.printStackTrace();
+      return QueryResult.failed("Booking failed\n");
+    }
+    changed(ChangeFeed.BOOKED, reservationId, it.f1.fid, it.f2 == null ? -1 : it.f2.fid);
+    return QueryResult.ok("Booked flight(s), reservation ID: " + reservationId + "\n", reservationId);
+  }
+
+  /**
+   * Ledger mode: the balance is checked and changed in the {@link AccountLedger}, and the
+   * reservation is only updated once the ledger entry is durable. An update that fails is undone
+   * with a reversal entry.
+   */
+  private QueryResult<Integer> ledgerPay(int reservationId) {
+    try {
+      beginTransaction();
+      searchUsernameWithReservationUnpaidStatement.clearParameters();
+      searchUsernameWithReservationUnpaidStatement.setInt(1, reservationId);
+      searchUsernameWithReservationUnpaidStatement.setString(2, currentUser);
+      int price;
+      try (ResultSet reservation = searchUsernameWithReservationUnpaidStatement.executeQuery()) {
+        if (!reservation.next()) {
+          commitTransaction();
+          return QueryResult.failed("Cannot find unpaid reservation " + reservationId + " under user: " + currentUser + "\n");
+        }
+        price = reservation.getInt("price");
+      }
+      AccountLedger.Entry debit = accountLedger.debit(currentUser, reservationId, price, this::loadBalance);
+      if (!debit.isOk()) {
+        rollbackTransaction();
+        return QueryResult.failed("User has only " + debit.balance() + " in account but itinerary costs " + price + "\n");
+      }
+      // if the debit is not logged the ledger takes it back, so there is nothing to reverse
+      debit.durable().join();
+      try {
+        updatePayStatusStatement.clearParameters();
+        updatePayStatusStatement.setInt(1, 1);
+        updatePayStatusStatement.setString(2, currentUser);
+        updatePayStatusStatement.setInt(3, reservationId);
+        updatePayStatusStatement.executeUpdate();
+        commitTransaction();
+      } catch (SQLException e) {
+        accountLedger.credit(currentUser, reservationId, price, AccountLedger.REVERSAL, this::loadBalance);
+        accountLedger.settle(debit);
+        throw e;
+      }
+      accountLedger.settle(debit);
+      changed(ChangeFeed.PAID, reservationId, -1, -1);
+      return QueryResult.ok("Paid reservation: " + reservationId + " remaining balance: " + debit.balance() + "\n",
+              debit.balance());
+    } catch (SQLException | CompletionException e) {
+      try {
+        rollbackTransaction();
+      } catch (SQLException rollbackErr) {
+        rollbackErr.printStackTrace();
+      }
+      if (e instanceof SQLException && isDeadLock((SQLException) e)) {
+        return ledgerPay(reservationId);
+      }
+      e.printStackTrace();
+      return QueryResult.failed("Failed to pay reservation " + reservationId + "\n");
+    } finally {
+      checkDanglingTransaction();
+    }
+  }
+
+  /**
+   * Ledger mode cancel: a paid reservation is refunded through the {@link AccountLedger} before it
+   * is marked cancelled
+   */
+  private QueryResult<Void> ledgerCancel(int reservationId) throws SQLException {
+    beginTransaction();
+    searchReservationId.clearParameters();
+    searchReservationId.setString(1, currentUser);
+    searchReservationId.setInt(2, reservationId);
+    boolean paid;
+    int price;
+    int day;
+    int fid1;
+    int fid2;
+    try (ResultSet reservation = searchReservationId.executeQuery()) {
+      if (!reservation.next() || reservation.getInt("cancelled") != 0) {
+        rollbackTransaction();
+        return QueryResult.failed("Failed to cancel reservation " + reservationId + "\n");
+      }
+      paid = reservation.getInt("paid") == 1;
+      price = reservation.getInt("price");
+      day = reservation.getInt("dayofmonth");
+      fid1 = reservation.getInt("fid1");
+      fid2 = reservation.getInt("fid2");
+      if (reservation.wasNull()) {
+        fid2 = -1;
+      }
+    }
+    AccountLedger.Entry refund = null;
+    if (paid) {
+      refund = accountLedger.credit(currentUser, reservationId, price, AccountLedger.REFUND, this::loadBalance);
+      try {
+        refund.durable().join();
+      } catch (CompletionException e) {
+        // not logged, and already taken back by the ledger; cancel rolls back
+        throw new SQLException("Refund was not logged", e);
+      }
+    }
+    try {
+      updateCancelledStatusStatement.clearParameters();
+      updateCancelledStatusStatement.setInt(1, 1);
+      updateCancelledStatusStatement.setString(2, currentUser);
+      updateCancelledStatusStatement.setInt(3, reservationId);
+      updateCancelledStatusStatement.executeUpdate();
+      releaseBookedDay(day);
+      commitTransaction();
+    } catch (SQLException e) {
+      if (refund != null) {
+        accountLedger.credit(currentUser, reservationId, -price, AccountLedger.REVERSAL, this::loadBalance);
+        accountLedger.settle(refund);
+      }
+      throw e;
+    }
+    if (refund != null) {
+      accountLedger.settle(refund);
+    }
+    if (bookedDays != null) {
+      bookedDays.release(currentUser, BookedDays.bit(day));
+    }
+    changed(ChangeFeed.CANCELLED, reservationId, fid1, fid2);
+    if (seatInventory != null) {
+      seatInventory.release(fid1);
+      if (fid2 >= 0) {
+        seatInventory.release(fid2);
+      }
+      recordSeats(fid1, fid2, -1);
+    }
+    return QueryResult.ok("Canceled reservation " + reservationId + "\n", null);
+  }
+
+  /**
+   * A user's balance in Users, for loading it into the ledger
+   */
+  private int loadBalance(String username) throws SQLException {
+    searchUserBalanceStatement.clearParameters();
+    searchUserBalanceStatement.setString(1, username);
+    try (ResultSet balance = searchUserBalanceStatement.executeQuery()) {
+      if (!balance.next()) {
+        throw new SQLException("No user " + username);
+      }
+      return balance.getInt("balance");
+    }
+  }
+
+  private QueryResult<Integer> journalPay(int reservationId) {
+    CompletableFuture<Void> durable;
+    int newBalance;
+    synchronized (reservationJournal) {
+      ReservationState state = reservationJournal.state();
+      ReservationState.Reservation r = state.reservation(reservationId);
+      if (r == null || !r.username.equals(currentUser) || r.paid || r.cancelled) {
+        return QueryResult.failed("Cannot find unpaid reservation " + reservationId + " under user: " + currentUser + "\n");
+      }
+      int balance = state.account(currentUser).balance;
+      if (balance < r.price) {
+        return QueryResult.failed("User has only " + balance + " in account but itinerary costs " + r.price + "\n");
+      }
+      durable = reservationJournal.append(ReservationJournal.paid(reservationId));
+      newBalance = state.account(currentUser).balance;
+    }
+    try {
+      durable.join();
+    } catch (CompletionException e) {
+      e.printStackTrace();
+      return QueryResult.failed("Failed to pay reservation " + reservationId + "\n");
+    }
+    changed(ChangeFeed.PAID, reservationId, -1, -1);
+    return QueryResult.ok("Paid reservation: " + reservationId + " remaining balance: " + newBalance + "\n", newBalance);
+  }
+
+  private QueryResult<Void> journalCancel(int reservationId) {
+    CompletableFuture<Void> durable;
+    ReservationState.Reservation r;
+    synchronized (reservationJournal) {
+      r = reservationJournal.state().reservation(reservationId);
+      if (r == null || !r.username.equals(currentUser) || r.cancelled) {
+        return QueryResult.failed("Failed to cancel reservation " + reservationId + "\n");
+      }
+      durable = reservationJournal.append(ReservationJournal.cancelled(reservationId));
+    }
+    try {
+      durable.join();
+    } catch (CompletionException e) {
+      e.printStackTrace();
+      return QueryResult.failed("Failed to cancel reservation " + reservationId + "\n");
+    }
+    changed(ChangeFeed.CANCELLED, reservationId, r.fid1, r.fid2);
+    return QueryResult.ok("Canceled reservation " + reservationId + "\n", null);
+  }
+
+  private QueryResult<Void> journalReservations() {
+    List<ReservationState.Reservation> mine;
+    synchronized (reservationJournal) {
+      ReservationState.Account account = reservationJournal.state().account(currentUser);
+      mine = account == null ? Collections.emptyList() : new ArrayList<>(account.reservations);
+    }
+    StringBuilder sb = new StringBuilder();
+    try {
+      for (ReservationState.Reservation r : mine) {
+        sb.append("Reservation " + r.id + " paid: " + r.paid + ":\n");
+        sb.append(findFlight(r.fid1).toString() + "\n");
+        if (r.fid2 >= 0) {
+          sb.append(findFlight(r.fid2).toString() + "\n");
+        }
+      }
+    } catch (SQLException e) {
+      e.printStackTrace();
+      return QueryResult.failed("Failed to retrieve reservations\n");
+    }
+    return QueryResult.ok(sb.toString(), null);
+  }
+
+  /**
+   * Look up one flight by fid, from the flight store or else the routed read connections
+   */
+  private Flight findFlight(int fid) throws SQLException {
+    return flightStore().get(fid);
+  }
+
+  /**
+   * Write the journal's balances and reservations into the SQL tables, for reporting
+   */
+  public void replayJournalIntoTables() throws SQLException {
+    if (reservationJournal != null) {
+      reservationJournal.replayInto(conn);
+    }
+  }
+
   /**
    * PRIVATE METHODS
    */
@@ -678,11 +2416,12 @@ public class Query {
       directFlightStatement.setString(2, originCity);
       directFlightStatement.setString(3, destinationCity);
       directFlightStatement.setInt(4, dayOfMonth);
+      FlightMapper.fetchSize(directFlightStatement, numberOfItineraries);
       try {
         ResultSet results = directFlightStatement.executeQuery();
         while (results.next()) {
           Flight[] container = new Flight[1];
-          Flight currFlight = getFlightFromResultSet(results);
+          Flight currFlight = directMapper.map(results, flightStore);
           itineraries.add(new Itinerary(currFlight, null));
           container[0] = currFlight;
           listOfFlights.add(container);
@@ -717,33 +2456,12 @@ public class Query {
       indirectFlightStatement.setString(2, originCity);
       indirectFlightStatement.setString(3, destinationCity);
       indirectFlightStatement.setInt(4, dayOfMonth);
+      FlightMapper.fetchSize(indirectFlightStatement, numberOfItineraries);
       try {
         ResultSet results = indirectFlightStatement.executeQuery();
         while (results.next()) {
-          Flight[] container = new Flight[2];
-          Flight firstFlight = new Flight();
-          Flight secondFlight = new Flight();
-          firstFlight.fid = results.getInt("Ffid");
-          firstFlight.dayOfMonth = results.getInt("Fday_of_month");
-          firstFlight.carrierId = results.getString("Fcarrier_id");
-          firstFlight.flightNum = results.getString("Fflight_num");
-          firstFlight.originCity = results.getString("Forigin_city");
-          firstFlight.destCity = results.getString("Fdest_city");
-          firstFlight.time = results.getInt("Factual_time");
-          firstFlight.capacity = results.getInt("Fcapacity");
-          firstFlight.price = results.getInt("Fprice");
-          container[0] = firstFlight;
-          secondFlight.fid = results.getInt("F2fid");
-          secondFlight.dayOfMonth = results.getInt("Fday_of_month");
-          secondFlight.carrierId = results.getString("F2carrier_id");
-          secondFlight.flightNum = results.getString("F2flight_num");
-          secondFlight.originCity = results.getString("Fdest_city");
-          secondFlight.destCity = results.getString("F2dest_city");
-          secondFlight.time = results.getInt("F2actual_time");
-          secondFlight.capacity = results.getInt("F2capacity");
-          secondFlight.price = results.getInt("F2price");
-          itineraries.add(new Itinerary(firstFlight, secondFlight));
-          container[1] = secondFlight;
+          Flight[] container = {firstLegMapper.map(results, flightStore), secondLegMapper.map(results, flightStore)};
+          itineraries.add(new Itinerary(container[0], container[1]));
           listOfFlights.add(container);
         }
         results.close();
@@ -761,23 +2479,197 @@ public class Query {
     return findIndirectFlights(originCity, destinationCity, dayOfMonth, numberOfItineraries);
   }
 
-  private Flight getFlightFromResultSet(ResultSet results) {
-    Flight flight = new Flight();
-    try {
-      flight.fid = results.getInt("fid");
-      flight.dayOfMonth = results.getInt("day_of_month");
-      flight.carrierId = results.getString("carrier_id");
-      flight.flightNum = results.getString("flight_num");
-      flight.originCity = results.getString("origin_city");
-      flight.destCity = results.getString("dest_city");
-      flight.time = results.getInt("actual_time");
-      flight.capacity = results.getInt("capacity");
-      flight.price = results.getInt("price");
-    } catch (SQLException e) {
-      e.printStackTrace();
+  /**
+   * Single-day search on the given connection, ranked the same way as transaction_search
+   */
+  private List<Itinerary> searchDay(Connection c, String originCity, String destinationCity,
+                                    boolean directFlight, int dayOfMonth, int numberOfItineraries)
+          throws SQLException {
+    try (PreparedStatement direct = c.prepareStatement(DIRECT_FLIGHTS);
+         PreparedStatement indirect = c.prepareStatement(INDIRECT_FLIGHTS)) {
+      return searchDay(direct, indirect, originCity, destinationCity, directFlight, dayOfMonth,
+              numberOfItineraries);
+    }
+  }
+
+  /**
+   * Single-day search with already prepared DIRECT_FLIGHTS and INDIRECT_FLIGHTS statements
+   */
+  private List<Itinerary> searchDay(PreparedStatement direct, PreparedStatement indirect,
+                                    String originCity, String destinationCity, boolean directFlight,
+                                    int dayOfMonth, int numberOfItineraries) throws SQLException {
+    List<Itinerary> found = new ArrayList<>();
+    searchDay(direct, indirect, originCity, destinationCity, directFlight, dayOfMonth, numberOfItineraries,
+            found::add);
+    return found;
+  }
+
+  /**
+   * Receives a search's itineraries in ranked order
+   */
+  private interface ItinerarySink {
+    /**
+     * @return false to stop the search
+     */
+    boolean accept(Itinerary itinerary);
+  }
+
+  /**
+   * Single-day search handing each itinerary to {@code sink} as soon as its rank is final.
+   *
+   * Both queries return rows ordered by total time, so the direct flights (read first, since their
+   * count bounds the indirect query) are merged into the indirect rows as those stream in. Ties go
+   * to direct flights, the same order as a stable sort of direct followed by indirect results.
+   */
+  private void searchDay(PreparedStatement direct, PreparedStatement indirect, String originCity,
+                         String destinationCity, boolean directFlight, int dayOfMonth,
+                         int numberOfItineraries, ItinerarySink sink) throws SQLException {
+    List<Itinerary> directItineraries = new ArrayList<>();
+    // statements may be shared between calls but not threads, so each call maps its own
+    FlightMapper directMapper = FlightMapper.flight();
+    direct.clearParameters();
+    direct.setInt(1, numberOfItineraries);
+    direct.setString(2, originCity);
+    direct.setString(3, destinationCity);
+    direct.setInt(4, dayOfMonth);
+    FlightMapper.fetchSize(direct, numberOfItineraries);
+    try (ResultSet results = direct.executeQuery()) {
+      while (results.next()) {
+        Itinerary it = new Itinerary(directMapper.map(results, flightStore), null);
+        if (directFlight) {
+          if (!sink.accept(it)) {
+            return;
+          }
+        } else {
+          directItineraries.add(it);
+        }
+      }
+    }
+    int next = 0;
+    int remainingItineraries = numberOfItineraries - directItineraries.size();
+    if (!directFlight && remainingItineraries > 0) {
+      indirect.clearParameters();
+      indirect.setInt(1, remainingItineraries);
+      indirect.setString(2, originCity);
+      indirect.setString(3, destinationCity);
+      indirect.setInt(4, dayOfMonth);
+      FlightMapper.fetchSize(indirect, remainingItineraries);
+      FlightMapper firstLegMapper = FlightMapper.firstLeg();
+      FlightMapper secondLegMapper = FlightMapper.secondLeg();
+      try (ResultSet results = indirect.executeQuery()) {
+        while (results.next()) {
+          Itinerary it = new Itinerary(firstLegMapper.map(results, flightStore),
+                  secondLegMapper.map(results, flightStore));
+          while (next < directItineraries.size() && directItineraries.get(next).totalTime <= it.totalTime) {
+            if (!sink.accept(directItineraries.get(next++))) {
+              return;
+            }
+          }
+          if (!sink.accept(it)) {
+            return;
+          }
+        }
+      }
+    }
+    while (next < directItineraries.size()) {
+      if (!sink.accept(directItineraries.get(next++))) {
+        return;
+      }
+    }
+  }
+
+  private static void appendItineraries(StringBuilder sb, List<Itinerary> itineraries) {
+    for(int i = 0; i < itineraries.size(); i++) {
+      appendItinerary(sb, i, itineraries.get(i));
+    }
+  }
+
+  /**
+   * Append one itinerary in the search output format
+   */
+  static void appendItinerary(StringBuilder sb, int index, Itinerary it) {
+    sb.append("Itinerary " + index + ": "+ it.numFlights + " flight(s), " + it.totalTime +
+            " minutes\n");
+    sb.append(it.f1.toString() + "\n");
+    if(it.numFlights == 2) {
+      sb.append(it.f2.toString() + "\n");
+    }
+  }
+
+  /**
+   * Itinerary {@code index} of this session's search results, with a failure to load its flights
+   * thrown as the SQLException it is rather than the unchecked one of {@link List#get}
+   */
+  private Itinerary itinerary(int index) throws SQLException {
+    List<Itinerary> results = itineraries;
+    return results instanceof SearchResults ? ((SearchResults) results).itinerary(index) : results.get(index);
+  }
+
+  /**
+   * Keep a search's itineraries as this session's bookable results, in compact form
+   */
+  private void keepSearchResults(List<Itinerary> found) {
+    itineraries = SearchResults.of(found, flightStore());
+  }
+
+  private FlightStore flightStore() {
+    synchronized (Query.class) {
+      if (flightStore == null) {
+        // flights never change, so the replica's lag does not matter here
+        ConnectionPool pool = ReadRouter.isConfigured(AppConfig.get()) ? replicaSearchPool() : searchPool();
+        flightStore = new FlightStore(AppConfig.get().getInt("flightapp.flight_store.max_flights", 200000), fid -> {
+          Connection c = pool.borrow();
+          try (PreparedStatement statement = c.prepareStatement(SEARCH_FLIGHT_SQL)) {
+            statement.setInt(1, fid);
+            try (ResultSet results = statement.executeQuery()) {
+              if (!results.next()) {
+                throw new SQLException("No flight with fid " + fid);
+              }
+              return FlightMapper.flight().map(results, null);
+            }
+          } finally {
+            pool.release(c);
+          }
+        });
+      }
+      return flightStore;
+    }
+  }
+
+  private ConnectionPool searchPool() {
+    synchronized (Query.class) {
+      if (searchPool == null) {
+        int size = AppConfig.get().getInt("flightapp.search_pool_size", 8);
+        searchPool = new ConnectionPool(this::openConnection, size);
+      }
+      return searchPool;
+    }
+  }
+
+  private ConnectionPool replicaSearchPool() {
+    synchronized (Query.class) {
+      if (replicaSearchPool == null) {
+        AppConfig config = AppConfig.get();
+        replicaSearchPool = new ConnectionPool(() -> ReadRouter.openReplica(config),
+                config.getInt("flightapp.search_pool_size", 8));
+      }
+      return replicaSearchPool;
+    }
+  }
+
+  private ExecutorService searchExecutor() {
+    synchronized (Query.class) {
+      if (searchExecutor == null) {
+        searchExecutor = Executors.newFixedThreadPool(searchPool().maxSize(), r -> {
+          Thread t = new Thread(r, "search-range");
+          t.setDaemon(true);
+          return t;
+        });
+      }
+      return searchExecutor;
     }
-    return flight;
   }
+
   /**
    * Example utility function that uses prepared statements
    */
@@ -791,35 +2683,38 @@ public class Query {
     return capacity;
   }
   // Passwords Stuff
-  private String[] generateHash(String password) {
+  static String[] generateHash(String password) {
     // Generate a random cryptographic salt
     SecureRandom random = new SecureRandom();
     byte[] salt = new byte[16];
     random.nextBytes(salt);
     return generateHash(password, salt);
   }
-  private String[] generateHash(String password, byte[] salt) {
+  static String[] generateHash(String password, byte[] salt) {
     // Specify the hash parameters
     KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
     // Generate the hash
     SecretKeyFactory factory = null;
     byte[] hash = null;
+    Tracer.Span span = Tracer.start("hash");
     try {
       factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
       hash = factory.generateSecret(spec).getEncoded();
     } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
       throw new IllegalStateException();
+    } finally {
+      Tracer.end(span);
     }
     return new String[]{encodeHexString(hash), encodeHexString(salt)};
   }
   // Methods taken from https://www.baeldung.com/java-byte-arrays-hex-strings
   // Takes an array of bytes and converts that into a hexadecimal string
-  public String encodeHexString(byte[] bytes) {
+  public static String encodeHexString(byte[] bytes) {
     BigInteger bigInteger = new BigInteger(1, bytes);
     return bigInteger.toString(16);
   }
   // Takes a hexadecimal string and converts it into a byte array
-  public byte[] decodeHexString(String hexString) {
+  public static byte[] decodeHexString(String hexString) {
     byte[] byteArray = new BigInteger(hexString, 16)
             .toByteArray();
     if (byteArray[0] == 0) {
@@ -865,13 +2760,18 @@ public class Query {
       throw new IllegalStateException("Database error", e);
     }
   }
-  private static boolean isDeadLock(SQLException ex) {
-    return ex.getErrorCode() == 1205;
+  static boolean isDeadLock(SQLException ex) {
+    if (ex.getErrorCode() != 1205) {
+      return false;
+    }
+    // callers retry on a deadlock
+    Tracer.event("deadlock retry");
+    return true;
   }
   /**
    * A class to store flight information.
    */
-  class Flight {
+  public static class Flight {
     public int fid;
     public int dayOfMonth;
     public String carrierId;
@@ -891,7 +2791,7 @@ public class Query {
   /**
    * A class to store itinerary information.
    */
-  class Itinerary  {
+  public static class Itinerary {
     public Flight f1;
     public Flight f2;
     public int day;
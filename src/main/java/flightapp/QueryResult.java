@@ -0,0 +1,45 @@
+package flightapp;
+
+/**
+ * Outcome of one {@link Query} operation.
+ *
+ * {@link #message()} is exactly the text the matching {@code transaction_*} method returns;
+ * {@link #value()} carries the structured result of a successful call (the itineraries of a search,
+ * a reservation ID, a remaining balance) and is null otherwise.
+ */
+public class QueryResult<T> {
+  private final boolean ok;
+  private final String message;
+  private final T value;
+
+  private QueryResult(boolean ok, String message, T value) {
+    this.ok = ok;
+    this.message = message;
+    this.value = value;
+  }
+
+  public static <T> QueryResult<T> ok(String message, T value) {
+    return new QueryResult<>(true, message, value);
+  }
+
+  public static <T> QueryResult<T> failed(String message) {
+    return new QueryResult<>(false, message, null);
+  }
+
+  public boolean isOk() {
+    return ok;
+  }
+
+  public String message() {
+    return message;
+  }
+
+  public T value() {
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return message;
+  }
+}
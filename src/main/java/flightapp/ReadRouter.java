@@ -0,0 +1,146 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.function.Supplier;
+
+/**
+ * Routes read-only flight lookups to a read replica while writes stay on the primary connection.
+ *
+ * The replica is configured with the {@code flightapp.replica.*} keys in dbconn.properties. Replica
+ * connections are shared by every Query through one {@link ConnectionPool}, and each read borrows
+ * one and prepares its statements on it. Reads run in autocommit mode at READ COMMITTED (or
+ * SNAPSHOT) isolation so they never take range locks on the primary. When
+ * {@code flightapp.replica.max_staleness_seconds} is set, the replication lag is probed on the
+ * primary and reads fall back to the primary while the replica is too far behind or its lag cannot
+ * be determined.
+ */
+public class ReadRouter implements AutoCloseable {
+  /**
+   * A read run on a borrowed replica connection
+   */
+  public interface Read<T> {
+    T run(Connection replica) throws SQLException;
+  }
+
+  /** SQLServerConnection.TRANSACTION_SNAPSHOT */
+  static final int TRANSACTION_SNAPSHOT = 0x1000;
+
+  private static final String DEFAULT_LAG_SQL =
+          "SELECT MAX(replication_lag_sec) AS lag FROM sys.dm_geo_replication_link_status";
+
+  private final Connection primary;
+  private final ConnectionPool replicas;
+  private final int maxStalenessSeconds;
+  private final long lagCheckMillis;
+  private final String lagSql;
+
+  private PreparedStatement lagStatement;
+  private long lastLagCheck;
+  private boolean replicaFresh = true;
+
+  private ReadRouter(Connection primary, ConnectionPool replicas, AppConfig config) {
+    this.primary = primary;
+    this.replicas = replicas;
+    this.maxStalenessSeconds = config.getInt("flightapp.replica.max_staleness_seconds", -1);
+    this.lagCheckMillis = config.getLong("flightapp.replica.lag_check_ms", 1000);
+    this.lagSql = config.getString("flightapp.replica.lag_sql", DEFAULT_LAG_SQL);
+  }
+
+  /**
+   * Return a router for the given primary connection, or null if no replica is configured
+   *
+   * @param replicas the shared pool of {@link #openReplica} connections, only asked for if a
+   *                 replica is configured
+   */
+  public static ReadRouter create(Connection primary, Supplier<ConnectionPool> replicas, AppConfig config) {
+    if (!isConfigured(config)) {
+      return null;
+    }
+    return new ReadRouter(primary, replicas.get(), config);
+  }
+
+  public static boolean isConfigured(AppConfig config) {
+    return config.getString("flightapp.replica.server_url", null) != null;
+  }
+
+  /**
+   * Open a new read-only connection to the configured replica
+   */
+  public static Connection openReplica(AppConfig config) throws SQLException {
+    Connection conn = Query.openConnectionFromCredential(
+            config.getString("flightapp.replica.server_url", null),
+            config.getString("flightapp.replica.database_name", null),
+            config.getString("flightapp.replica.username", null),
+            config.getString("flightapp.replica.password", null));
+    conn.setReadOnly(true);
+    if (config.getString("flightapp.replica.isolation", "read_committed").equalsIgnoreCase("snapshot")) {
+      conn.setTransactionIsolation(TRANSACTION_SNAPSHOT);
+    } else {
+      conn.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+    }
+    return conn;
+  }
+
+  /**
+   * Whether the next read should go to the replica. Re-checks replication lag at most once per
+   * {@code flightapp.replica.lag_check_ms}.
+   */
+  public boolean useReplica() {
+    if (maxStalenessSeconds < 0) {
+      return true;
+    }
+    long now = System.currentTimeMillis();
+    if (now - lastLagCheck >= lagCheckMillis) {
+      lastLagCheck = now;
+      replicaFresh = probeLag();
+    }
+    return replicaFresh;
+  }
+
+  /**
+   * The shared replica connections
+   */
+  public ConnectionPool replicas() {
+    return replicas;
+  }
+
+  /**
+   * Run {@code read} on a replica connection borrowed from the shared pool
+   */
+  public <T> T read(Read<T> read) throws SQLException {
+    Connection replica = replicas.borrow();
+    try {
+      return read.run(replica);
+    } finally {
+      replicas.release(replica);
+    }
+  }
+
+  private boolean probeLag() {
+    try {
+      if (lagStatement == null) {
+        lagStatement = primary.prepareStatement(lagSql);
+      }
+      try (ResultSet rs = lagStatement.executeQuery()) {
+        if (!rs.next()) {
+          return false;
+        }
+        int lag = rs.getInt("lag");
+        return !rs.wasNull() && lag <= maxStalenessSeconds;
+      }
+    } catch (SQLException e) {
+      // Unknown lag: stay on the primary
+      return false;
+    }
+  }
+
+  /**
+   * Close this router's lag probe; the replica pool is shared and stays open
+   */
+  @Override
+  public void close() throws SQLException {
+    if (lagStatement != null) {
+      lagStatement.close();
+    }
+  }
+}
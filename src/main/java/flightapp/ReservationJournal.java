@@ -0,0 +1,455 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of account and reservation events, used instead of the Users.balance column and
+ * the Reservations table when {@code flightapp.persistence = journal}.
+ *
+ * Callers synchronize on the journal, check and {@link #append} an event while holding the lock,
+ * then wait on the returned future outside it. A single writer thread drains queued events,
+ * writes them with one write and one fsync (group commit) and completes their futures. If a write
+ * fails, the writer takes the lock, cuts the log back to what was last synced and rebuilds the
+ * state from disk, so every event not yet durable is undone and its future fails.
+ *
+ * Every {@code snapshotEvery} events the state is written to a snapshot together with the log
+ * offset it covers. Recovery loads the snapshot and replays only the log after that offset.
+ *
+ * Log records are [int length][byte type][payload][int crc32]; a torn record at the tail is
+ * dropped on recovery.
+ */
+public class ReservationJournal implements AutoCloseable {
+  static final byte ACCOUNT_OPENED = 1;
+  static final byte BOOKED = 2;
+  static final byte PAID = 3;
+  static final byte CANCELLED = 4;
+  static final byte GROUP = 5;
+
+  private static final String LOG_FILE = "reservations.log";
+  private static final String SNAPSHOT_FILE = "reservations.snapshot";
+  private static final int SNAPSHOT_MAGIC = 0x464c5331;
+
+  private static final String UPDATE_BALANCE_SQL = "UPDATE Users SET balance = ? WHERE username = ?";
+  private static final String CLEAR_RESERVATIONS_SQL = "DELETE FROM Reservations";
+  private static final String INSERT_RESERVATION_SQL = "SET IDENTITY_INSERT Reservations ON; "
+          + "INSERT INTO Reservations (id, paid, cancelled, username, itineraryId, price, dayofmonth, fid1, fid2) "
+          + "VALUES (?,?,?,?,?,?,?,?,?); SET IDENTITY_INSERT Reservations OFF;";
+
+  private static class Pending {
+    // null for a snapshot or reset marker
+    final ByteBuffer record;
+    final boolean reset;
+    final CompletableFuture<Void> durable = new CompletableFuture<>();
+
+    Pending(ByteBuffer record) {
+      this(record, false);
+    }
+
+    Pending(ByteBuffer record, boolean reset) {
+      this.record = record;
+      this.reset = reset;
+    }
+  }
+
+  private final Path directory;
+  private final FileChannel log;
+  private final int snapshotEvery;
+  private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  private ReservationState state;
+  private int sinceSnapshot;
+  // log size as of the last fsync, only used by the writer thread
+  private long durableSize;
+  private volatile boolean closed;
+
+  public ReservationJournal(Path directory, int snapshotEvery) throws IOException {
+    this.directory = directory;
+    this.snapshotEvery = snapshotEvery;
+    Files.createDirectories(directory);
+    this.log = FileChannel.open(directory.resolve(LOG_FILE), StandardOpenOption.CREATE,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+    recover();
+    this.durableSize = log.size();
+    this.writer = new Thread(this::writeLoop, "reservation-journal");
+    writer.setDaemon(true);
+    writer.start();
+  }
+
+  /**
+   * Current state. Only read or change it while synchronized on this journal.
+   */
+  public ReservationState state() {
+    return state;
+  }
+
+  public static byte[] accountOpened(String username, int balance) {
+    return encode(ACCOUNT_OPENED, out -> {
+      out.writeUTF(username);
+      out.writeInt(balance);
+    });
+  }
+
+  public static byte[] booked(int id, String username, int itineraryId, int price, int day, int fid1, int fid2) {
+    return encode(BOOKED, out -> {
+      out.writeInt(id);
+      out.writeUTF(username);
+      out.writeInt(itineraryId);
+      out.writeInt(price);
+      out.writeInt(day);
+      out.writeInt(fid1);
+      out.writeInt(fid2);
+    });
+  }
+
+  public static byte[] paid(int id) {
+    return encode(PAID, out -> out.writeInt(id));
+  }
+
+  public static byte[] cancelled(int id) {
+    return encode(CANCELLED, out -> out.writeInt(id));
+  }
+
+  /**
+   * Several events in one record, so they are applied, logged and undone together
+   */
+  public static byte[] group(List<byte[]> events) {
+    return encode(GROUP, out -> {
+      out.writeInt(events.size());
+      for (byte[] event : events) {
+        out.writeInt(event.length);
+        out.write(event);
+      }
+    });
+  }
+
+  /**
+   * Apply an event to the state and queue it for the log. Must be called while synchronized on
+   * this journal so events are logged in the order they were applied.
+   *
+   * @return completes once the event is on disk, or fails once it has been undone
+   */
+  public CompletableFuture<Void> append(byte[] event) {
+    if (closed) {
+      throw new IllegalStateException("Journal is closed");
+    }
+    apply(state, event);
+    Pending pending = new Pending(frame(event));
+    queue.add(pending);
+    if (++sinceSnapshot >= snapshotEvery) {
+      sinceSnapshot = 0;
+      // the snapshot covers everything queued so far, so write it from the writer thread
+      queue.add(new Pending(null));
+    }
+    return pending.durable;
+  }
+
+  /**
+   * Rewrite Users.balance and the Reservations table from the journal, for reporting
+   */
+  public void replayInto(Connection conn) throws SQLException {
+    List<ReservationState.Reservation> reservations;
+    Map<String, Integer> balances = new HashMap<>();
+    synchronized (this) {
+      reservations = new ArrayList<>(state.allReservations());
+      for (String username : state.usernames()) {
+        balances.put(username, state.account(username).balance);
+      }
+    }
+    reservations.sort(Comparator.comparingInt(r -> r.id));
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    try (PreparedStatement balance = conn.prepareStatement(UPDATE_BALANCE_SQL);
+         Statement clear = conn.createStatement();
+         PreparedStatement insert = conn.prepareStatement(INSERT_RESERVATION_SQL)) {
+      for (Map.Entry<String, Integer> entry : balances.entrySet()) {
+        balance.setInt(1, entry.getValue());
+        balance.setString(2, entry.getKey());
+        balance.addBatch();
+      }
+      balance.executeBatch();
+      clear.executeUpdate(CLEAR_RESERVATIONS_SQL);
+      for (ReservationState.Reservation r : reservations) {
+        insert.setInt(1, r.id);
+        insert.setInt(2, r.paid ? 1 : 0);
+        insert.setInt(3, r.cancelled ? 1 : 0);
+        insert.setString(4, r.username);
+        insert.setInt(5, r.itineraryId);
+        insert.setInt(6, r.price);
+        insert.setInt(7, r.day);
+        insert.setInt(8, r.fid1);
+        if (r.fid2 >= 0) {
+          insert.setInt(9, r.fid2);
+        } else {
+          insert.setNull(9, Types.INTEGER);
+        }
+        insert.executeUpdate();
+      }
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Drop all state and start an empty log. Only used when clearing tables.
+   */
+  public void reset() throws IOException {
+    // the writer truncates once everything queued before the marker is written; waiting outside
+    // the lock leaves it free for the writer to recover from a failed write
+    Pending marker = new Pending(null, true);
+    synchronized (this) {
+      state = new ReservationState();
+      sinceSnapshot = 0;
+      queue.add(marker);
+    }
+    try {
+      marker.durable.join();
+    } catch (CompletionException e) {
+      throw new IOException("Failed to reset the journal", e.getCause());
+    }
+  }
+
+  private void writeLoop() {
+    List<Pending> batch = new ArrayList<>();
+    while (!closed || !queue.isEmpty()) {
+      try {
+        Pending first = queue.poll(100, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        queue.drainTo(batch);
+        writeBatch(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException e) {
+        e.printStackTrace();
+        undoUnwritten(batch, e);
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * After a failed write, drop every event that is not on disk from the log and the state and
+   * fail its future. If the state cannot be rebuilt, the journal refuses further events.
+   */
+  private void undoUnwritten(List<Pending> batch, IOException cause) {
+    synchronized (this) {
+      // appends hold the lock, so everything applied but unwritten is in the batch or the queue
+      queue.drainTo(batch);
+      try {
+        log.truncate(durableSize);
+        state = replayLog(loadSnapshotState(), loadSnapshotOffset(), log.size());
+      } catch (IOException e) {
+        e.printStackTrace();
+        closed = true;
+      }
+    }
+    for (Pending p : batch) {
+      p.durable.completeExceptionally(cause);
+    }
+  }
+
+  private void writeBatch(List<Pending> batch) throws IOException {
+    List<Pending> written = new ArrayList<>();
+    for (Pending p : batch) {
+      if (p.reset) {
+        sync(written);
+        log.truncate(0);
+        Files.deleteIfExists(directory.resolve(SNAPSHOT_FILE));
+        durableSize = 0;
+        p.durable.complete(null);
+      } else if (p.record == null) {
+        // flush what came before, then snapshot at this offset
+        sync(written);
+        writeSnapshot();
+      } else {
+        while (p.record.hasRemaining()) {
+          log.write(p.record, log.size());
+        }
+        written.add(p);
+      }
+    }
+    sync(written);
+  }
+
+  private void sync(List<Pending> written) throws IOException {
+    if (written.isEmpty()) {
+      return;
+    }
+    log.force(false);
+    durableSize = log.size();
+    for (Pending p : written) {
+      p.durable.complete(null);
+    }
+    written.clear();
+  }
+
+  private void writeSnapshot() throws IOException {
+    long offset = log.size();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(SNAPSHOT_MAGIC);
+      out.writeLong(offset);
+      // replay the log up to offset from the previous snapshot, since the live state may already
+      // include events queued after this marker
+      replayLog(loadSnapshotState(), loadSnapshotOffset(), offset).writeTo(out);
+    }
+    Path tmp = directory.resolve(SNAPSHOT_FILE + ".tmp");
+    try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(ByteBuffer.wrap(bytes.toByteArray()));
+      channel.force(true);
+    }
+    Files.move(tmp, directory.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private void recover() throws IOException {
+    long offset = loadSnapshotOffset();
+    state = replayLog(loadSnapshotState(), offset, log.size());
+  }
+
+  private ReservationState loadSnapshotState() throws IOException {
+    Path snapshot = directory.resolve(SNAPSHOT_FILE);
+    if (!Files.exists(snapshot)) {
+      return new ReservationState();
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+      in.readInt();
+      in.readLong();
+      return ReservationState.readFrom(in);
+    }
+  }
+
+  private long loadSnapshotOffset() throws IOException {
+    Path snapshot = directory.resolve(SNAPSHOT_FILE);
+    if (!Files.exists(snapshot)) {
+      return 0;
+    }
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshot))) {
+      if (in.readInt() != SNAPSHOT_MAGIC) {
+        throw new IOException("Not a reservation snapshot: " + snapshot);
+      }
+      return in.readLong();
+    }
+  }
+
+  /**
+   * Apply the log records in [from, to) to {@code state}, truncating a torn tail record
+   */
+  private ReservationState replayLog(ReservationState state, long from, long to) throws IOException {
+    long position = from;
+    ByteBuffer header = ByteBuffer.allocate(4);
+    while (position + 4 <= to) {
+      header.clear();
+      readFully(header, position);
+      int length = header.getInt();
+      if (length <= 0 || position + 4 + length + 4 > to) {
+        break;
+      }
+      ByteBuffer body = ByteBuffer.allocate(length + 4);
+      readFully(body, position + 4);
+      byte[] event = new byte[length];
+      body.get(event);
+      CRC32 crc = new CRC32();
+      crc.update(event);
+      if ((int) crc.getValue() != body.getInt()) {
+        break;
+      }
+      apply(state, event);
+      position += 4 + length + 4;
+    }
+    if (position < log.size() && to == log.size()) {
+      log.truncate(position);
+    }
+    return state;
+  }
+
+  private void readFully(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (log.read(buffer, position + buffer.position()) < 0) {
+        throw new EOFException();
+      }
+    }
+    buffer.flip();
+  }
+
+  private static void apply(ReservationState state, byte[] event) {
+    try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(event))) {
+      switch (in.readByte()) {
+        case ACCOUNT_OPENED:
+          state.openAccount(in.readUTF(), in.readInt());
+          break;
+        case BOOKED:
+          state.book(in.readInt(), in.readUTF(), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                  in.readInt());
+          break;
+        case PAID:
+          state.pay(in.readInt());
+          break;
+        case CANCELLED:
+          state.cancel(in.readInt());
+          break;
+        case GROUP:
+          for (int count = in.readInt(); count > 0; count--) {
+            byte[] member = new byte[in.readInt()];
+            in.readFully(member);
+            apply(state, member);
+          }
+          break;
+        default:
+          throw new IllegalStateException("Unknown journal event");
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private interface EventWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  private static byte[] encode(byte type, EventWriter writer) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(type);
+      writer.write(out);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static ByteBuffer frame(byte[] event) {
+    CRC32 crc = new CRC32();
+    crc.update(event);
+    ByteBuffer record = ByteBuffer.allocate(4 + event.length + 4);
+    record.putInt(event.length).put(event).putInt((int) crc.getValue());
+    record.flip();
+    return record;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    log.close();
+  }
+}
@@ -0,0 +1,182 @@
+package flightapp;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * In-memory accounts and reservations rebuilt from the {@link ReservationJournal}.
+ *
+ * Not thread safe; callers synchronize on the owning journal.
+ */
+public class ReservationState {
+  /**
+   * A user's balance and reservations
+   */
+  public static class Account {
+    public int balance;
+    public final List<Reservation> reservations = new ArrayList<>();
+
+    Account(int balance) {
+      this.balance = balance;
+    }
+  }
+
+  /**
+   * One booked itinerary
+   */
+  public static class Reservation {
+    public final int id;
+    public final String username;
+    public final int itineraryId;
+    public final int price;
+    public final int day;
+    public final int fid1;
+    public final int fid2;
+    public boolean paid;
+    public boolean cancelled;
+
+    Reservation(int id, String username, int itineraryId, int price, int day, int fid1, int fid2) {
+      this.id = id;
+      this.username = username;
+      this.itineraryId = itineraryId;
+      this.price = price;
+      this.day = day;
+      this.fid1 = fid1;
+      this.fid2 = fid2;
+    }
+  }
+
+  private final Map<String, Account> accounts = new HashMap<>();
+  private final Map<Integer, Reservation> reservations = new HashMap<>();
+  private final Map<Integer, Integer> bookedSeats = new HashMap<>();
+  private int lastReservationId;
+
+  public Account account(String username) {
+    return accounts.get(username);
+  }
+
+  public Reservation reservation(int id) {
+    return reservations.get(id);
+  }
+
+  public int nextReservationId() {
+    return lastReservationId + 1;
+  }
+
+  /**
+   * Active reservations holding a seat on {@code fid}
+   */
+  public int bookedSeats(int fid) {
+    return bookedSeats.getOrDefault(fid, 0);
+  }
+
+  /**
+   * Whether the user has an active reservation on {@code day}
+   */
+  public boolean hasBookingOnDay(String username, int day) {
+    Account account = accounts.get(username);
+    if (account == null) {
+      return false;
+    }
+    for (Reservation r : account.reservations) {
+      if (!r.cancelled && r.day == day) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  void openAccount(String username, int balance) {
+    accounts.put(username, new Account(balance));
+  }
+
+  void book(int id, String username, int itineraryId, int price, int day, int fid1, int fid2) {
+    Reservation r = new Reservation(id, username, itineraryId, price, day, fid1, fid2);
+    reservations.put(id, r);
+    accounts.computeIfAbsent(username, u -> new Account(0)).reservations.add(r);
+    lastReservationId = Math.max(lastReservationId, id);
+    bookedSeats.merge(fid1, 1, Integer::sum);
+    if (fid2 >= 0) {
+      bookedSeats.merge(fid2, 1, Integer::sum);
+    }
+  }
+
+  void pay(int id) {
+    Reservation r = reservations.get(id);
+    r.paid = true;
+    accounts.get(r.username).balance -= r.price;
+  }
+
+  void cancel(int id) {
+    Reservation r = reservations.get(id);
+    r.cancelled = true;
+    if (r.paid) {
+      accounts.get(r.username).balance += r.price;
+    }
+    bookedSeats.merge(r.fid1, -1, Integer::sum);
+    if (r.fid2 >= 0) {
+      bookedSeats.merge(r.fid2, -1, Integer::sum);
+    }
+  }
+
+  Collection<String> usernames() {
+    return accounts.keySet();
+  }
+
+  Collection<Reservation> allReservations() {
+    return reservations.values();
+  }
+
+  void writeTo(DataOutputStream out) throws IOException {
+    out.writeInt(lastReservationId);
+    out.writeInt(accounts.size());
+    for (Map.Entry<String, Account> entry : accounts.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue().balance);
+    }
+    out.writeInt(reservations.size());
+    for (Reservation r : reservations.values()) {
+      out.writeInt(r.id);
+      out.writeUTF(r.username);
+      out.writeInt(r.itineraryId);
+      out.writeInt(r.price);
+      out.writeInt(r.day);
+      out.writeInt(r.fid1);
+      out.writeInt(r.fid2);
+      out.writeBoolean(r.paid);
+      out.writeBoolean(r.cancelled);
+    }
+  }
+
+  static ReservationState readFrom(DataInputStream in) throws IOException {
+    ReservationState state = new ReservationState();
+    int lastReservationId = in.readInt();
+    int accountCount = in.readInt();
+    for (int i = 0; i < accountCount; i++) {
+      state.openAccount(in.readUTF(), in.readInt());
+    }
+    int reservationCount = in.readInt();
+    List<Reservation> loaded = new ArrayList<>();
+    for (int i = 0; i < reservationCount; i++) {
+      Reservation r = new Reservation(in.readInt(), in.readUTF(), in.readInt(), in.readInt(),
+              in.readInt(), in.readInt(), in.readInt());
+      r.paid = in.readBoolean();
+      r.cancelled = in.readBoolean();
+      loaded.add(r);
+    }
+    // keep each user's reservations in booking order
+    loaded.sort(Comparator.comparingInt(r -> r.id));
+    for (Reservation r : loaded) {
+      state.reservations.put(r.id, r);
+      state.accounts.computeIfAbsent(r.username, u -> new Account(0)).reservations.add(r);
+      if (!r.cancelled) {
+        state.bookedSeats.merge(r.fid1, 1, Integer::sum);
+        if (r.fid2 >= 0) {
+          state.bookedSeats.merge(r.fid2, 1, Integer::sum);
+        }
+      }
+    }
+    state.lastReservationId = lastReservationId;
+    return state;
+  }
+}
@@ -0,0 +1,181 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Per-user materialized views of the {@code reservations} command's output.
+ *
+ * A user's view is read from the Reservations table on the first {@code reservations} after it
+ * was evicted or invalidated, and from then on kept up to date in place by the bookings and
+ * payments this process commits for the user, so repeated calls neither query the database nor
+ * render. The rendered text is kept until the view changes. Cancelled reservations are listed like
+ * the others, as in the table, so a cancellation leaves the view as it is. Views hold the flights
+ * themselves, resolved by the caller before a view is touched, so rendering never waits on the
+ * database while the views are locked.
+ *
+ * At most {@code maxUsers} views are kept, evicting the least recently used. Writes made by other
+ * processes must {@link #invalidate} the user's view, which {@link Query} does from the
+ * {@link ChangeFeed}; without the feed, views are only exact for a single process.
+ */
+public class ReservationViews {
+  /**
+   * One user's reservations, in ID order
+   */
+  static final class View {
+    private int[] ids = new int[4];
+    private boolean[] paid = new boolean[4];
+    private Query.Flight[] flights1 = new Query.Flight[4];
+    private Query.Flight[] flights2 = new Query.Flight[4];
+    private int size;
+    // until installed, a change means the rows being loaded may already be out of date
+    private boolean loaded;
+    private boolean stale;
+    private String rendered;
+
+    /**
+     * Add a reservation row read from the table while loading
+     */
+    void add(int id, boolean isPaid, Query.Flight f1, Query.Flight f2) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, 2 * size);
+        paid = Arrays.copyOf(paid, 2 * size);
+        flights1 = Arrays.copyOf(flights1, 2 * size);
+        flights2 = Arrays.copyOf(flights2, 2 * size);
+      }
+      int at = size;
+      while (at > 0 && ids[at - 1] > id) {
+        at--;
+      }
+      System.arraycopy(ids, at, ids, at + 1, size - at);
+      System.arraycopy(paid, at, paid, at + 1, size - at);
+      System.arraycopy(flights1, at, flights1, at + 1, size - at);
+      System.arraycopy(flights2, at, flights2, at + 1, size - at);
+      ids[at] = id;
+      paid[at] = isPaid;
+      flights1[at] = f1;
+      flights2[at] = f2;
+      size++;
+      rendered = null;
+    }
+
+    private void markPaid(int id) {
+      for (int i = size - 1; i >= 0; i--) {
+        if (ids[i] == id) {
+          paid[i] = true;
+          rendered = null;
+          return;
+        }
+      }
+    }
+
+    private String render() {
+      if (rendered == null) {
+        StringBuilder sb = new StringBuilder(size * 256);
+        for (int i = 0; i < size; i++) {
+          sb.append("Reservation ").append(ids[i]).append(" paid: ").append(paid[i]).append(":\n");
+          sb.append(flights1[i]).append('\n');
+          if (flights2[i] != null) {
+            sb.append(flights2[i]).append('\n');
+          }
+        }
+        rendered = sb.toString();
+      }
+      return rendered;
+    }
+  }
+
+  private final Map<String, View> views;
+
+  public ReservationViews(int maxUsers) {
+    views = new LinkedHashMap<String, View>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, View> eldest) {
+        return size() > maxUsers;
+      }
+    };
+  }
+
+  /**
+   * The rendered reservations of {@code username}, or null if its view must be loaded
+   */
+  public synchronized String get(String username) {
+    View view = views.get(username);
+    return view != null && view.loaded ? view.render() : null;
+  }
+
+  /**
+   * Start loading the view of {@code username}; {@link View#add} its rows, then {@link #install} it
+   */
+  synchronized View loading(String username) {
+    View view = new View();
+    views.put(username, view);
+    return view;
+  }
+
+  /**
+   * Keep a loaded view unless it changed while it was being read
+   *
+   * @return the rendered reservations
+   */
+  synchronized String install(String username, View view) {
+    if (views.get(username) == view) {
+      if (view.stale) {
+        views.remove(username);
+      } else {
+        view.loaded = true;
+      }
+    }
+    return view.render();
+  }
+
+  /**
+   * Forget a view whose load failed
+   */
+  synchronized void abandon(String username, View view) {
+    views.remove(username, view);
+  }
+
+  /**
+   * Apply a change this process committed for {@code username}
+   *
+   * @param type {@link ChangeFeed#BOOKED}, {@link ChangeFeed#PAID} or {@link ChangeFeed#CANCELLED}
+   * @param f1 the first flight of a booking, or null
+   * @param f2 the second flight of a booking, or null
+   */
+  public synchronized void changed(byte type, String username, int reservationId, Query.Flight f1, Query.Flight f2) {
+    View view = views.get(username);
+    if (view == null) {
+      return;
+    }
+    if (!view.loaded) {
+      view.stale = true;
+    } else if (type == ChangeFeed.BOOKED) {
+      view.add(reservationId, false, f1, f2);
+    } else if (type == ChangeFeed.PAID) {
+      view.markPaid(reservationId);
+    }
+  }
+
+  /**
+   * Drop the view of a user written to by another process
+   */
+  public synchronized void invalidate(String username) {
+    View view = views.get(username);
+    if (view != null && !view.loaded) {
+      view.stale = true;
+    } else {
+      views.remove(username);
+    }
+  }
+
+  public synchronized void clear() {
+    for (View view : views.values()) {
+      view.stale = true;
+    }
+    views.values().removeIf(view -> view.loaded);
+  }
+
+  public synchronized int size() {
+    return views.size();
+  }
+}
@@ -0,0 +1,201 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Approximate search counts of (origin, destination, day) routes, for pre-warming caches after a
+ * restart.
+ *
+ * Counts are kept in a count-min sketch: {@code depth} rows of {@code width} counters, each route
+ * adding one to a counter per row chosen by its own hash, and the estimate of a route being the
+ * smallest of its counters. Estimates never undercount, and overcount by a few per cent of all
+ * searches at most, in a fixed few hundred kilobytes however many routes there are. The sketch
+ * cannot list its routes, so the {@code top} most searched ones are tracked beside it.
+ *
+ * {@link #save} writes the sketch to a file, replacing it atomically; {@link #load} reads it back
+ * with every count halved, so routes that are no longer searched fade over restarts.
+ */
+public class RouteSketch {
+  /**
+   * A route and its estimated count
+   */
+  public static final class Route {
+    public final String originCity;
+    public final String destCity;
+    public final int dayOfMonth;
+    final String key;
+    int count;
+
+    Route(String originCity, String destCity, int dayOfMonth, int count) {
+      this.originCity = originCity;
+      this.destCity = destCity;
+      this.dayOfMonth = dayOfMonth;
+      this.key = key(originCity, destCity, dayOfMonth);
+      this.count = count;
+    }
+
+    public int count() {
+      return count;
+    }
+
+    @Override
+    public String toString() {
+      return originCity + " -> " + destCity + " day " + dayOfMonth + ": " + count;
+    }
+  }
+
+  private static final int MAGIC = 0x52534b31;
+
+  private final int depth;
+  private final int width;
+  private final AtomicIntegerArray counters;
+  private final int top;
+  // the most searched routes by key, and the smallest count among them once full
+  private final Map<String, Route> heavy = new HashMap<>();
+  private int heavyMin;
+
+  /**
+   * @param width counters per row, rounded up to a power of two
+   */
+  public RouteSketch(int depth, int width, int top) {
+    this.depth = depth;
+    this.width = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+    this.counters = new AtomicIntegerArray(depth * this.width);
+    this.top = top;
+  }
+
+  /**
+   * Count one search of a route
+   */
+  public void add(String originCity, String destCity, int dayOfMonth) {
+    String key = key(originCity, destCity, dayOfMonth);
+    int hash = key.hashCode();
+    int h1 = mix(hash);
+    int h2 = mix(h1 ^ hash) | 1;
+    int estimate = Integer.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      int index = row * width + ((h1 + row * h2) & (width - 1));
+      estimate = Math.min(estimate, counters.incrementAndGet(index));
+    }
+    track(originCity, destCity, dayOfMonth, key, estimate);
+  }
+
+  /**
+   * The estimated number of searches of a route
+   */
+  public int estimate(String originCity, String destCity, int dayOfMonth) {
+    int hash = key(originCity, destCity, dayOfMonth).hashCode();
+    int h1 = mix(hash);
+    int h2 = mix(h1 ^ hash) | 1;
+    int estimate = Integer.MAX_VALUE;
+    for (int row = 0; row < depth; row++) {
+      estimate = Math.min(estimate, counters.get(row * width + ((h1 + row * h2) & (width - 1))));
+    }
+    return estimate;
+  }
+
+  private synchronized void track(String originCity, String destCity, int dayOfMonth, String key, int estimate) {
+    Route route = heavy.get(key);
+    if (route != null) {
+      route.count = Math.max(route.count, estimate);
+      return;
+    }
+    if (heavy.size() >= top) {
+      if (estimate <= heavyMin) {
+        return;
+      }
+      Route smallest = Collections.min(heavy.values(), Comparator.comparingInt(Route::count));
+      if (estimate <= smallest.count) {
+        heavyMin = smallest.count;
+        return;
+      }
+      heavy.remove(smallest.key);
+    }
+    heavy.put(key, new Route(originCity, destCity, dayOfMonth, estimate));
+    if (heavy.size() >= top) {
+      heavyMin = Collections.min(heavy.values(), Comparator.comparingInt(Route::count)).count;
+    }
+  }
+
+  /**
+   * The {@code n} most searched routes, most searched first
+   */
+  public synchronized List<Route> top(int n) {
+    List<Route> routes = new ArrayList<>();
+    for (Route route : heavy.values()) {
+      routes.add(new Route(route.originCity, route.destCity, route.dayOfMonth, route.count));
+    }
+    routes.sort(Comparator.comparingInt(Route::count).reversed());
+    return routes.subList(0, Math.min(n, routes.size()));
+  }
+
+  /**
+   * Write the sketch to {@code file} through a temporary file, so a crash leaves the old one
+   */
+  public void save(Path file) throws IOException {
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    List<Route> routes = top(top);
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(depth);
+      out.writeInt(width);
+      for (int i = 0; i < counters.length(); i++) {
+        out.writeInt(counters.get(i));
+      }
+      out.writeInt(routes.size());
+      for (Route route : routes) {
+        out.writeUTF(route.originCity);
+        out.writeUTF(route.destCity);
+        out.writeInt(route.dayOfMonth);
+        out.writeInt(route.count);
+      }
+    }
+    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Add the halved counts saved in {@code file}, if it exists and has this sketch's dimensions
+   *
+   * @return whether anything was loaded
+   */
+  public boolean load(Path file) throws IOException {
+    if (!Files.exists(file)) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+      if (in.readInt() != MAGIC || in.readInt() != depth || in.readInt() != width) {
+        return false;
+      }
+      for (int i = 0; i < counters.length(); i++) {
+        counters.addAndGet(i, in.readInt() / 2);
+      }
+      int routes = in.readInt();
+      for (int i = 0; i < routes; i++) {
+        String originCity = in.readUTF();
+        String destCity = in.readUTF();
+        int dayOfMonth = in.readInt();
+        int count = in.readInt() / 2;
+        if (count > 0) {
+          track(originCity, destCity, dayOfMonth, key(originCity, destCity, dayOfMonth), count);
+        }
+      }
+    }
+    return true;
+  }
+
+  private static String key(String originCity, String destCity, int dayOfMonth) {
+    return originCity + '\n' + destCity + '\n' + dayOfMonth;
+  }
+
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    return h ^ (h >>> 16);
+  }
+}
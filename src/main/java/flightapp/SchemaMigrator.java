@@ -0,0 +1,149 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Applies versioned schema changes at startup when {@code flightapp.migrate = true}.
+ *
+ * Applied versions are recorded in SchemaVersion. Every migration is written to be idempotent, so
+ * it is safe to re-run one whose table was dropped and recreated (see {@link #reapplyAll}). Runs
+ * hold an exclusive application lock so two processes starting together do not race.
+ */
+public class SchemaMigrator {
+  /**
+   * One schema change
+   */
+  public static class Migration {
+    final int version;
+    final String description;
+    final String sql;
+
+    Migration(int version, String description, String sql) {
+      this.version = version;
+      this.description = description;
+      this.sql = sql;
+    }
+  }
+
+  static final List<Migration> MIGRATIONS = Collections.unmodifiableList(Arrays.asList(
+          new Migration(1, "flight ids on reservations",
+                  "IF COL_LENGTH('Reservations', 'fid1') IS NULL ALTER TABLE Reservations ADD fid1 int, fid2 int;"),
+          new Migration(2, "shard coordinator tables",
+                  "IF OBJECT_ID('ReservationIds') IS NULL BEGIN "
+                          + "CREATE TABLE ReservationIds (next_id int NOT NULL); "
+                          + "INSERT INTO ReservationIds VALUES (0); END; "
+                          + "IF OBJECT_ID('FlightSeats') IS NULL "
+                          + "CREATE TABLE FlightSeats (fid int PRIMARY KEY, booked int NOT NULL);"),
+          // SEARCH_USER_RESERVATION_SQL and SEARCH_USER_RESERVATION_DAY_SQL (SELECT * by username,
+          // optionally dayofmonth). The lookup by id and username uses the clustered primary key.
+          new Migration(3, "covering index for reservations by user and day",
+                  "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_Reservations_username_day' "
+                          + "AND object_id = OBJECT_ID('Reservations')) "
+                          + "CREATE INDEX IX_Reservations_username_day ON Reservations (username, dayofmonth) "
+                          + "INCLUDE (itineraryId, paid, cancelled, price, fid1, fid2);"),
+          // COUNT_ACTIVE_SEATS_SQL and the seat recounts
+          new Migration(4, "reservation indexes by flight",
+                  "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_Reservations_fid1' "
+                          + "AND object_id = OBJECT_ID('Reservations')) "
+                          + "CREATE INDEX IX_Reservations_fid1 ON Reservations (fid1) INCLUDE (cancelled); "
+                          + "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_Reservations_fid2' "
+                          + "AND object_id = OBJECT_ID('Reservations')) "
+                          + "CREATE INDEX IX_Reservations_fid2 ON Reservations (fid2) INCLUDE (cancelled);"),
+          // DIRECT_FLIGHTS, and the second leg of INDIRECT_FLIGHTS (dest_city, day, origin = first dest)
+          new Migration(5, "covering index for direct flights",
+                  "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_Flights_route_day' "
+                          + "AND object_id = OBJECT_ID('Flights')) "
+                          + "CREATE INDEX IX_Flights_route_day ON Flights (dest_city, day_of_month, origin_city, actual_time) "
+                          + "INCLUDE (fid, carrier_id, flight_num, capacity, price, canceled);"),
+          // first leg of INDIRECT_FLIGHTS, ordered by actual_time
+          new Migration(6, "covering index for departures by day",
+                  "IF NOT EXISTS (SELECT * FROM sys.indexes WHERE name = 'IX_Flights_origin_day_time' "
+                          + "AND object_id = OBJECT_ID('Flights')) "
+                          + "CREATE INDEX IX_Flights_origin_day_time ON Flights (origin_city, day_of_month, actual_time) "
+                          + "INCLUDE (fid, dest_city, carrier_id, flight_num, capacity, price, canceled);"),
+          // BookedDays; filled in a separate batch since the column does not exist when this one compiles
+          new Migration(7, "booked-day mask on users",
+                  "IF COL_LENGTH('Users', 'booked_days') IS NULL "
+                          + "ALTER TABLE Users ADD booked_days int NOT NULL CONSTRAINT DF_Users_booked_days DEFAULT 0; "
+                          + "EXEC('" + BookedDays.REBUILD_SQL + "');")
+  ));
+
+  private static final String CREATE_VERSION_TABLE_SQL = "IF OBJECT_ID('SchemaVersion') IS NULL "
+          + "CREATE TABLE SchemaVersion (version int PRIMARY KEY, description varchar(200), applied_at datetime2);";
+  private static final String LOCK_SQL = "EXEC sp_getapplock @Resource = 'flightapp-migrations', "
+          + "@LockMode = 'Exclusive', @LockOwner = 'Transaction', @LockTimeout = 60000";
+  private static final String CURRENT_VERSION_SQL = "SELECT ISNULL(MAX(version), 0) AS version FROM SchemaVersion";
+  private static final String RECORD_VERSION_SQL = "INSERT INTO SchemaVersion VALUES (?, ?, SYSUTCDATETIME())";
+
+  private static final Set<String> migratedDatabases = new HashSet<>();
+
+  private final Connection conn;
+
+  public SchemaMigrator(Connection conn) {
+    this.conn = conn;
+  }
+
+  /**
+   * Migrate the database behind {@code conn} once per process
+   */
+  public static void migrateOnce(Connection conn) throws SQLException {
+    String database = conn.getMetaData().getURL() + "/" + conn.getCatalog();
+    synchronized (migratedDatabases) {
+      if (migratedDatabases.add(database)) {
+        new SchemaMigrator(conn).migrate();
+      }
+    }
+  }
+
+  /**
+   * Apply every migration newer than the recorded version
+   *
+   * @return number of migrations applied
+   */
+  public int migrate() throws SQLException {
+    boolean autoCommit = conn.getAutoCommit();
+    conn.setAutoCommit(false);
+    try (Statement statement = conn.createStatement()) {
+      statement.execute(CREATE_VERSION_TABLE_SQL);
+      statement.execute(LOCK_SQL);
+      int current;
+      try (ResultSet rs = statement.executeQuery(CURRENT_VERSION_SQL)) {
+        rs.next();
+        current = rs.getInt("version");
+      }
+      int applied = 0;
+      try (PreparedStatement record = conn.prepareStatement(RECORD_VERSION_SQL)) {
+        for (Migration migration : MIGRATIONS) {
+          if (migration.version <= current) {
+            continue;
+          }
+          statement.execute(migration.sql);
+          record.setInt(1, migration.version);
+          record.setString(2, migration.description);
+          record.executeUpdate();
+          applied++;
+        }
+      }
+      conn.commit();
+      return applied;
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(autoCommit);
+    }
+  }
+
+  /**
+   * Re-run every migration regardless of the recorded version, e.g. after a table was recreated.
+   * Relies on each migration being idempotent.
+   */
+  public void reapplyAll() throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      for (Migration migration : MIGRATIONS) {
+        statement.execute(migration.sql);
+      }
+    }
+  }
+}
@@ -0,0 +1,131 @@
+package flightapp;
+
+import java.lang.ref.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A session's last search results, kept as fid pairs in one {@code int[]}.
+ *
+ * {@link #get} rebuilds the itinerary from the shared {@link FlightStore}, so a session holds 8
+ * bytes per itinerary instead of its own Itinerary and Flight objects and their strings.
+ *
+ * When {@code flightapp.search_results.idle_ms} is set, results that have not been read for that
+ * long are dropped by a background sweeper, as if the session had never searched.
+ */
+public class SearchResults extends AbstractList<Query.Itinerary> {
+  private static final int[] EVICTED = new int[0];
+  private static final Queue<WeakReference<SearchResults>> live = new ConcurrentLinkedQueue<>();
+  private static ScheduledExecutorService sweeper;
+
+  private final FlightStore store;
+  // fid1, fid2 per itinerary; fid2 is -1 for direct itineraries
+  private volatile int[] fids;
+  private volatile long lastAccess;
+
+  private SearchResults(int[] fids, FlightStore store) {
+    this.fids = fids;
+    this.store = store;
+    this.lastAccess = System.nanoTime();
+  }
+
+  /**
+   * Encode {@code itineraries}, adding their flights to {@code store}
+   */
+  public static SearchResults of(List<Query.Itinerary> itineraries, FlightStore store) {
+    int[] fids = new int[itineraries.size() * 2];
+    for (int i = 0; i < itineraries.size(); i++) {
+      Query.Itinerary it = itineraries.get(i);
+      fids[2 * i] = store.intern(it.f1).fid;
+      fids[2 * i + 1] = it.f2 == null ? -1 : store.intern(it.f2).fid;
+    }
+    return track(new SearchResults(fids, store));
+  }
+
+  /**
+   * Rebuild results saved with {@link #encoded}
+   */
+  public static SearchResults decode(int[] fids, FlightStore store) {
+    return track(new SearchResults(fids.clone(), store));
+  }
+
+  /**
+   * The fid pairs, for saving the results outside the heap
+   */
+  public int[] encoded() {
+    return fids.clone();
+  }
+
+  @Override
+  public Query.Itinerary get(int index) {
+    try {
+      return itinerary(index);
+    } catch (SQLException e) {
+      throw new IllegalStateException("Failed to load flights of itinerary " + index, e);
+    }
+  }
+
+  /**
+   * Like {@link #get}, but throws the SQLException of a flight that failed to load
+   */
+  public Query.Itinerary itinerary(int index) throws SQLException {
+    int[] current = touch();
+    if (index < 0 || 2 * index >= current.length) {
+      throw new IndexOutOfBoundsException("Itinerary " + index + " of " + current.length / 2);
+    }
+    Query.Flight f1 = store.get(current[2 * index]);
+    Query.Flight f2 = current[2 * index + 1] < 0 ? null : store.get(current[2 * index + 1]);
+    return new Query.Itinerary(f1, f2);
+  }
+
+  @Override
+  public int size() {
+    return touch().length / 2;
+  }
+
+  private static SearchResults track(SearchResults results) {
+    long idleMillis = AppConfig.get().getLong("flightapp.search_results.idle_ms", 0);
+    if (idleMillis > 0) {
+      startSweeper(idleMillis);
+      live.add(new WeakReference<>(results));
+    }
+    return results;
+  }
+
+  private int[] touch() {
+    lastAccess = System.nanoTime();
+    return fids;
+  }
+
+  private boolean evictIfIdle(long now, long idleNanos) {
+    if (fids.length > 0 && now - lastAccess > idleNanos) {
+      fids = EVICTED;
+      return true;
+    }
+    return fids.length == 0;
+  }
+
+  private static synchronized void startSweeper(long idleMillis) {
+    if (sweeper != null) {
+      return;
+    }
+    sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "search-results-sweeper");
+      t.setDaemon(true);
+      return t;
+    });
+    long idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+    long period = Math.max(idleMillis / 2, 1);
+    sweeper.scheduleWithFixedDelay(() -> {
+      long now = System.nanoTime();
+      Iterator<WeakReference<SearchResults>> it = live.iterator();
+      while (it.hasNext()) {
+        SearchResults results = it.next().get();
+        if (results == null || results.evictIfIdle(now, idleNanos)) {
+          it.remove();
+        }
+      }
+    }, period, period, TimeUnit.MILLISECONDS);
+  }
+}
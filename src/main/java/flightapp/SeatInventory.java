@@ -0,0 +1,142 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * In-process count of remaining seats per flight.
+ *
+ * Counters live in lazily allocated {@link AtomicIntegerArray} pages indexed by fid, so booking a
+ * seat is a compare-and-set on one int with no lock. A counter starts out unloaded and is filled
+ * from the database by the {@link SeatLoader} the first time its flight is booked.
+ *
+ * The inventory is authoritative only while a single process books seats against the database.
+ * Flights above {@code maxFid} are not tracked and cannot be reserved; {@link Query} sizes the
+ * inventory from the largest fid in Flights.
+ */
+public class SeatInventory {
+  /**
+   * Computes the seats still available on a flight from the database
+   */
+  public interface SeatLoader {
+    int remainingSeats(int fid) throws SQLException;
+  }
+
+  private static final int PAGE_BITS = 12;
+  private static final int PAGE_SIZE = 1 << PAGE_BITS;
+  private static final int PAGE_MASK = PAGE_SIZE - 1;
+  private static final int UNLOADED = Integer.MIN_VALUE;
+
+  private final AtomicReferenceArray<AtomicIntegerArray> pages;
+  private final int maxFid;
+
+  /**
+   * @param maxFid largest flight id that can be tracked
+   */
+  public SeatInventory(int maxFid) {
+    this.maxFid = maxFid;
+    pages = new AtomicReferenceArray<>((maxFid >>> PAGE_BITS) + 1);
+  }
+
+  /**
+   * Whether {@code fid} can be reserved
+   */
+  public boolean tracks(int fid) {
+    return fid >= 0 && fid <= maxFid;
+  }
+
+  /**
+   * Take one seat on {@code fid}.
+   *
+   * @return false if the flight is full
+   * @throws IllegalArgumentException if {@code fid} is not {@link #tracks tracked}
+   */
+  public boolean reserve(int fid, SeatLoader loader) throws SQLException {
+    if (!tracks(fid)) {
+      throw new IllegalArgumentException("Flight " + fid + " is above the largest tracked fid " + maxFid);
+    }
+    AtomicIntegerArray page = page(fid);
+    int slot = fid & PAGE_MASK;
+    int remaining = page.get(slot);
+    if (remaining == UNLOADED) {
+      page.compareAndSet(slot, UNLOADED, loader.remainingSeats(fid));
+    }
+    while (true) {
+      remaining = page.get(slot);
+      if (remaining <= 0) {
+        return false;
+      }
+      if (page.compareAndSet(slot, remaining, remaining - 1)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * Give back a seat taken by {@link #reserve}
+   */
+  public void release(int fid) {
+    if (!tracks(fid)) {
+      return;
+    }
+    AtomicIntegerArray page = page(fid);
+    int slot = fid & PAGE_MASK;
+    while (true) {
+      int remaining = page.get(slot);
+      if (remaining == UNLOADED || page.compareAndSet(slot, remaining, remaining + 1)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Remaining seats on {@code fid}, or -1 if the flight has not been loaded yet
+   */
+  public int remaining(int fid) {
+    if (!tracks(fid)) {
+      return -1;
+    }
+    int remaining = page(fid).get(fid & PAGE_MASK);
+    return remaining == UNLOADED ? -1 : remaining;
+  }
+
+  /**
+   * Set the counter of a flight that has not been loaded yet, e.g. from FlightSeats on startup
+   *
+   * @return false if it was already loaded or is not tracked
+   */
+  public boolean load(int fid, int remaining) {
+    return tracks(fid) && page(fid).compareAndSet(fid & PAGE_MASK, UNLOADED, remaining);
+  }
+
+  /**
+   * Forget the counter for {@code fid} so it is reloaded from the database on next use
+   */
+  public void invalidate(int fid) {
+    if (tracks(fid)) {
+      page(fid).set(fid & PAGE_MASK, UNLOADED);
+    }
+  }
+
+  /**
+   * Forget every counter, e.g. after the reservation tables were cleared
+   */
+  public void clear() {
+    for (int i = 0; i < pages.length(); i++) {
+      pages.set(i, null);
+    }
+  }
+
+  private AtomicIntegerArray page(int fid) {
+    int index = fid >>> PAGE_BITS;
+    AtomicIntegerArray page = pages.get(index);
+    if (page == null) {
+      AtomicIntegerArray fresh = new AtomicIntegerArray(PAGE_SIZE);
+      for (int i = 0; i < PAGE_SIZE; i++) {
+        fresh.lazySet(i, UNLOADED);
+      }
+      page = pages.compareAndSet(index, null, fresh) ? fresh : pages.get(index);
+    }
+    return page;
+  }
+}
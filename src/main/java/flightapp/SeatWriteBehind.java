@@ -0,0 +1,242 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Persists {@link SeatInventory} changes to the FlightSeats table in the background, and fills
+ * the inventory back from it on startup so flights booked before a restart need no recount.
+ *
+ * Each booking or cancellation appends an 8-byte (fid, delta) record to the current journal
+ * segment. A flusher thread periodically rotates to a new segment, forces the old one to disk,
+ * applies its summed deltas to FlightSeats in one transaction and deletes it. If that fails, the
+ * deltas are merged back into the next flush and the segment is kept until one succeeds.
+ *
+ * On startup, every flight named in a leftover segment is recounted from Reservations, which is
+ * the source of truth, so a crash at any point leaves FlightSeats correct after recovery.
+ * FlightSeats is only kept up to date while the seat inventory is on; after booking without it,
+ * empty FlightSeats before turning it on again.
+ */
+public class SeatWriteBehind implements AutoCloseable {
+  private static final int RECORD_BYTES = 8;
+  private static final String SEGMENT_GLOB = "*.seg";
+
+  private static final String ENSURE_FLIGHT_SQL =
+          "IF NOT EXISTS (SELECT fid FROM FlightSeats WITH (UPDLOCK, HOLDLOCK) WHERE fid = ?) "
+                  + "INSERT INTO FlightSeats VALUES (?, 0)";
+  private static final String APPLY_DELTA_SQL = "UPDATE FlightSeats SET booked = booked + ? WHERE fid = ?";
+  private static final String RECOUNT_FLIGHT_SQL = "UPDATE FlightSeats SET booked = "
+          + "(SELECT COUNT(*) FROM Reservations WHERE cancelled = 0 AND (fid1 = ? OR fid2 = ?)) WHERE fid = ?";
+  private static final String LOAD_SEATS_SQL = "SELECT S.fid, F.capacity - S.booked AS remaining "
+          + "FROM FlightSeats AS S JOIN Flights AS F ON F.fid = S.fid";
+  private static final String CLEAR_SEATS_SQL = "DELETE FROM FlightSeats";
+
+  private final Connection conn;
+  private final Path directory;
+  private final ScheduledExecutorService flusher;
+  private final Object appendLock = new Object();
+
+  private long segmentNumber;
+  private Path segmentPath;
+  private FileChannel segment;
+  private Map<Integer, Integer> deltas = new HashMap<>();
+  // rotated segments whose deltas are not in FlightSeats yet
+  private final List<Path> unflushed = new ArrayList<>();
+
+  /**
+   * @param conn        connection used only by the flusher
+   * @param directory   where journal segments are kept
+   * @param flushMillis delay between flushes
+   */
+  public SeatWriteBehind(Connection conn, Path directory, long flushMillis) throws IOException, SQLException {
+    this.conn = conn;
+    this.directory = directory;
+    Files.createDirectories(directory);
+    recover();
+    segmentNumber = System.currentTimeMillis();
+    openSegment();
+    this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "seat-write-behind");
+      t.setDaemon(true);
+      return t;
+    });
+    flusher.scheduleWithFixedDelay(this::flushQuietly, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Record a change of {@code delta} booked seats on {@code fid}
+   */
+  public void record(int fid, int delta) throws IOException {
+    ByteBuffer record = ByteBuffer.allocate(RECORD_BYTES).putInt(fid).putInt(delta);
+    record.flip();
+    synchronized (appendLock) {
+      while (record.hasRemaining()) {
+        segment.write(record);
+      }
+      deltas.merge(fid, delta, Integer::sum);
+    }
+  }
+
+  /**
+   * Apply everything recorded so far to FlightSeats
+   */
+  public synchronized void flush() throws IOException, SQLException {
+    FileChannel full;
+    Map<Integer, Integer> batch;
+    synchronized (appendLock) {
+      if (deltas.isEmpty()) {
+        return;
+      }
+      unflushed.add(segmentPath);
+      full = segment;
+      batch = deltas;
+      deltas = new HashMap<>();
+      openSegment();
+    }
+    try {
+      full.force(false);
+      full.close();
+      apply(batch);
+    } catch (IOException | SQLException e) {
+      // retried with the next flush; the segments stay so a crash meanwhile recounts the flights
+      synchronized (appendLock) {
+        batch.forEach((fid, delta) -> deltas.merge(fid, delta, Integer::sum));
+      }
+      throw e;
+    }
+    for (Path path : unflushed) {
+      Files.delete(path);
+    }
+    unflushed.clear();
+  }
+
+  /**
+   * Fill {@code inventory} with the remaining seats of every flight in FlightSeats. Call before
+   * anything is booked.
+   *
+   * @return the number of flights loaded
+   */
+  public synchronized int loadInto(SeatInventory inventory) throws SQLException {
+    int loaded = 0;
+    try (Statement statement = conn.createStatement();
+         ResultSet seats = statement.executeQuery(LOAD_SEATS_SQL)) {
+      while (seats.next()) {
+        if (inventory.load(seats.getInt("fid"), seats.getInt("remaining"))) {
+          loaded++;
+        }
+      }
+    }
+    return loaded;
+  }
+
+  /**
+   * Drop every recorded change and empty FlightSeats, e.g. after the reservation tables were
+   * cleared
+   */
+  public synchronized void clear() throws IOException, SQLException {
+    synchronized (appendLock) {
+      deltas.clear();
+      segment.close();
+      Files.delete(segmentPath);
+      openSegment();
+    }
+    for (Path path : unflushed) {
+      Files.delete(path);
+    }
+    unflushed.clear();
+    try (Statement statement = conn.createStatement()) {
+      statement.executeUpdate(CLEAR_SEATS_SQL);
+    }
+  }
+
+  private void apply(Map<Integer, Integer> batch) throws SQLException {
+    conn.setAutoCommit(false);
+    try (PreparedStatement ensure = conn.prepareStatement(ENSURE_FLIGHT_SQL);
+         PreparedStatement apply = conn.prepareStatement(APPLY_DELTA_SQL)) {
+      for (Map.Entry<Integer, Integer> delta : batch.entrySet()) {
+        if (delta.getValue() == 0) {
+          continue;
+        }
+        ensure.setInt(1, delta.getKey());
+        ensure.setInt(2, delta.getKey());
+        ensure.executeUpdate();
+        apply.setInt(1, delta.getValue());
+        apply.setInt(2, delta.getKey());
+        apply.addBatch();
+      }
+      apply.executeBatch();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  private void openSegment() throws IOException {
+    segmentNumber++;
+    segmentPath = directory.resolve(String.format("%019d.seg", segmentNumber));
+    segment = FileChannel.open(segmentPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.APPEND);
+  }
+
+  private void recover() throws IOException, SQLException {
+    Set<Integer> fids = new HashSet<>();
+    List<Path> leftovers = new ArrayList<>();
+    try (DirectoryStream<Path> segments = Files.newDirectoryStream(directory, SEGMENT_GLOB)) {
+      for (Path path : segments) {
+        leftovers.add(path);
+        ByteBuffer records = ByteBuffer.wrap(Files.readAllBytes(path));
+        while (records.remaining() >= RECORD_BYTES) {
+          fids.add(records.getInt());
+          records.getInt();
+        }
+      }
+    }
+    try (PreparedStatement ensure = conn.prepareStatement(ENSURE_FLIGHT_SQL);
+         PreparedStatement recount = conn.prepareStatement(RECOUNT_FLIGHT_SQL)) {
+      for (int fid : fids) {
+        ensure.setInt(1, fid);
+        ensure.setInt(2, fid);
+        ensure.executeUpdate();
+        recount.setInt(1, fid);
+        recount.setInt(2, fid);
+        recount.setInt(3, fid);
+        recount.executeUpdate();
+      }
+    }
+    for (Path path : leftovers) {
+      Files.delete(path);
+    }
+  }
+
+  private void flushQuietly() {
+    try {
+      flush();
+    } catch (IOException | SQLException e) {
+      e.printStackTrace();
+    }
+  }
+
+  @Override
+  public void close() throws IOException, SQLException {
+    flusher.shutdown();
+    try {
+      flusher.awaitTermination(5, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+    synchronized (appendLock) {
+      segment.close();
+      Files.deleteIfExists(segmentPath);
+    }
+    conn.close();
+  }
+}
@@ -0,0 +1,193 @@
+package flightapp;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Moves idle {@link AsyncQuery} sessions out of the heap.
+ *
+ * A sweeper looks for sessions with no operation in flight that have been idle for
+ * {@code flightapp.sessions.offload_idle_ms}, and writes their resumable state (user name and the
+ * fid pairs of the last search) to a fixed-size slot in a memory-mapped file. The session then
+ * drops its in-memory state; its next operation reads the slot back and frees it. Sessions never
+ * hold a connection between operations, so offloaded sessions cost only their slot.
+ *
+ * The file is scratch space for this process and is recreated on startup. Sessions whose state
+ * does not fit a slot stay in memory.
+ */
+public class SessionManager {
+  private static final int MAX_USER_BYTES = 64;
+  // slot id, user length, user bytes, itinerary count
+  private static final int SLOT_HEADER = 8 + 1 + MAX_USER_BYTES + 4;
+  private static final byte NO_USER = -1;
+
+  private static SessionManager instance;
+
+  /**
+   * Registered session, remembering its id so an offloaded slot is freed once it is collected
+   */
+  private static class SessionRef extends WeakReference<AsyncQuery> {
+    final long id;
+
+    SessionRef(AsyncQuery session, long id) {
+      super(session);
+      this.id = id;
+    }
+  }
+
+  private final MappedByteBuffer slots;
+  private final int slotSize;
+  private final int maxItineraries;
+  private final Deque<Integer> freeSlots = new ArrayDeque<>();
+  private final Map<Long, Integer> offloaded = new HashMap<>();
+  private final Queue<SessionRef> sessions = new ConcurrentLinkedQueue<>();
+  private final ScheduledExecutorService sweeper;
+
+  /**
+   * @param file           memory-mapped session file, recreated
+   * @param slotCount      number of sessions that can be offloaded at once
+   * @param maxItineraries largest search result that can be offloaded
+   * @param idleMillis     idle time before a session is offloaded
+   */
+  public SessionManager(Path file, int slotCount, int maxItineraries, long idleMillis) throws IOException {
+    this.maxItineraries = maxItineraries;
+    this.slotSize = SLOT_HEADER + 8 * maxItineraries;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      slots = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) slotSize * slotCount);
+    }
+    for (int i = 0; i < slotCount; i++) {
+      freeSlots.push(i);
+    }
+    sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread t = new Thread(r, "session-offload");
+      t.setDaemon(true);
+      return t;
+    });
+    long period = Math.max(idleMillis / 2, 1);
+    sweeper.scheduleWithFixedDelay(() -> sweep(TimeUnit.MILLISECONDS.toNanos(idleMillis)), period, period,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * The process-wide manager, or null unless flightapp.sessions.offload_idle_ms is set
+   */
+  static SessionManager get() {
+    synchronized (SessionManager.class) {
+      long idleMillis = AppConfig.get().getLong("flightapp.sessions.offload_idle_ms", 0);
+      if (instance == null && idleMillis > 0) {
+        AppConfig config = AppConfig.get();
+        try {
+          Path file = Paths.get(config.getString("flightapp.sessions.offload_file", "sessions.dat"));
+          instance = new SessionManager(file, config.getInt("flightapp.sessions.offload_slots", 100000),
+                  config.getInt("flightapp.sessions.max_itineraries", 64), idleMillis);
+        } catch (IOException e) {
+          throw new UncheckedIOException("Failed to map session file", e);
+        }
+      }
+      return instance;
+    }
+  }
+
+  void register(AsyncQuery session, long id) {
+    sessions.add(new SessionRef(session, id));
+  }
+
+  /**
+   * Write {@code session} to a free slot
+   *
+   * @return false if it does not fit or no slot is free
+   */
+  synchronized boolean offload(long id, Query.Session session) {
+    byte[] user = session.currentUser == null ? null : session.currentUser.getBytes(StandardCharsets.UTF_8);
+    int[] fids;
+    if (session.itineraries instanceof SearchResults) {
+      fids = ((SearchResults) session.itineraries).encoded();
+    } else if (session.itineraries == null) {
+      // a session rehydrated earlier keeps its results as fids until an operation restores it
+      fids = session.searchFids;
+    } else {
+      return false;
+    }
+    int count = fids == null ? -1 : fids.length / 2;
+    if (count > maxItineraries || (user != null && user.length > MAX_USER_BYTES) || freeSlots.isEmpty()) {
+      return false;
+    }
+    int slot = freeSlots.pop();
+    ByteBuffer buffer = slots.duplicate();
+    buffer.position(slot * slotSize);
+    buffer.putLong(id);
+    buffer.put(user == null ? NO_USER : (byte) user.length);
+    buffer.put(user == null ? new byte[MAX_USER_BYTES] : Arrays.copyOf(user, MAX_USER_BYTES));
+    buffer.putInt(count);
+    for (int i = 0; i < 2 * count; i++) {
+      buffer.putInt(fids[i]);
+    }
+    offloaded.put(id, slot);
+    return true;
+  }
+
+  /**
+   * Read back and free the slot of an offloaded session
+   */
+  synchronized Query.Session rehydrate(long id) {
+    Integer slot = offloaded.remove(id);
+    if (slot == null) {
+      throw new IllegalStateException("Session " + id + " was not offloaded");
+    }
+    ByteBuffer buffer = slots.duplicate();
+    buffer.position(slot * slotSize);
+    if (buffer.getLong() != id) {
+      throw new IllegalStateException("Session file slot " + slot + " does not belong to session " + id);
+    }
+    Query.Session session = new Query.Session();
+    byte userLength = buffer.get();
+    byte[] user = new byte[MAX_USER_BYTES];
+    buffer.get(user);
+    if (userLength != NO_USER) {
+      session.currentUser = new String(user, 0, userLength, StandardCharsets.UTF_8);
+    }
+    int count = buffer.getInt();
+    if (count >= 0) {
+      int[] fids = new int[2 * count];
+      for (int i = 0; i < fids.length; i++) {
+        fids[i] = buffer.getInt();
+      }
+      session.searchFids = fids;
+    }
+    freeSlots.push(slot);
+    return session;
+  }
+
+  private synchronized void discard(long id) {
+    Integer slot = offloaded.remove(id);
+    if (slot != null) {
+      freeSlots.push(slot);
+    }
+  }
+
+  synchronized int offloadedCount() {
+    return offloaded.size();
+  }
+
+  private void sweep(long idleNanos) {
+    long now = System.nanoTime();
+    Iterator<SessionRef> it = sessions.iterator();
+    while (it.hasNext()) {
+      SessionRef ref = it.next();
+      AsyncQuery session = ref.get();
+      if (session == null) {
+        it.remove();
+        discard(ref.id);
+      } else {
+        session.offloadIfIdle(this, now, idleNanos);
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Cross-shard state kept on shard 0 when Users and Reservations are sharded by username.
+ *
+ * Reservation IDs come from the single-row ReservationIds table so they stay globally unique and
+ * increasing, and FlightSeats holds the number of active reservations per flight so capacity is
+ * enforced across every shard.
+ */
+public class ShardCoordinator implements AutoCloseable {
+  private static final String NEXT_RESERVATION_ID_SQL =
+          "UPDATE ReservationIds SET next_id = next_id + 1 OUTPUT inserted.next_id";
+  private static final String ENSURE_FLIGHT_SQL =
+          "IF NOT EXISTS (SELECT fid FROM FlightSeats WITH (UPDLOCK, HOLDLOCK) WHERE fid = ?) "
+                  + "INSERT INTO FlightSeats VALUES (?, 0)";
+  private static final String RESERVE_SEAT_SQL =
+          "UPDATE FlightSeats SET booked = booked + 1 WHERE fid = ? AND booked < ?";
+  private static final String RELEASE_SEAT_SQL =
+          "UPDATE FlightSeats SET booked = booked - 1 WHERE fid = ? AND booked > 0";
+  private static final String RESET_SQL = "UPDATE ReservationIds SET next_id = 0; DELETE FROM FlightSeats;";
+  private static final String CLEAR_SEATS_SQL = "DELETE FROM FlightSeats";
+  private static final String SET_SEATS_SQL = "INSERT INTO FlightSeats VALUES (?, ?)";
+  private static final String ACTIVE_SEATS_SQL =
+          "SELECT fid, COUNT(*) AS booked FROM ("
+                  + "SELECT fid1 AS fid FROM Reservations WHERE cancelled = 0 "
+                  + "UNION ALL SELECT fid2 FROM Reservations WHERE cancelled = 0 AND fid2 IS NOT NULL) AS R "
+                  + "GROUP BY fid";
+
+  private final Connection conn;
+  private final PreparedStatement nextReservationIdStatement;
+  private final PreparedStatement ensureFlightStatement;
+  private final PreparedStatement reserveSeatStatement;
+  private final PreparedStatement releaseSeatStatement;
+
+  public ShardCoordinator(Connection conn) throws SQLException {
+    this.conn = conn;
+    nextReservationIdStatement = conn.prepareStatement(NEXT_RESERVATION_ID_SQL);
+    ensureFlightStatement = conn.prepareStatement(ENSURE_FLIGHT_SQL);
+    reserveSeatStatement = conn.prepareStatement(RESERVE_SEAT_SQL);
+    releaseSeatStatement = conn.prepareStatement(RELEASE_SEAT_SQL);
+  }
+
+  /**
+   * Take one seat on each flight of an itinerary and allocate its reservation ID in one
+   * transaction.
+   *
+   * @param fid2 second flight, or -1 for a direct itinerary
+   *
+   * @return the new reservation ID, or -1 if either flight is full
+   */
+  public synchronized int reserve(int fid1, int capacity1, int fid2, int capacity2) throws SQLException {
+    conn.setAutoCommit(false);
+    try {
+      if (!reserveSeat(fid1, capacity1) || (fid2 >= 0 && !reserveSeat(fid2, capacity2))) {
+        conn.rollback();
+        return -1;
+      }
+      int id;
+      try (ResultSet rs = nextReservationIdStatement.executeQuery()) {
+        rs.next();
+        id = rs.getInt(1);
+      }
+      conn.commit();
+      return id;
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  /**
+   * Give back the seats of a cancelled or failed reservation
+   */
+  public synchronized void release(int fid1, int fid2) throws SQLException {
+    releaseSeatStatement.clearParameters();
+    releaseSeatStatement.setInt(1, fid1);
+    releaseSeatStatement.executeUpdate();
+    if (fid2 >= 0) {
+      releaseSeatStatement.setInt(1, fid2);
+      releaseSeatStatement.executeUpdate();
+    }
+  }
+
+  /**
+   * Reset the ID sequence and seat counts. Only used when clearing tables.
+   */
+  public synchronized void reset() throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      statement.executeUpdate(RESET_SQL);
+    }
+  }
+
+  /**
+   * Rebuild FlightSeats from the active reservations on every shard, e.g. after a crash between
+   * reserving seats here and inserting the reservation on its shard.
+   */
+  public synchronized void reconcile(List<Connection> shards) throws SQLException {
+    Map<Integer, Integer> booked = new HashMap<>();
+    for (Connection shard : shards) {
+      try (Statement statement = shard.createStatement();
+           ResultSet rs = statement.executeQuery(ACTIVE_SEATS_SQL)) {
+        while (rs.next()) {
+          booked.merge(rs.getInt("fid"), rs.getInt("booked"), Integer::sum);
+        }
+      }
+    }
+    conn.setAutoCommit(false);
+    try (Statement clear = conn.createStatement();
+         PreparedStatement insert = conn.prepareStatement(SET_SEATS_SQL)) {
+      clear.executeUpdate(CLEAR_SEATS_SQL);
+      for (Map.Entry<Integer, Integer> entry : booked.entrySet()) {
+        insert.setInt(1, entry.getKey());
+        insert.setInt(2, entry.getValue());
+        insert.addBatch();
+      }
+      insert.executeBatch();
+      conn.commit();
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  private boolean reserveSeat(int fid, int capacity) throws SQLException {
+    ensureFlightStatement.clearParameters();
+    ensureFlightStatement.setInt(1, fid);
+    ensureFlightStatement.setInt(2, fid);
+    ensureFlightStatement.executeUpdate();
+    reserveSeatStatement.clearParameters();
+    reserveSeatStatement.setInt(1, fid);
+    reserveSeatStatement.setInt(2, capacity);
+    return reserveSeatStatement.executeUpdate() == 1;
+  }
+
+  @Override
+  public void close() throws SQLException {
+    conn.close();
+  }
+}
@@ -0,0 +1,55 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Consistent-hash ring that maps usernames to database shards.
+ *
+ * Each shard owns {@code VIRTUAL_NODES} points on the ring so users spread evenly, and adding a
+ * shard only moves the users that fall between its points and their predecessors.
+ */
+public class ShardRing {
+  private static final int VIRTUAL_NODES = 64;
+
+  private final TreeMap<Long, Integer> ring = new TreeMap<>();
+  private final int shardCount;
+
+  public ShardRing(int shardCount) {
+    if (shardCount <= 0) {
+      throw new IllegalArgumentException("Shard count must be positive: " + shardCount);
+    }
+    this.shardCount = shardCount;
+    for (int shard = 0; shard < shardCount; shard++) {
+      for (int node = 0; node < VIRTUAL_NODES; node++) {
+        ring.put(hash("shard-" + shard + "-" + node), shard);
+      }
+    }
+  }
+
+  public int shardCount() {
+    return shardCount;
+  }
+
+  /**
+   * Return the shard that stores the given (lower case) username and its reservations
+   */
+  public int shardFor(String username) {
+    Map.Entry<Long, Integer> owner = ring.ceilingEntry(hash(username));
+    return owner == null ? ring.firstEntry().getValue() : owner.getValue();
+  }
+
+  private static long hash(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+      long h = 0;
+      for (int i = 0; i < 8; i++) {
+        h = (h << 8) | (digest[i] & 0xff);
+      }
+      return h;
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,275 @@
+package flightapp;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Records statement executions slower than {@code flightapp.slowlog.threshold_ms}.
+ *
+ * Connections wrapped with its {@link #listener} time every execute and, for queries, the calls to
+ * {@link ResultSet#next} that read the rows, counting them. An execution over the threshold is
+ * recorded with its SQL ID, that is the name of the constant holding the SQL, its bound
+ * parameters with every string redacted, the rows read or updated, and its execute and fetch
+ * times. A query is only judged once its result set is exhausted or closed.
+ *
+ * Records are put in a ring that a writer thread appends to a log file every second; the writer
+ * skips what the ring overwrote before it got there. The slowest executions since startup are
+ * also kept for {@link #slowest}.
+ */
+public final class SlowLog {
+  /**
+   * One slow execution
+   */
+  public static final class Record {
+    final long sequence;
+    public final long timestampMillis = System.currentTimeMillis();
+    public final String sqlId;
+    public final String parameters;
+    public final long rows;
+    public final long executeNanos;
+    public final long fetchNanos;
+
+    Record(long sequence, String sqlId, String parameters, long rows, long executeNanos, long fetchNanos) {
+      this.sequence = sequence;
+      this.sqlId = sqlId;
+      this.parameters = parameters;
+      this.rows = rows;
+      this.executeNanos = executeNanos;
+      this.fetchNanos = fetchNanos;
+    }
+
+    public long totalNanos() {
+      return executeNanos + fetchNanos;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%.1f ms %s execute %.1f ms, fetch %.1f ms, %d rows, parameters %s",
+              totalNanos() / 1e6, sqlId, executeNanos / 1e6, fetchNanos / 1e6, rows, parameters);
+    }
+  }
+
+  private static final int RING_SIZE = 1024;
+  // classes whose SQL constants name their statements
+  private static final Class<?>[] SQL_OWNERS = {Query.class, BookingEngine.class, HoldExpiry.class,
+          AccountLedger.class, ShardCoordinator.class, SeatWriteBehind.class, BookedDays.class};
+
+  private static final long thresholdNanos;
+  private static final int keep;
+  private static final AtomicReferenceArray<Record> ring = new AtomicReferenceArray<>(RING_SIZE);
+  private static final AtomicLong recorded = new AtomicLong();
+  // the slowest executions, fastest first
+  private static final PriorityQueue<Record> slowest = new PriorityQueue<>(
+          Comparator.comparingLong(Record::totalNanos));
+  private static Writer out;
+  private static long written;
+
+  static {
+    AppConfig config = AppConfig.get();
+    long thresholdMillis = config.getLong("flightapp.slowlog.threshold_ms", -1);
+    thresholdNanos = thresholdMillis < 0 ? -1 : TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+    keep = config.getInt("flightapp.slowlog.keep", 100);
+    if (thresholdNanos >= 0) {
+      try {
+        out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(
+                Paths.get(config.getString("flightapp.slowlog.file", "slow_ops.log")), StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+        ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+          Thread t = new Thread(r, "slowlog-writer");
+          t.setDaemon(true);
+          return t;
+        });
+        writer.scheduleWithFixedDelay(SlowLog::write, 1, 1, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(SlowLog::write));
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  private SlowLog() {
+  }
+
+  public static boolean enabled() {
+    return thresholdNanos >= 0;
+  }
+
+  public static long thresholdMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(thresholdNanos);
+  }
+
+  /**
+   * Executions recorded as slow since startup
+   */
+  public static long recordedCount() {
+    return recorded.get();
+  }
+
+  /**
+   * The {@code n} slowest executions since startup, slowest first
+   */
+  public static List<Record> slowest(int n) {
+    List<Record> records;
+    synchronized (slowest) {
+      records = new ArrayList<>(slowest);
+    }
+    records.sort(Comparator.comparingLong(Record::totalNanos).reversed());
+    return records.subList(0, Math.min(n, records.size()));
+  }
+
+  /**
+   * The listener timing statement executions, to {@link JdbcInterceptor#wrap wrap} connections
+   * with, or null if the slow log is not enabled
+   */
+  public static JdbcInterceptor.Listener listener() {
+    return enabled() ? (method, sql, parameters) -> new Timing(sql, parameters) : null;
+  }
+
+  /**
+   * One execution of a statement, judged once its rows have been read
+   */
+  private static class Timing implements JdbcInterceptor.Execution {
+    private final String sql;
+    private final Object[] parameters;
+    private final long begin = System.nanoTime();
+    private long executeNanos;
+    private long fetchNanos;
+    private long rows;
+    private boolean judged;
+
+    Timing(String sql, Object[] parameters) {
+      this.sql = sql;
+      this.parameters = parameters;
+    }
+
+    @Override
+    public void executed(Object result, Throwable error) {
+      executeNanos = System.nanoTime() - begin;
+      if (error != null || result instanceof ResultSet) {
+        // failures are not timed; queries are judged once read
+        judged = error != null;
+        return;
+      }
+      if (result instanceof Integer) {
+        rows = (Integer) result;
+      } else if (result instanceof int[]) {
+        for (int count : (int[]) result) {
+          rows += Math.max(count, 0);
+        }
+      }
+      judge();
+    }
+
+    @Override
+    public void fetched(boolean more, long nanos) {
+      fetchNanos += nanos;
+      if (more) {
+        rows++;
+      } else {
+        judge();
+      }
+    }
+
+    @Override
+    public void closed() {
+      judge();
+    }
+
+    void judge() {
+      if (judged) {
+        return;
+      }
+      judged = true;
+      if (executeNanos + fetchNanos > thresholdNanos) {
+        record(sqlId(sql), redacted(parameters), rows, executeNanos, fetchNanos);
+      }
+    }
+  }
+
+  /**
+   * {@code parameters} with every string, such as a username or password hash, redacted
+   */
+  private static String redacted(Object[] parameters) {
+    Object[] shown = new Object[parameters.length];
+    for (int i = 0; i < parameters.length; i++) {
+      shown[i] = parameters[i] instanceof String ? "<redacted>" : parameters[i];
+    }
+    return Arrays.toString(shown);
+  }
+
+  private static void record(String sqlId, String parameters, long rows, long executeNanos, long fetchNanos) {
+    long sequence = recorded.getAndIncrement();
+    Record record = new Record(sequence, sqlId, parameters, rows, executeNanos, fetchNanos);
+    ring.set((int) (sequence % RING_SIZE), record);
+    synchronized (slowest) {
+      if (slowest.size() < keep) {
+        slowest.add(record);
+      } else if (slowest.peek().totalNanos() < record.totalNanos()) {
+        slowest.poll();
+        slowest.add(record);
+      }
+    }
+  }
+
+  private static synchronized void write() {
+    try {
+      long end = recorded.get();
+      for (long sequence = Math.max(written, end - RING_SIZE); sequence < end; sequence++) {
+        Record record = ring.get((int) (sequence % RING_SIZE));
+        if (record == null || record.sequence < sequence) {
+          // claimed but not stored yet
+          end = sequence;
+          break;
+        }
+        if (record.sequence == sequence) {
+          out.write(Instant.ofEpochMilli(record.timestampMillis) + " " + record + "\n");
+        }
+      }
+      written = Math.max(written, end);
+      out.flush();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  /**
+   * The name of the constant holding {@code sql}, or a hash of it
+   */
+  static String sqlId(String sql) {
+    if (sql == null) {
+      return "unknown";
+    }
+    String id = SqlIds.BY_SQL.get(sql);
+    return id != null ? id : String.format("sql-%08x", sql.hashCode());
+  }
+
+  /**
+   * SQL constant names by their SQL, found on first use
+   */
+  private static class SqlIds {
+    static final Map<String, String> BY_SQL = new HashMap<>();
+
+    static {
+      for (Class<?> owner : SQL_OWNERS) {
+        for (Field field : owner.getDeclaredFields()) {
+          int modifiers = field.getModifiers();
+          if (field.getType() == String.class && Modifier.isStatic(modifiers) && Modifier.isFinal(modifiers)) {
+            try {
+              field.setAccessible(true);
+              BY_SQL.putIfAbsent((String) field.get(null), field.getName());
+            } catch (IllegalAccessException e) {
+              // not a name we can use
+            }
+          }
+        }
+      }
+    }
+  }
+}
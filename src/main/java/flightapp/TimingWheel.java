@@ -0,0 +1,114 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Hierarchical timing wheel of int keys, such as reservation IDs, each due at some tick.
+ *
+ * There are four levels of 64 slots. Level 0 holds keys due within 64 ticks, one slot per tick;
+ * each level above covers 64 times the span of the one below. When the lower level wraps around,
+ * the next slot of the level above is cascaded down, so every key moves at most three times
+ * before it is due. Adding a key and expiring it are O(1); keys due further out than the top level
+ * reaches are parked in it and re-filed when it comes round.
+ *
+ * Keys are kept with their due tick in growable {@code long[]} buckets, so millions of pending
+ * keys cost 8 bytes each. Not thread-safe.
+ */
+public class TimingWheel {
+  private static final int LEVELS = 4;
+  private static final int SLOT_BITS = 6;
+  private static final int SLOTS = 1 << SLOT_BITS;
+  private static final int MASK = SLOTS - 1;
+
+  private final long[][][] buckets = new long[LEVELS][SLOTS][];
+  private final int[][] sizes = new int[LEVELS][SLOTS];
+  private long now;
+  private int pending;
+
+  /**
+   * @param startTick the current tick
+   */
+  public TimingWheel(long startTick) {
+    this.now = startTick;
+  }
+
+  /**
+   * Add {@code key}, due at {@code dueTick}; keys already due expire on the next tick
+   */
+  public void add(int key, long dueTick) {
+    file(key, Math.max(dueTick, now + 1));
+    pending++;
+  }
+
+  /**
+   * Move to the next tick
+   *
+   * @param expired receives the keys due at the new tick
+   */
+  public void advance(KeySink expired) {
+    now++;
+    for (int level = 1; level < LEVELS && ((now >>> (SLOT_BITS * (level - 1))) & MASK) == 0; level++) {
+      cascade(level, (int) ((now >>> (SLOT_BITS * level)) & MASK));
+    }
+    int slot = (int) (now & MASK);
+    long[] bucket = buckets[0][slot];
+    int size = sizes[0][slot];
+    sizes[0][slot] = 0;
+    pending -= size;
+    for (int i = 0; i < size; i++) {
+      expired.accept((int) bucket[i]);
+    }
+    if (bucket != null && bucket.length > 4 * SLOTS) {
+      // do not keep a burst's worth of memory per slot
+      buckets[0][slot] = null;
+    }
+  }
+
+  public long now() {
+    return now;
+  }
+
+  public int pending() {
+    return pending;
+  }
+
+  /**
+   * Receives expired keys
+   */
+  public interface KeySink {
+    void accept(int key);
+  }
+
+  private void cascade(int level, int slot) {
+    long[] bucket = buckets[level][slot];
+    int size = sizes[level][slot];
+    buckets[level][slot] = null;
+    sizes[level][slot] = 0;
+    for (int i = 0; i < size; i++) {
+      file((int) bucket[i], bucket[i] >>> 32);
+    }
+  }
+
+  private void file(int key, long dueTick) {
+    long delta = dueTick - now;
+    int level = 0;
+    while (level < LEVELS - 1 && delta >= 1L << (SLOT_BITS * (level + 1))) {
+      level++;
+    }
+    long slotTick = dueTick;
+    if (delta >= 1L << (SLOT_BITS * LEVELS)) {
+      // beyond the wheel: park in the slot of the top level that comes round last
+      slotTick = now + (1L << (SLOT_BITS * LEVELS)) - 1;
+    }
+    int slot = (int) ((slotTick >>> (SLOT_BITS * level)) & MASK);
+    long[] bucket = buckets[level][slot];
+    int size = sizes[level][slot];
+    if (bucket == null) {
+      bucket = buckets[level][slot] = new long[8];
+    } else if (size == bucket.length) {
+      bucket = buckets[level][slot] = Arrays.copyOf(bucket, 2 * size);
+    }
+    bucket[size] = dueTick << 32 | (key & 0xFFFFFFFFL);
+    sizes[level][slot] = size + 1;
+  }
+}
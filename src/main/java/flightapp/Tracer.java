@@ -0,0 +1,330 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lightweight tracing of sampled commands.
+ *
+ * A sampled command gets a trace: a root span named after the command, with a child span for each
+ * JDBC execute, password hash and deadlock retry made for it. The current span is a thread-local;
+ * its {@link #listener}, on connections wrapped by {@link JdbcInterceptor}, times every statement
+ * execution while a span is current on the calling thread and costs one thread-local read
+ * otherwise.
+ *
+ * Finished spans are put on a lock-free queue and written by an exporter thread every
+ * {@code export_ms}, one Zipkin v2 JSON span per line, to a file that is rolled over once it
+ * reaches {@code max_bytes}. Spans are dropped when the queue is full.
+ */
+public final class Tracer {
+  private static final ThreadLocal<Span> CURRENT = new ThreadLocal<>();
+  private static final Queue<Span> finished = new ConcurrentLinkedQueue<>();
+  private static final AtomicInteger queued = new AtomicInteger();
+  private static final AtomicLong dropped = new AtomicLong();
+  private static final long EPOCH_MICROS = System.currentTimeMillis() * 1000;
+  private static final long EPOCH_NANOS = System.nanoTime();
+
+  private static volatile double sampleRate;
+  private static final int maxQueued;
+  private static Exporter exporter;
+
+  static {
+    AppConfig config = AppConfig.get();
+    sampleRate = config.getDouble("flightapp.tracing.sample", 0);
+    maxQueued = config.getInt("flightapp.tracing.max_queued", 10000);
+    if (sampleRate > 0) {
+      try {
+        exporter = new Exporter(Paths.get(config.getString("flightapp.tracing.file", "traces.json")),
+                config.getLong("flightapp.tracing.max_bytes", 10L << 20), config.getInt("flightapp.tracing.files", 3),
+                config.getLong("flightapp.tracing.export_ms", 1000));
+      } catch (IOException e) {
+        e.printStackTrace();
+        sampleRate = 0;
+      }
+    }
+  }
+
+  private Tracer() {
+  }
+
+  /**
+   * One timed operation of a trace
+   */
+  public static final class Span {
+    final long traceId;
+    final long id;
+    final long parentId;
+    final String name;
+    final long startNanos = System.nanoTime();
+    // the thread's current span when this one was started
+    final Span previous;
+    long durationNanos;
+    private Map<String, String> tags;
+
+    Span(long traceId, long parentId, String name, Span previous) {
+      this.traceId = traceId;
+      this.id = ThreadLocalRandom.current().nextLong();
+      this.parentId = parentId;
+      this.name = name;
+      this.previous = previous;
+    }
+
+    public Span tag(String key, String value) {
+      if (tags == null) {
+        tags = new LinkedHashMap<>();
+      }
+      tags.put(key, value);
+      return this;
+    }
+  }
+
+  /**
+   * Whether any command is being sampled, i.e. whether connections should be wrapped with its {@link #listener}
+   */
+  public static boolean enabled() {
+    return sampleRate > 0;
+  }
+
+  /**
+   * Sample rate for benchmarks; spans are only exported if tracing was configured
+   */
+  static void setSampleRate(double rate) {
+    sampleRate = rate;
+  }
+
+  /**
+   * Start a span on this thread: a child of the current span, or else the root of a new trace if
+   * this one is sampled
+   *
+   * @return the span, to be passed to {@link #end}, or null if nothing is traced
+   */
+  public static Span start(String name) {
+    Span current = CURRENT.get();
+    if (current != null) {
+      return begin(current.traceId, current.id, name, current);
+    }
+    if (sampleRate <= 0 || ThreadLocalRandom.current().nextDouble() >= sampleRate) {
+      return null;
+    }
+    return begin(ThreadLocalRandom.current().nextLong(), 0, name, null);
+  }
+
+  /**
+   * Start a child of {@code parent}, which may belong to another thread, on this thread
+   *
+   * @return the span, or null if {@code parent} is null
+   */
+  public static Span startChild(Span parent, String name) {
+    return parent == null ? null : begin(parent.traceId, parent.id, name, CURRENT.get());
+  }
+
+  private static Span begin(long traceId, long parentId, String name, Span previous) {
+    Span span = new Span(traceId, parentId, name, previous);
+    CURRENT.set(span);
+    return span;
+  }
+
+  /**
+   * The span current on this thread, or null
+   */
+  public static Span current() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Finish {@code span} and make its predecessor current again
+   */
+  public static void end(Span span) {
+    if (span != null) {
+      finish(span);
+      detach(span);
+    }
+  }
+
+  /**
+   * Make the span that was current before {@code span} current again, without finishing it, for
+   * spans finished on another thread
+   */
+  public static void detach(Span span) {
+    if (span != null) {
+      CURRENT.set(span.previous);
+    }
+  }
+
+  /**
+   * Record the end of {@code span}, from any thread
+   */
+  public static void finish(Span span) {
+    if (span == null) {
+      return;
+    }
+    span.durationNanos = System.nanoTime() - span.startNanos;
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      dropped.incrementAndGet();
+      return;
+    }
+    finished.add(span);
+  }
+
+  /**
+   * Record an instant in the current trace, such as a retry
+   */
+  public static void event(String name) {
+    end(start(name));
+  }
+
+  public static long droppedCount() {
+    return dropped.get();
+  }
+
+  /**
+   * The listener timing statement executions, to {@link JdbcInterceptor#wrap wrap} connections
+   * with, or null if tracing is not enabled
+   */
+  public static JdbcInterceptor.Listener listener() {
+    return enabled() ? Tracer::executing : null;
+  }
+
+  static Connection wrap(Connection conn) {
+    return JdbcInterceptor.wrap(conn, Tracer::executing);
+  }
+
+  // a child span for an execute while a span is current on this thread
+  private static JdbcInterceptor.Execution executing(String method, String sql, Object[] parameters) {
+    if (CURRENT.get() == null) {
+      return null;
+    }
+    Span span = start(method);
+    if (sql != null) {
+      span.tag("sql", sql);
+    }
+    return (result, error) -> {
+      if (error instanceof SQLException) {
+        span.tag("error", String.valueOf(((SQLException) error).getErrorCode()));
+      }
+      end(span);
+    };
+  }
+
+  /**
+   * Writes finished spans to a rolling file
+   */
+  private static class Exporter {
+    private final Path file;
+    private final long maxBytes;
+    private final int files;
+    private Writer out;
+    private long written;
+
+    Exporter(Path file, long maxBytes, int files, long exportMillis) throws IOException {
+      this.file = file;
+      this.maxBytes = maxBytes;
+      this.files = files;
+      open();
+      ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "trace-export");
+        t.setDaemon(true);
+        return t;
+      });
+      scheduler.scheduleWithFixedDelay(this::export, exportMillis, exportMillis, TimeUnit.MILLISECONDS);
+      Runtime.getRuntime().addShutdownHook(new Thread(this::export));
+    }
+
+    private void open() throws IOException {
+      written = Files.exists(file) ? Files.size(file) : 0;
+      out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file, StandardOpenOption.CREATE,
+              StandardOpenOption.APPEND), StandardCharsets.UTF_8));
+    }
+
+    private synchronized void export() {
+      try {
+        Span span;
+        StringBuilder line = new StringBuilder(256);
+        while ((span = finished.poll()) != null) {
+          queued.decrementAndGet();
+          line.setLength(0);
+          appendJson(line, span);
+          out.write(line.toString());
+          written += line.length();
+          if (written >= maxBytes) {
+            roll();
+          }
+        }
+        out.flush();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+
+    private void roll() throws IOException {
+      out.close();
+      for (int i = files - 1; i >= 1; i--) {
+        Path from = i == 1 ? file : file.resolveSibling(file.getFileName() + "." + (i - 1));
+        if (Files.exists(from)) {
+          Files.move(from, file.resolveSibling(file.getFileName() + "." + i), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      if (files <= 1) {
+        Files.delete(file);
+      }
+      open();
+    }
+  }
+
+  /**
+   * Append {@code span} as a Zipkin v2 span and a newline
+   */
+  static void appendJson(StringBuilder sb, Span span) {
+    long timestampMicros = EPOCH_MICROS + (span.startNanos - EPOCH_NANOS) / 1000;
+    sb.append("{\"traceId\":\"").append(hex(span.traceId)).append("\",\"id\":\"").append(hex(span.id)).append('"');
+    if (span.parentId != 0) {
+      sb.append(",\"parentId\":\"").append(hex(span.parentId)).append('"');
+    }
+    sb.append(",\"name\":");
+    appendString(sb, span.name);
+    sb.append(",\"timestamp\":").append(timestampMicros)
+            .append(",\"duration\":").append(Math.max(1, span.durationNanos / 1000))
+            .append(",\"localEndpoint\":{\"serviceName\":\"flightapp\"}");
+    if (span.tags != null) {
+      sb.append(",\"tags\":{");
+      boolean first = true;
+      for (Map.Entry<String, String> tag : span.tags.entrySet()) {
+        if (!first) {
+          sb.append(',');
+        }
+        first = false;
+        appendString(sb, tag.getKey());
+        sb.append(':');
+        appendString(sb, tag.getValue());
+      }
+      sb.append('}');
+    }
+    sb.append("}\n");
+  }
+
+  private static String hex(long id) {
+    String digits = Long.toHexString(id);
+    return "0000000000000000".substring(digits.length()) + digits;
+  }
+
+  private static void appendString(StringBuilder sb, String value) {
+    sb.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        sb.append('\\').append(c);
+      } else if (c < ' ') {
+        sb.append(String.format("\\u%04x", (int) c));
+      } else {
+        sb.append(c);
+      }
+    }
+    sb.append('"');
+  }
+}
@@ -0,0 +1,121 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Overloads a simulated database with and without {@link AdmissionControl}.
+ *
+ * Searches, bookings and payments arrive at fixed rates, each on its own thread as on the server,
+ * whatever the state of earlier ones. The simulated database has a few cores shared by every
+ * running command, so a command takes longer the more run alongside it. Searches alone ask for
+ * twice what it can do. Without admission control every command slows down until all of them
+ * miss the client timeout; with it, payments and bookings keep their latency and the excess
+ * searches are rejected at once.
+ *
+ * Needs no database. Run with: mvn test-compile exec:java
+ * -Dexec.mainClass=flightapp.AdmissionOverloadBenchmark -Dexec.classpathScope=test
+ * [-Dexec.args="seconds"]
+ */
+public class AdmissionOverloadBenchmark {
+  private static final int CORES = 4;
+  private static final long CLIENT_TIMEOUT_MILLIS = 2000;
+
+  // command, arrivals per second, service time in ms when running alone
+  private static final Object[][] LOAD = {
+          {AdmissionControl.Priority.SEARCH, 400, 20},
+          {AdmissionControl.Priority.BOOK, 50, 5},
+          {AdmissionControl.Priority.PAY, 50, 5},
+  };
+
+  private static final AtomicInteger active = new AtomicInteger();
+
+  public static void main(String[] args) throws Exception {
+    int seconds = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+    System.out.printf("%d simulated cores, client timeout %d ms, %d s per run%n", CORES, CLIENT_TIMEOUT_MILLIS,
+            seconds);
+    run("no admission control", null, seconds);
+    run("admission control", new AdmissionControl(CORES, 1, 4 * CORES, 64, 500, 2.0), seconds);
+  }
+
+  private static void run(String name, AdmissionControl admission, int seconds) throws Exception {
+    Map<AdmissionControl.Priority, List<Long>> latencies = new ConcurrentHashMap<>();
+    Map<AdmissionControl.Priority, AtomicLong> rejected = new ConcurrentHashMap<>();
+    ExecutorService server = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r);
+      t.setDaemon(true);
+      return t;
+    });
+    List<Thread> clients = new ArrayList<>();
+    long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+    for (Object[] load : LOAD) {
+      AdmissionControl.Priority priority = (AdmissionControl.Priority) load[0];
+      long intervalNanos = TimeUnit.SECONDS.toNanos(1) / (Integer) load[1];
+      long serviceMillis = (Integer) load[2];
+      List<Long> times = Collections.synchronizedList(new ArrayList<>());
+      latencies.put(priority, times);
+      rejected.put(priority, new AtomicLong());
+      Thread client = new Thread(() -> {
+        for (long next = System.nanoTime(); next < end; next += intervalNanos) {
+          long arrival = next;
+          server.execute(() -> {
+            try {
+              if (admission == null) {
+                work(serviceMillis);
+              } else {
+                admission.call(priority, () -> work(serviceMillis));
+              }
+              times.add(System.nanoTime() - arrival);
+            } catch (RejectedExecutionException e) {
+              rejected.get(priority).incrementAndGet();
+            }
+          });
+          LockSupport.parkNanos(next + intervalNanos - System.nanoTime());
+        }
+      });
+      clients.add(client);
+      client.start();
+    }
+    for (Thread client : clients) {
+      client.join();
+    }
+    server.shutdown();
+    server.awaitTermination(5, TimeUnit.MINUTES);
+
+    System.out.printf("%n%s%n%-8s %9s %9s %9s %9s %9s%n", name, "command", "ok", "late", "rejected", "p50 ms",
+            "p99 ms");
+    for (Object[] load : LOAD) {
+      AdmissionControl.Priority priority = (AdmissionControl.Priority) load[0];
+      List<Long> times = new ArrayList<>(latencies.get(priority));
+      Collections.sort(times);
+      long late = times.stream().filter(t -> t > TimeUnit.MILLISECONDS.toNanos(CLIENT_TIMEOUT_MILLIS)).count();
+      System.out.printf("%-8s %9d %9d %9d %9.1f %9.1f%n", priority.name().toLowerCase(), times.size() - late, late,
+              rejected.get(priority).get(), percentile(times, 0.5) / 1e6, percentile(times, 0.99) / 1e6);
+    }
+    if (admission != null) {
+      System.out.printf("final concurrency limit %d%n", admission.limit());
+    }
+  }
+
+  /**
+   * Occupy the simulated database for {@code serviceMillis} of one core's time
+   */
+  private static Void work(long serviceMillis) {
+    int running = active.incrementAndGet();
+    try {
+      // the cores are shared by everything running
+      Thread.sleep(serviceMillis * Math.max(1, running) / Math.min(CORES, Math.max(1, running)));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      active.decrementAndGet();
+    }
+    return null;
+  }
+
+  private static long percentile(List<Long> sorted, double p) {
+    return sorted.isEmpty() ? 0 : sorted.get(Math.min(sorted.size() - 1, (int) (p * sorted.size())));
+  }
+}
@@ -0,0 +1,92 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures concurrent bookings through {@link Query#book}, whose same-day check is the
+ * SEARCH_USER_RESERVATION_DAY_SQL range scan by default and the {@link BookedDays} mask with
+ * flightapp.booked_days = true (and flightapp.migrate = true for the column).
+ *
+ * Every thread owns a Query and a user, and books that user one itinerary on each day in turn;
+ * only the bookings are timed. Then every thread logs in as one shared user and they all book the
+ * same day at once, which must succeed exactly once. Clears Users and Reservations before and after
+ * the run.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=flightapp.BookedDaysBenchmark
+ * -Dexec.classpathScope=test [-Dexec.args="threads days"]
+ */
+public class BookedDaysBenchmark {
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int days = args.length > 1 ? Math.min(28, Integer.parseInt(args[1])) : 28;
+
+    List<Query> queries = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      queries.add(new Query());
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      queries.get(0).clearTables();
+      System.out.printf("%d threads, %d days each, booked days %s%n", threads, days,
+              AppConfig.get().getBoolean("flightapp.booked_days", false) ? "on" : "off");
+      List<Future<long[]>> futures = new ArrayList<>();
+      CyclicBarrier start = new CyclicBarrier(threads + 1);
+      for (int t = 0; t < threads; t++) {
+        Query q = queries.get(t);
+        String user = "bd" + t;
+        futures.add(pool.submit(() -> {
+          q.createCustomer(user, "x", 1_000_000);
+          q.login(user, "x");
+          long[] latencies = new long[days];
+          start.await();
+          for (int day = 1; day <= days; day++) {
+            q.search("Seattle WA", "Boston MA", true, day, 1);
+            long begin = System.nanoTime();
+            q.book(0);
+            latencies[day - 1] = System.nanoTime() - begin;
+          }
+          return latencies;
+        }));
+      }
+      start.await();
+      long begin = System.nanoTime();
+      long[] all = new long[threads * days];
+      int n = 0;
+      for (Future<long[]> future : futures) {
+        for (long latency : future.get()) {
+          all[n++] = latency;
+        }
+      }
+      double seconds = (System.nanoTime() - begin) / 1e9;
+      Arrays.sort(all);
+      System.out.printf("bookings: %.0f/s, p50 %.2f ms, p99 %.2f ms%n", all.length / seconds,
+              all[all.length / 2] / 1e6, all[all.length * 99 / 100] / 1e6);
+
+      queries.get(0).createCustomer("bdshared", "x", 1_000_000);
+      List<Future<Boolean>> booked = new ArrayList<>();
+      CyclicBarrier together = new CyclicBarrier(threads);
+      for (Query q : queries) {
+        booked.add(pool.submit(() -> {
+          Query.Session session = new Query.Session();
+          session.currentUser = "bdshared";
+          q.restoreSession(session);
+          q.search("Seattle WA", "Boston MA", true, 1, 1);
+          together.await();
+          return q.book(0).isOk();
+        }));
+      }
+      int succeeded = 0;
+      for (Future<Boolean> result : booked) {
+        succeeded += result.get() ? 1 : 0;
+      }
+      System.out.printf("same day from %d sessions: %d booked (must be 1)%n", threads, succeeded);
+    } finally {
+      pool.shutdown();
+      queries.get(0).clearTables();
+      for (Query q : queries) {
+        q.closeConnection();
+      }
+    }
+  }
+}
@@ -0,0 +1,97 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link BookedDays} lets a user claim a day once until it is released, reads the
+ * column only for users it does not hold, and lets exactly one of several racing claims win.
+ */
+public class BookedDaysTest {
+  private static final BookedDays.MaskLoader EMPTY = () -> 0;
+
+  @Test
+  public void bits() {
+    assertEquals(1, BookedDays.bit(1));
+    assertEquals(1 << 30, BookedDays.bit(31));
+  }
+
+  @Test
+  public void dayCanBeClaimedOnceUntilReleased() throws Exception {
+    BookedDays days = new BookedDays(10);
+    assertTrue(days.claim("alice", BookedDays.bit(3), EMPTY));
+    assertFalse(days.claim("alice", BookedDays.bit(3), EMPTY));
+    assertTrue("another day", days.claim("alice", BookedDays.bit(4), EMPTY));
+    assertTrue("another user", days.claim("bob", BookedDays.bit(3), EMPTY));
+
+    // a group claiming days 3 and 5 takes neither
+    assertFalse(days.claim("alice", BookedDays.bit(3) | BookedDays.bit(5), EMPTY));
+    assertTrue(days.claim("alice", BookedDays.bit(5), EMPTY));
+
+    days.release("alice", BookedDays.bit(3));
+    assertTrue(days.claim("alice", BookedDays.bit(3), EMPTY));
+    assertFalse(days.claim("alice", BookedDays.bit(4), EMPTY));
+  }
+
+  @Test
+  public void readsTheColumnOnlyForUsersNotHeld() throws Exception {
+    BookedDays days = new BookedDays(2);
+    AtomicInteger loads = new AtomicInteger();
+    BookedDays.MaskLoader column = () -> {
+      loads.incrementAndGet();
+      return BookedDays.bit(7);
+    };
+    assertFalse("booked in the column", days.claim("alice", BookedDays.bit(7), column));
+    assertTrue(days.claim("alice", BookedDays.bit(8), column));
+    assertEquals(1, loads.get());
+
+    days.invalidate("alice");
+    assertFalse(days.claim("alice", BookedDays.bit(7), column));
+    assertEquals(2, loads.get());
+
+    // releasing a user not held changes nothing
+    days.release("carol", BookedDays.bit(7));
+    assertEquals(2, loads.get());
+
+    // past maxUsers the copy is cleared and refilled on use
+    assertTrue(days.claim("bob", BookedDays.bit(1), EMPTY));
+    assertTrue(days.claim("carol", BookedDays.bit(1), EMPTY));
+    assertTrue("alice was dropped and re-read", days.claim("alice", BookedDays.bit(8), column));
+    assertEquals(3, loads.get());
+
+    days.clear();
+    assertTrue(days.claim("bob", BookedDays.bit(1), EMPTY));
+  }
+
+  @Test
+  public void oneOfRacingClaimsWins() throws Exception {
+    BookedDays days = new BookedDays(10);
+    int threads = 8;
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      for (int day = 1; day <= 31; day++) {
+        int bit = BookedDays.bit(day);
+        CyclicBarrier start = new CyclicBarrier(threads);
+        List<Future<Boolean>> claims = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+          claims.add(pool.submit(() -> {
+            start.await();
+            return days.claim("alice", bit, EMPTY);
+          }));
+        }
+        int won = 0;
+        for (Future<Boolean> claim : claims) {
+          won += claim.get(10, TimeUnit.SECONDS) ? 1 : 0;
+        }
+        assertEquals("day " + day, 1, won);
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package flightapp;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.stream.*;
+
+/**
+ * Measures bulk user creation.
+ *
+ * First times password hashing alone on every core, which bounds the load rate and needs no
+ * database, then generates a users file and loads it with {@link BulkUserLoader}. The load adds
+ * bench_* users to the configured database.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=flightapp.BulkLoadBenchmark
+ * -Dexec.classpathScope=test [-Dexec.args="users [hash sample]"]
+ */
+public class BulkLoadBenchmark {
+  public static void main(String[] args) throws Exception {
+    int users = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    int sample = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+    long start = System.nanoTime();
+    IntStream.range(0, sample).parallel().forEach(i -> Query.generateHash("password" + i));
+    double hashRate = sample / ((System.nanoTime() - start) / 1e9);
+    System.out.printf("hashing on %d cores: %.0f users/s (1M users would take %.0f min)%n",
+            Runtime.getRuntime().availableProcessors(), hashRate, 1e6 / hashRate / 60);
+
+    Path file = Files.createTempFile("bulk-users", ".csv");
+    try {
+      try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+        for (int i = 0; i < users; i++) {
+          out.write("bench_" + i + ",password" + i + "," + (i % 1000));
+          out.newLine();
+        }
+      }
+      try (Connection conn = Query.openConnectionFromDbConn();
+           BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+           BulkUserLoader loader = new BulkUserLoader(conn, 5000)) {
+        BulkUserLoader.Result result = loader.load(reader);
+        System.out.printf("loaded %d users (%d duplicates) in %.1f s: %.0f users/s%n", result.created,
+                result.duplicates, result.elapsedNanos / 1e9, result.usersPerSecond());
+      }
+    } finally {
+      Files.deleteIfExists(file);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package flightapp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Cost a write path pays to publish a change to the {@link ChangeFeed}, with one subscriber.
+ * Events dropped because the dispatcher fell behind are printed after each iteration. Run with
+ * several threads to see contention on the ring's cursor.
+ *
+ * Run with: mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ * -Dexec.args="-cp %classpath org.openjdk.jmh.Main ChangeFeedBenchmark -t 4 -prof gc"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChangeFeedBenchmark {
+  private ChangeFeed feed;
+  private volatile int lastFid;
+
+  @Setup(Level.Iteration)
+  public void setUp() throws IOException {
+    feed = new ChangeFeed(65536, null);
+    feed.subscribe((type, username, reservationId, fid1, fid2, remote) -> lastFid = fid1);
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() throws IOException {
+    System.out.println("dropped " + feed.droppedCount());
+    feed.close();
+  }
+
+  @Benchmark
+  public boolean publish() {
+    return feed.publish(ChangeFeed.BOOKED, "user1", 42, 1001, 1002);
+  }
+}
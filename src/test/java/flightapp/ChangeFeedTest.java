@@ -0,0 +1,204 @@
+package flightapp;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks {@link ChangeFeed}: dropping events and telling subscribers when the ring is full,
+ * keeping each publisher's events in order, and reading {@link ChangeFeed.FileTransport} records
+ * that are only partly written or larger than its read buffer.
+ */
+public class ChangeFeedTest {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Queues what it is told as strings such as "1 alice 7 remote" and "overflowed"
+   */
+  private static class Recorder implements ChangeFeed.Subscriber {
+    final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+    @Override
+    public void changed(byte type, String username, int reservationId, int fid1, int fid2, boolean remote) {
+      events.add(type + " " + username + " " + reservationId + (remote ? " remote" : ""));
+    }
+
+    @Override
+    public void overflowed() {
+      events.add("overflowed");
+    }
+
+    String next() throws InterruptedException {
+      String event = events.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+      assertNotNull("no event within " + TIMEOUT_SECONDS + " s", event);
+      return event;
+    }
+  }
+
+  @Test
+  public void fullRingDropsEventsAndTellsSubscribers() throws Exception {
+    CountDownLatch delivering = new CountDownLatch(1);
+    CountDownLatch resume = new CountDownLatch(1);
+    Recorder recorder = new Recorder();
+    try (ChangeFeed feed = new ChangeFeed(4, null)) {
+      feed.subscribe(new ChangeFeed.Subscriber() {
+        @Override
+        public void changed(byte type, String username, int reservationId, int fid1, int fid2, boolean remote) {
+          if (reservationId == 0) {
+            delivering.countDown();
+            try {
+              resume.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        }
+      });
+      feed.subscribe(recorder);
+
+      assertTrue(feed.publish(ChangeFeed.BOOKED, "u", 0, 1, -1));
+      assertTrue(delivering.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+      // the dispatcher is stuck on event 0, so four more fill the ring
+      for (int id = 1; id <= 10; id++) {
+        assertEquals("event " + id, id <= 4, feed.publish(ChangeFeed.BOOKED, "u", id, 1, -1));
+      }
+      assertEquals(6, feed.droppedCount());
+      resume.countDown();
+
+      assertEquals("1 u 0", recorder.next());
+      assertEquals("overflowed", recorder.next());
+      for (int id = 1; id <= 4; id++) {
+        assertEquals("1 u " + id, recorder.next());
+      }
+      // room again once the dispatcher has caught up
+      assertTrue(feed.publish(ChangeFeed.PAID, "u", 11, 1, -1));
+      assertEquals("2 u 11", recorder.next());
+    }
+    assertTrue(recorder.events.isEmpty());
+  }
+
+  @Test
+  public void eachPublishersEventsArriveInOrder() throws Exception {
+    int publishers = 4;
+    int perPublisher = 20000;
+    ChangeFeed.Transport[] transports = ChangeFeed.loopback(2);
+    Map<Boolean, List<Integer>> delivered = new HashMap<>();
+    delivered.put(false, new ArrayList<>());
+    delivered.put(true, new ArrayList<>());
+    CountDownLatch done = new CountDownLatch(2 * publishers * perPublisher);
+    try (ChangeFeed local = new ChangeFeed(256, transports[0]);
+         ChangeFeed peer = new ChangeFeed(256, transports[1])) {
+      ChangeFeed.Subscriber recorder = (type, username, reservationId, fid1, fid2, remote) -> {
+        delivered.get(remote).add(reservationId);
+        done.countDown();
+      };
+      local.subscribe(recorder);
+      peer.subscribe(recorder);
+
+      List<Thread> threads = new ArrayList<>();
+      for (int p = 0; p < publishers; p++) {
+        int first = p * perPublisher;
+        Thread thread = new Thread(() -> {
+          for (int id = first; id < first + perPublisher; id++) {
+            // retry rather than drop, so every event is delivered
+            while (!local.publish(ChangeFeed.BOOKED, "u", id, 1, -1)) {
+              Thread.yield();
+            }
+          }
+        });
+        threads.add(thread);
+        thread.start();
+      }
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      assertTrue(done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+    }
+    // delivered on the local dispatcher, then forwarded and delivered on the peer's
+    for (boolean remote : new boolean[]{false, true}) {
+      List<Integer> ids = delivered.get(remote);
+      assertEquals(publishers * perPublisher, ids.size());
+      int[] last = new int[publishers];
+      Arrays.fill(last, -1);
+      for (int id : ids) {
+        int publisher = id / perPublisher;
+        assertTrue("event " + id + " after " + last[publisher], id > last[publisher]);
+        last[publisher] = id;
+      }
+      assertEquals(publishers * perPublisher, new HashSet<>(ids).size());
+    }
+  }
+
+  /**
+   * A FileTransport record from another process
+   */
+  private static byte[] record(long origin, byte type, String username, int reservationId, int fid1, int fid2) {
+    byte[] name = username.getBytes(StandardCharsets.UTF_8);
+    ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + 1 + 12 + name.length);
+    buffer.putInt(buffer.capacity()).putLong(origin).put(type).putInt(reservationId).putInt(fid1).putInt(fid2)
+            .put(name);
+    return buffer.array();
+  }
+
+  private static void append(FileChannel channel, byte[] bytes, int from, int to) throws Exception {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, from, to - from);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+  }
+
+  @Test
+  public void fileTransportWaitsForPartlyWrittenRecords() throws Exception {
+    Path file = folder.getRoot().toPath().resolve("change_feed");
+    Recorder recorder = new Recorder();
+    String longName = String.join("", Collections.nCopies(100 * 1024, "n"));
+    try (ChangeFeed feed = new ChangeFeed(64, new ChangeFeed.FileTransport(file, 5));
+         FileChannel other = FileChannel.open(file, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      feed.subscribe(recorder);
+
+      // its own records are not read back
+      feed.publish(ChangeFeed.BOOKED, "self", 1, 10, -1);
+      assertEquals("1 self 1", recorder.next());
+      // sent after it is delivered; wait for it so the partial records below do not split it
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+      while (Files.size(file) == 0 && System.nanoTime() < deadline) {
+        Thread.sleep(1);
+      }
+      assertEquals(4 + 8 + 1 + 12 + 4, Files.size(file));
+
+      byte[] cancelled = record(42, ChangeFeed.CANCELLED, "bob", 2, 20, 21);
+      byte[] paid = record(42, ChangeFeed.PAID, "carol", 3, 30, -1);
+      byte[] large = record(42, ChangeFeed.BOOKED, longName, 4, 40, -1);
+      // half the length prefix
+      append(other, cancelled, 0, 2);
+      assertNull(recorder.events.poll(100, TimeUnit.MILLISECONDS));
+      // past the header but not the username
+      append(other, cancelled, 2, cancelled.length - 1);
+      assertNull(recorder.events.poll(100, TimeUnit.MILLISECONDS));
+      // the rest, a whole record and the start of one larger than the read buffer
+      byte[] rest = new byte[1 + paid.length + 1000];
+      rest[0] = cancelled[cancelled.length - 1];
+      System.arraycopy(paid, 0, rest, 1, paid.length);
+      System.arraycopy(large, 0, rest, 1 + paid.length, 1000);
+      append(other, rest, 0, rest.length);
+      assertEquals("3 bob 2 remote", recorder.next());
+      assertEquals("2 carol 3 remote", recorder.next());
+      assertNull(recorder.events.poll(100, TimeUnit.MILLISECONDS));
+
+      append(other, large, 1000, large.length);
+      assertEquals("1 " + longName + " 4 remote", recorder.next());
+      assertNull(recorder.events.poll(100, TimeUnit.MILLISECONDS));
+    }
+  }
+}
@@ -0,0 +1,83 @@
+package flightapp;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of parsing a command and finding its handler, without running it.
+ *
+ * Compares the {@link CommandLine} tokenizer and hashed command table used by
+ * {@link FlightService#execute} with the regex tokenizer and if/else chain they replaced. Both
+ * sides decode the arguments the command would use.
+ *
+ * Run with: mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ * -Dexec.args="-cp %classpath org.openjdk.jmh.Main CommandDispatchBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandDispatchBenchmark {
+  private static final String[] LEGACY_NAMES = {"login", "create", "search", "search_range", "book",
+          "book_group", "reservations", "pay", "cancel", "quit"};
+
+  @Param({"search \"Seattle WA\" \"Boston MA\" 1 14 10", "pay 42", "reservations"})
+  public String command;
+
+  @Benchmark
+  public void table(Blackhole bh) {
+    CommandLine args = FlightService.parse(command);
+    FlightService.Entry entry = FlightService.lookup(args);
+    bh.consume(entry);
+    for (int i = 1; i < args.size(); i++) {
+      // searches read two cities and a direct flag, the rest are ints
+      if (entry.name.startsWith("search") && i <= 2) {
+        bh.consume(args.get(i));
+      } else if (entry.name.startsWith("search") && i == 3) {
+        bh.consume(args.is(i, "1"));
+      } else {
+        bh.consume(args.getInt(i));
+      }
+    }
+  }
+
+  @Benchmark
+  public void regex(Blackhole bh) {
+    String[] tokens = tokenize(command.trim());
+    int found = -1;
+    for (int i = 0; i < LEGACY_NAMES.length && found < 0; i++) {
+      if (tokens[0].equals(LEGACY_NAMES[i])) {
+        found = i;
+      }
+    }
+    bh.consume(found);
+    for (int i = 1; i < tokens.length; i++) {
+      if (LEGACY_NAMES[found].startsWith("search") && i <= 2) {
+        bh.consume(tokens[i]);
+      } else if (LEGACY_NAMES[found].startsWith("search") && i == 3) {
+        bh.consume(tokens[i].equals("1"));
+      } else {
+        bh.consume(Integer.valueOf(tokens[i]));
+      }
+    }
+  }
+
+  private static String[] tokenize(String command) {
+    String regex = "\"([^\"]*)\"|(\\S+)";
+    Matcher m = Pattern.compile(regex).matcher(command);
+    List<String> tokens = new ArrayList<>();
+    while (m.find()) {
+      if (m.group(1) != null)
+        tokens.add(m.group(1));
+      else
+        tokens.add(m.group(2));
+    }
+    return tokens.toArray(new String[0]);
+  }
+}
@@ -0,0 +1,127 @@
+package flightapp;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.regex.*;
+import java.util.stream.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link CommandLine} splits commands exactly as the regex tokenizer it replaced did,
+ * over every line of the test cases and a set of quoting edge cases, and that its accessors agree
+ * with the strings they avoid creating.
+ */
+public class CommandLineTest {
+  private static final Pattern TOKEN = Pattern.compile("\"([^\"]*)\"|(\\S+)");
+
+  /**
+   * The tokenizer FlightService used before CommandLine
+   */
+  private static List<String> regexTokens(String command) {
+    Matcher m = TOKEN.matcher(command.trim());
+    List<String> tokens = new ArrayList<>();
+    while (m.find()) {
+      tokens.add(m.group(1) != null ? m.group(1) : m.group(2));
+    }
+    return tokens;
+  }
+
+  private static List<String> tokens(CommandLine line) {
+    List<String> tokens = new ArrayList<>();
+    for (int i = 0; i < line.size(); i++) {
+      tokens.add(line.get(i));
+      assertTrue(line.is(i, line.get(i)));
+      assertEquals(line.get(i).hashCode(), line.hash(i));
+    }
+    return tokens;
+  }
+
+  private static void assertSameTokens(CommandLine line, String command) {
+    assertEquals("[" + command + "]", regexTokens(command), tokens(line.parse(command)));
+  }
+
+  @Test
+  public void matchesRegexOverTestCases() throws Exception {
+    List<Path> files;
+    try (Stream<Path> walk = Files.walk(Paths.get(System.getProperty("test.cases", "cases")))) {
+      files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+    }
+    assertFalse(files.isEmpty());
+    CommandLine line = new CommandLine();
+    int commands = 0;
+    for (Path file : files) {
+      for (String command : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+        assertSameTokens(line, command);
+        commands++;
+      }
+    }
+    assertTrue(commands > files.size());
+  }
+
+  @Test
+  public void matchesRegexOnQuotedAndUnterminatedTokens() {
+    String[] commands = {
+            "",
+            "   ",
+            "search \"Seattle WA\" \"Boston MA\" 1 1 10",
+            "  search   \"Seattle WA\"\t\"Boston MA\"  0 14 5  \r",
+            "\"\"",
+            "a \"\" b",
+            "\"unterminated",
+            "search \"Seattle WA 1 1",
+            "\"Seattle WA\"\"Boston MA\"",
+            "\"a\"b",
+            "ab\"c d\"e",
+            "x \"y",
+            "\"a b\" \"c",
+            "trailing \"quote   ",
+            "\"",
+            "\" \"",
+            "tab\u000Bseparated\fand\ncontrol\u0001chars",
+            "\u0001leading and trailing\u0002",
+    };
+    CommandLine line = new CommandLine();
+    for (String command : commands) {
+      assertSameTokens(line, command);
+    }
+  }
+
+  @Test
+  public void reusesArraysAcrossCommands() {
+    CommandLine line = new CommandLine();
+    StringBuilder many = new StringBuilder();
+    for (int i = 0; i < 100; i++) {
+      many.append(i).append(' ');
+    }
+    assertEquals(100, line.parse(many.toString()).size());
+    assertEquals(99, line.getInt(99));
+    assertEquals(Arrays.asList("book", "3"), tokens(line.parse("book 3")));
+  }
+
+  @Test
+  public void getIntMatchesParseInt() {
+    String[] values = {"0", "7", "-7", "+7", "007", "2147483647", "-2147483648", "2147483648", "-2147483649",
+            "", "-", "+", "12a", "1.5", "99999999999"};
+    CommandLine line = new CommandLine();
+    for (String value : values) {
+      line.parse("pay \"" + value + "\"");
+      Integer expected;
+      try {
+        expected = Integer.parseInt(value);
+      } catch (NumberFormatException e) {
+        expected = null;
+      }
+      Integer actual;
+      try {
+        actual = line.getInt(1);
+      } catch (NumberFormatException e) {
+        actual = null;
+      }
+      assertEquals(value, expected, actual);
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+import javax.sql.rowset.*;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Rows per second mapped from large DIRECT_FLIGHTS and INDIRECT_FLIGHTS result sets.
+ *
+ * The rows are held in a {@link CachedRowSet}, whose label lookup is a scan of the column names
+ * like the driver's. {@code byLabel} maps each row the way Query used to, one label lookup per
+ * field; {@code byIndex} uses {@link FlightMapper}; {@code flyweight} also returns flights already
+ * in a {@link FlightStore}, as repeated searches do.
+ *
+ * Run with: mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ * -Dexec.args="-cp %classpath org.openjdk.jmh.Main FlightMappingBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@OperationsPerInvocation(FlightMappingBenchmark.ROWS)
+public class FlightMappingBenchmark {
+  static final int ROWS = 10000;
+  private static final String[] CITIES = {"Seattle WA", "Boston MA", "Chicago IL", "Denver CO", "Austin TX"};
+
+  @Param({"direct", "indirect"})
+  public String query;
+
+  private CachedRowSet rows;
+  private FlightStore store;
+
+  @Setup
+  public void setUp() throws SQLException {
+    String[] labels = query.equals("direct")
+            ? new String[]{"fid", "day_of_month", "carrier_id", "flight_num", "origin_city", "dest_city",
+            "actual_time", "capacity", "price"}
+            : new String[]{"Ffid", "F2fid", "Fday_of_month", "Fcarrier_id", "F2carrier_id", "Fflight_num",
+            "F2flight_num", "Forigin_city", "F2dest_city", "Fdest_city", "Factual_time", "F2actual_time",
+            "Fcapacity", "F2capacity", "Fprice", "F2price"};
+    RowSetMetaDataImpl meta = new RowSetMetaDataImpl();
+    meta.setColumnCount(labels.length);
+    for (int i = 0; i < labels.length; i++) {
+      boolean text = labels[i].endsWith("_city") || labels[i].contains("carrier") || labels[i].contains("flight_num");
+      meta.setColumnName(i + 1, labels[i]);
+      meta.setColumnLabel(i + 1, labels[i]);
+      meta.setColumnType(i + 1, text ? Types.VARCHAR : Types.INTEGER);
+    }
+    rows = RowSetProvider.newFactory().createCachedRowSet();
+    rows.setMetaData(meta);
+    rows.moveToInsertRow();
+    for (int row = 0; row < ROWS; row++) {
+      for (int i = 0; i < labels.length; i++) {
+        if (meta.getColumnType(i + 1) == Types.VARCHAR) {
+          rows.updateString(i + 1, labels[i].endsWith("_city") ? CITIES[(row + i) % CITIES.length] : "AS" + (row % 50));
+        } else {
+          // fids repeat every 2000 rows, as across a day's searches
+          rows.updateInt(i + 1, labels[i].endsWith("fid") ? row % 2000 + (labels[i].startsWith("F2") ? 100000 : 0) : row);
+        }
+      }
+      rows.insertRow();
+    }
+    rows.moveToCurrentRow();
+    store = new FlightStore(1000000, fid -> null);
+  }
+
+  @Benchmark
+  public void byLabel(Blackhole bh) throws SQLException {
+    rows.beforeFirst();
+    boolean direct = query.equals("direct");
+    while (rows.next()) {
+      if (direct) {
+        bh.consume(flightByLabel(rows));
+      } else {
+        bh.consume(firstLegByLabel(rows));
+        bh.consume(secondLegByLabel(rows));
+      }
+    }
+  }
+
+  @Benchmark
+  public void byIndex(Blackhole bh) throws SQLException {
+    map(bh, null);
+  }
+
+  @Benchmark
+  public void flyweight(Blackhole bh) throws SQLException {
+    map(bh, store);
+  }
+
+  private void map(Blackhole bh, FlightStore store) throws SQLException {
+    rows.beforeFirst();
+    if (query.equals("direct")) {
+      FlightMapper mapper = FlightMapper.flight();
+      while (rows.next()) {
+        bh.consume(mapper.map(rows, store));
+      }
+    } else {
+      FlightMapper first = FlightMapper.firstLeg();
+      FlightMapper second = FlightMapper.secondLeg();
+      while (rows.next()) {
+        bh.consume(first.map(rows, store));
+        bh.consume(second.map(rows, store));
+      }
+    }
+  }
+
+  private static Query.Flight flightByLabel(ResultSet results) throws SQLException {
+    Query.Flight flight = new Query.Flight();
+    flight.fid = results.getInt("fid");
+    flight.dayOfMonth = results.getInt("day_of_month");
+    flight.carrierId = results.getString("carrier_id");
+    flight.flightNum = results.getString("flight_num");
+    flight.originCity = results.getString("origin_city");
+    flight.destCity = results.getString("dest_city");
+    flight.time = results.getInt("actual_time");
+    flight.capacity = results.getInt("capacity");
+    flight.price = results.getInt("price");
+    return flight;
+  }
+
+  private static Query.Flight firstLegByLabel(ResultSet results) throws SQLException {
+    Query.Flight flight = new Query.Flight();
+    flight.fid = results.getInt("Ffid");
+    flight.dayOfMonth = results.getInt("Fday_of_month");
+    flight.carrierId = results.getString("Fcarrier_id");
+    flight.flightNum = results.getString("Fflight_num");
+    flight.originCity = results.getString("Forigin_city");
+    flight.destCity = results.getString("Fdest_city");
+    flight.time = results.getInt("Factual_time");
+    flight.capacity = results.getInt("Fcapacity");
+    flight.price = results.getInt("Fprice");
+    return flight;
+  }
+
+  private static Query.Flight secondLegByLabel(ResultSet results) throws SQLException {
+    Query.Flight flight = new Query.Flight();
+    flight.fid = results.getInt("F2fid");
+    flight.dayOfMonth = results.getInt("Fday_of_month");
+    flight.carrierId = results.getString("F2carrier_id");
+    flight.flightNum = results.getString("F2flight_num");
+    flight.originCity = results.getString("Fdest_city");
+    flight.destCity = results.getString("F2dest_city");
+    flight.time = results.getInt("F2actual_time");
+    flight.capacity = results.getInt("F2capacity");
+    flight.price = results.getInt("F2price");
+    return flight;
+  }
+}
@@ -0,0 +1,73 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Compares booking several itineraries one at a time against one group booking.
+ *
+ * Each user searches a range of days and books one itinerary on each of the first few distinct
+ * days, either with repeated book calls or with a single bookGroup call. Only the booking calls
+ * are timed. Clears Users and Reservations before each run.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=flightapp.GroupBookingBenchmark
+ * -Dexec.classpathScope=test [-Dexec.args="users itinerariesPerUser"]
+ */
+public class GroupBookingBenchmark {
+  public static void main(String[] args) throws Exception {
+    int users = args.length > 0 ? Integer.parseInt(args[0]) : 50;
+    int perUser = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    Query q = new Query();
+    try {
+      long sequential = run(q, users, perUser, false);
+      long group = run(q, users, perUser, true);
+      int bookings = users * perUser;
+      System.out.printf("%d users, %d itineraries each%n", users, perUser);
+      System.out.printf("sequential book: %8.1f bookings/s, %6.2f ms per user%n",
+              bookings / (sequential / 1e9), sequential / 1e6 / users);
+      System.out.printf("book_group:      %8.1f bookings/s, %6.2f ms per user%n",
+              bookings / (group / 1e9), group / 1e6 / users);
+    } finally {
+      q.clearTables();
+      q.closeConnection();
+    }
+  }
+
+  /**
+   * @return nanoseconds spent in booking calls
+   */
+  private static long run(Query q, int users, int perUser, boolean grouped) throws Exception {
+    q.clearTables();
+    long elapsed = 0;
+    for (int u = 0; u < users; u++) {
+      q.restoreSession(new Query.Session());
+      String username = "group" + u;
+      q.createCustomer(username, "pw", 1000000);
+      q.login(username, "pw");
+      QueryResult<List<Query.Itinerary>> found = q.searchRange("Seattle WA", "Boston MA", false, 1, 28, 200);
+      List<Integer> ids = new ArrayList<>();
+      Set<Integer> days = new HashSet<>();
+      for (int i = 0; i < found.value().size() && ids.size() < perUser; i++) {
+        if (days.add(found.value().get(i).day)) {
+          ids.add(i);
+        }
+      }
+      long start = System.nanoTime();
+      if (grouped) {
+        check(q.bookGroup(ids));
+      } else {
+        for (int id : ids) {
+          check(q.book(id));
+        }
+      }
+      elapsed += System.nanoTime() - start;
+    }
+    return elapsed;
+  }
+
+  private static void check(QueryResult<?> result) {
+    if (!result.isOk()) {
+      throw new IllegalStateException("Booking failed: " + result.message());
+    }
+  }
+}
@@ -0,0 +1,115 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Compares concurrent bookings through per-request transactions against the group-commit
+ * {@link BookingEngine}.
+ *
+ * Every thread owns a Query and books itineraries of one search, a few hot flights spread over
+ * the days, for a stream of fresh users, timing each booking. The same workload is then booked
+ * through a BookingEngine. Clears Users and Reservations before each run.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=flightapp.GroupCommitBenchmark
+ * -Dexec.classpathScope=test [-Dexec.args="threads bookingsPerThread batchSize"]
+ */
+public class GroupCommitBenchmark {
+  private static final int HOT_ITINERARIES = 10;
+
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int batchSize = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+
+    List<Query> queries = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      queries.add(new Query());
+    }
+    try {
+      System.out.printf("%d threads, %d bookings each%n", threads, perThread);
+      report("per-request", run(queries, perThread, null));
+      try (BookingEngine engine = new BookingEngine(Query.openConnectionFromDbConn(), batchSize, 500)) {
+        report("group commit", run(queries, perThread, engine));
+      }
+    } finally {
+      queries.get(0).clearTables();
+      for (Query q : queries) {
+        q.closeConnection();
+      }
+    }
+  }
+
+  /**
+   * @return the latency of every booking in nanoseconds, followed by the wall time of the run
+   */
+  private static long[] run(List<Query> queries, int perThread, BookingEngine engine) throws Exception {
+    queries.get(0).clearTables();
+    createUsers(queries.size() * perThread);
+    ExecutorService pool = Executors.newFixedThreadPool(queries.size());
+    List<Future<long[]>> futures = new ArrayList<>();
+    CountDownLatch start = new CountDownLatch(1);
+    for (int t = 0; t < queries.size(); t++) {
+      Query q = queries.get(t);
+      int thread = t;
+      futures.add(pool.submit(() -> {
+        Query.Session searching = new Query.Session();
+        q.restoreSession(searching);
+        List<Query.Itinerary> found = q.search("Seattle WA", "Boston MA", true, 1 + thread % 28, HOT_ITINERARIES).value();
+        long[] latencies = new long[perThread];
+        start.await();
+        for (int i = 0; i < perThread; i++) {
+          String user = "gc" + (thread * perThread + i);
+          int itineraryId = i % found.size();
+          long begin = System.nanoTime();
+          if (engine == null) {
+            Query.Session session = new Query.Session();
+            session.currentUser = user;
+            session.itineraries = found;
+            q.restoreSession(session);
+            q.book(itineraryId);
+          } else {
+            engine.book(user, itineraryId, found.get(itineraryId)).join();
+          }
+          latencies[i] = System.nanoTime() - begin;
+        }
+        return latencies;
+      }));
+    }
+    long begin = System.nanoTime();
+    start.countDown();
+    long[] all = new long[queries.size() * perThread + 1];
+    int n = 0;
+    for (Future<long[]> future : futures) {
+      for (long latency : future.get()) {
+        all[n++] = latency;
+      }
+    }
+    all[n] = System.nanoTime() - begin;
+    pool.shutdown();
+    return all;
+  }
+
+  private static void createUsers(int count) throws Exception {
+    try (Connection conn = Query.openConnectionFromDbConn();
+         PreparedStatement insert = conn.prepareStatement("INSERT INTO Users VALUES (?, 'x', 'x', 0)")) {
+      conn.setAutoCommit(false);
+      for (int u = 0; u < count; u++) {
+        insert.setString(1, "gc" + u);
+        insert.addBatch();
+      }
+      insert.executeBatch();
+      conn.commit();
+    }
+  }
+
+  private static void report(String name, long[] result) {
+    long wall = result[result.length - 1];
+    long[] latencies = Arrays.copyOf(result, result.length - 1);
+    Arrays.sort(latencies);
+    System.out.printf("%-13s %8.1f bookings/s, p50 %7.2f ms, p99 %7.2f ms%n", name,
+            latencies.length / (wall / 1e9), latencies[latencies.length / 2] / 1e6,
+            latencies[(int) (latencies.length * 0.99)] / 1e6);
+  }
+}
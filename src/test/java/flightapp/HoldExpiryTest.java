@@ -0,0 +1,54 @@
+package flightapp;
+
+import org.junit.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a hold cancelled by {@link HoldExpiry} gives its seat back to the SQL booking path.
+ *
+ * Holds are off in dbconn.properties, so the test runs its own expiry on a separate connection
+ * and starts each booking's TTL the way {@link Query} does.
+ */
+public class HoldExpiryTest {
+  private static final long TTL_MS = 1000;
+  private static final long TICK_MS = 50;
+
+  @Before
+  public void clearDB() throws Exception {
+    Query query = new Query();
+    query.clearTables();
+    query.closeConnection();
+  }
+
+  @Test
+  public void expiredHoldGivesBackItsSeat() throws Exception {
+    Query first = new Query();
+    Query second = new Query();
+    HoldExpiry expiry = new HoldExpiry(Query.openConnectionFromDbConn(), TTL_MS, TICK_MS, null);
+    try {
+      first.createCustomer("hold1", "hold1", 10000);
+      second.createCustomer("hold2", "hold2", 10000);
+      first.login("hold1", "hold1");
+      second.login("hold2", "hold2");
+      // itinerary 5 is fid 3087, which has a single seat
+      first.search("Kahului HI", "Los Angeles CA", false, 6, 7);
+      second.search("Kahului HI", "Los Angeles CA", false, 6, 7);
+
+      QueryResult<Integer> booked = first.book(5);
+      assertTrue(booked.isOk());
+      expiry.hold(booked.value());
+      assertFalse("the only seat is held", second.book(5).isOk());
+
+      Thread.sleep(TTL_MS + 20 * TICK_MS);
+      assertEquals(1, expiry.expiredCount());
+      assertTrue("the expired hold gave its seat back", second.book(5).isOk());
+    } finally {
+      expiry.close();
+      first.closeConnection();
+      second.closeConnection();
+    }
+  }
+}
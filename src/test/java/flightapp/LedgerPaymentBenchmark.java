@@ -0,0 +1,80 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Measures concurrent payments through {@link Query#pay}.
+ *
+ * Every thread owns a Query and a stream of fresh users, each of whom books one itinerary and then
+ * pays for it; only the payments are timed. Run once as is and once with flightapp.ledger = true
+ * in dbconn.properties to compare the SQL balance update against the {@link AccountLedger}.
+ * Clears Users and Reservations before and after the run.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=flightapp.LedgerPaymentBenchmark
+ * -Dexec.classpathScope=test [-Dexec.args="threads paymentsPerThread"]
+ */
+public class LedgerPaymentBenchmark {
+  public static void main(String[] args) throws Exception {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+    List<Query> queries = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      queries.add(new Query());
+    }
+    try {
+      queries.get(0).clearTables();
+      System.out.printf("%d threads, %d payments each, ledger %s%n", threads, perThread,
+              AppConfig.get().getBoolean("flightapp.ledger", false) ? "on" : "off");
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      List<Future<long[]>> futures = new ArrayList<>();
+      CyclicBarrier start = new CyclicBarrier(threads + 1);
+      for (int t = 0; t < threads; t++) {
+        Query q = queries.get(t);
+        int thread = t;
+        futures.add(pool.submit(() -> {
+          List<Integer> reservations = new ArrayList<>();
+          for (int i = 0; i < perThread; i++) {
+            String user = "lp" + (thread * perThread + i);
+            q.createCustomer(user, "x", 1_000_000);
+            q.login(user, "x");
+            q.search("Seattle WA", "Boston MA", true, 1 + i % 28, 1);
+            reservations.add(q.book(0).value());
+          }
+          long[] latencies = new long[perThread];
+          start.await();
+          for (int i = 0; i < perThread; i++) {
+            Query.Session session = new Query.Session();
+            session.currentUser = "lp" + (thread * perThread + i);
+            q.restoreSession(session);
+            long begin = System.nanoTime();
+            q.pay(reservations.get(i));
+            latencies[i] = System.nanoTime() - begin;
+          }
+          return latencies;
+        }));
+      }
+      start.await();
+      long begin = System.nanoTime();
+      long[] all = new long[threads * perThread];
+      int n = 0;
+      for (Future<long[]> future : futures) {
+        for (long latency : future.get()) {
+          all[n++] = latency;
+        }
+      }
+      long wall = System.nanoTime() - begin;
+      pool.shutdown();
+      Arrays.sort(all);
+      System.out.printf("%8.1f payments/s, p50 %7.2f ms, p99 %7.2f ms%n", all.length / (wall / 1e9),
+              all[all.length / 2] / 1e6, all[(int) (all.length * 0.99)] / 1e6);
+    } finally {
+      queries.get(0).clearTables();
+      for (Query q : queries) {
+        q.closeConnection();
+      }
+    }
+  }
+}
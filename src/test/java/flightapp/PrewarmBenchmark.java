@@ -0,0 +1,99 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Measures how long a fresh process takes to reach steady-state search latency, with and without
+ * {@link Query#prewarm}.
+ *
+ * Searches follow a skewed mix over the busiest routes in Flights. Needs flightapp.route_sketch =
+ * true in dbconn.properties. Run in three separate JVMs:
+ * <ol>
+ *   <li>{@code record}: searches the mix so the route sketch is saved at exit</li>
+ *   <li>{@code cold}: starts searching at once</li>
+ *   <li>{@code warm}: pre-warms from the saved sketch, then searches</li>
+ * </ol>
+ * Each of the last two prints the median latency of every window of searches, and how many
+ * searches and how long it took until a window's median came within 10% of the steady state,
+ * the median of the last quarter of windows.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=flightapp.PrewarmBenchmark
+ * -Dexec.classpathScope=test -Dexec.args="record|cold|warm [searches]"
+ */
+public class PrewarmBenchmark {
+  private static final String ROUTES_SQL = "SELECT TOP (500) origin_city, dest_city, day_of_month "
+          + "FROM Flights WHERE canceled = 0 GROUP BY origin_city, dest_city, day_of_month ORDER BY COUNT(*) DESC";
+  private static final int WINDOW = 100;
+
+  public static void main(String[] args) throws Exception {
+    String mode = args.length > 0 ? args[0] : "cold";
+    int searches = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    if (!AppConfig.get().getBoolean("flightapp.route_sketch", false)) {
+      System.out.println("Set flightapp.route_sketch = true in dbconn.properties");
+      return;
+    }
+
+    List<String[]> routes = new ArrayList<>();
+    try (Connection conn = Query.openConnectionFromDbConn();
+         Statement statement = conn.createStatement();
+         ResultSet results = statement.executeQuery(ROUTES_SQL)) {
+      while (results.next()) {
+        routes.add(new String[]{results.getString("origin_city"), results.getString("dest_city"),
+                String.valueOf(results.getInt("day_of_month"))});
+      }
+    }
+
+    long start = System.nanoTime();
+    if (mode.equals("warm")) {
+      int warmed = Query.prewarm();
+      System.out.printf("pre-warm: %d searches in %.0f ms%n", warmed, (System.nanoTime() - start) / 1e6);
+    }
+    Query q = new Query();
+    Random random = new Random(42);
+    long[] latencies = new long[searches];
+    long trafficStart = System.nanoTime();
+    for (int i = 0; i < searches; i++) {
+      String[] route = routes.get(zipf(random, routes.size()));
+      long begin = System.nanoTime();
+      q.transaction_search(route[0], route[1], false, Integer.parseInt(route[2]), 10);
+      latencies[i] = System.nanoTime() - begin;
+    }
+    q.closeConnection();
+    if (mode.equals("record")) {
+      System.out.printf("recorded %d searches over %d routes%n", searches, routes.size());
+      return;
+    }
+
+    int windows = searches / WINDOW;
+    long[] medians = new long[windows];
+    for (int w = 0; w < windows; w++) {
+      long[] window = Arrays.copyOfRange(latencies, w * WINDOW, (w + 1) * WINDOW);
+      Arrays.sort(window);
+      medians[w] = window[WINDOW / 2];
+      System.out.printf("searches %5d-%5d: median %.2f ms, max %.2f ms%n", w * WINDOW, (w + 1) * WINDOW - 1,
+              medians[w] / 1e6, window[WINDOW - 1] / 1e6);
+    }
+    long[] tail = Arrays.copyOfRange(medians, windows - Math.max(1, windows / 4), windows);
+    Arrays.sort(tail);
+    long steady = tail[tail.length / 2];
+    int settled = 0;
+    while (settled < windows && medians[settled] > steady * 1.1) {
+      settled++;
+    }
+    long elapsed = 0;
+    for (int i = 0; i < settled * WINDOW; i++) {
+      elapsed += latencies[i];
+    }
+    System.out.printf("%s: steady-state median %.2f ms, reached after %d searches, %.0f ms of traffic "
+                    + "(%.0f ms since start)%n", mode, steady / 1e6, settled * WINDOW, elapsed / 1e6,
+            (trafficStart - start + elapsed) / 1e6);
+  }
+
+  /**
+   * Index of a route, the first ones most often
+   */
+  private static int zipf(Random random, int n) {
+    return Math.min(n - 1, (int) Math.pow(n + 1, random.nextDouble()) - 1);
+  }
+}
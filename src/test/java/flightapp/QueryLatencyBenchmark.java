@@ -0,0 +1,162 @@
+package flightapp;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Times the hot lookups before and after the index migrations.
+ *
+ * Clears Users and Reservations, seeds them with synthetic rows, drops the migration indexes, times
+ * each statement, applies the migrations and times them again.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=flightapp.QueryLatencyBenchmark
+ * -Dexec.classpathScope=test [-Dexec.args="users reservationsPerUser"]
+ */
+public class QueryLatencyBenchmark {
+  private static final int ITERATIONS = 200;
+  private static final int WARMUP_ITERATIONS = 20;
+  private static final String[][] INDEXES = {
+          {"Reservations", "IX_Reservations_username_day"},
+          {"Reservations", "IX_Reservations_fid1"},
+          {"Reservations", "IX_Reservations_fid2"},
+          {"Flights", "IX_Flights_route_day"},
+          {"Flights", "IX_Flights_origin_day_time"},
+  };
+
+  public static void main(String[] args) throws Exception {
+    int users = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int perUser = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    try (Connection conn = Query.openConnectionFromDbConn()) {
+      new SchemaMigrator(conn).migrate();
+      seed(conn, users, perUser);
+      Random random = new Random(414);
+
+      dropIndexes(conn);
+      System.out.printf("%d users, %d reservations each%n", users, perUser);
+      System.out.println("-- without migration indexes");
+      run(conn, users, random);
+
+      new SchemaMigrator(conn).migrate();
+      System.out.println("-- with migration indexes");
+      run(conn, users, random);
+    }
+  }
+
+  private static void run(Connection conn, int users, Random random) throws SQLException {
+    time(conn, "direct search", "SELECT TOP (10) fid,day_of_month,carrier_id,flight_num,origin_city,dest_city,"
+                    + "actual_time,capacity,price FROM Flights WHERE origin_city = ? AND dest_city = ? "
+                    + "AND day_of_month = ? AND canceled = 0 ORDER BY actual_time ASC, fid ASC",
+            s -> {
+              s.setString(1, "Seattle WA");
+              s.setString(2, "Boston MA");
+              s.setInt(3, 1 + random.nextInt(28));
+            });
+    time(conn, "indirect search", "SELECT TOP (10) F.fid, F2.fid, F.actual_time + F2.actual_time "
+                    + "FROM Flights AS F, Flights AS F2 WHERE F.origin_city = ? AND F2.dest_city = ? "
+                    + "AND F.day_of_month = ? AND F2.day_of_month = F.day_of_month "
+                    + "AND F2.origin_city = F.dest_city AND F.canceled = 0 AND F2.canceled = 0 "
+                    + "ORDER BY F.actual_time + F2.actual_time ASC",
+            s -> {
+              s.setString(1, "Seattle WA");
+              s.setString(2, "Boston MA");
+              s.setInt(3, 1 + random.nextInt(28));
+            });
+    time(conn, "reservations by user", "SELECT * FROM Reservations WHERE username = ?",
+            s -> s.setString(1, "bench" + random.nextInt(users)));
+    time(conn, "reservations by user and day",
+            "SELECT * FROM Reservations AS R WHERE R.username = ? AND R.dayofmonth = ?",
+            s -> {
+              s.setString(1, "bench" + random.nextInt(users));
+              s.setInt(2, 1 + random.nextInt(28));
+            });
+    time(conn, "active seats on flight", "SELECT COUNT(*) AS count FROM Reservations "
+                    + "WHERE cancelled = 0 AND (fid1 = ? OR fid2 = ?)",
+            s -> {
+              int fid = 1 + random.nextInt(1000);
+              s.setInt(1, fid);
+              s.setInt(2, fid);
+            });
+  }
+
+  private interface Binder {
+    void bind(PreparedStatement statement) throws SQLException;
+  }
+
+  private static void time(Connection conn, String name, String sql, Binder binder) throws SQLException {
+    long[] samples = new long[ITERATIONS];
+    try (PreparedStatement statement = conn.prepareStatement(sql)) {
+      for (int i = 0; i < WARMUP_ITERATIONS + ITERATIONS; i++) {
+        binder.bind(statement);
+        long start = System.nanoTime();
+        try (ResultSet rs = statement.executeQuery()) {
+          while (rs.next()) {
+            // drain
+          }
+        }
+        if (i >= WARMUP_ITERATIONS) {
+          samples[i - WARMUP_ITERATIONS] = System.nanoTime() - start;
+        }
+      }
+    }
+    Arrays.sort(samples);
+    double avg = Arrays.stream(samples).average().orElse(0);
+    System.out.printf("%-30s avg %7.2f ms  p50 %7.2f ms  p99 %7.2f ms%n", name, avg / 1e6,
+            samples[ITERATIONS / 2] / 1e6, samples[ITERATIONS * 99 / 100] / 1e6);
+  }
+
+  private static void seed(Connection conn, int users, int perUser) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      statement.execute("DELETE FROM Reservations; DELETE FROM Users;");
+    }
+    conn.setAutoCommit(false);
+    Random random = new Random(0);
+    try (PreparedStatement user = conn.prepareStatement("INSERT INTO Users VALUES (?,?,?,?)");
+         PreparedStatement reservation = conn.prepareStatement("INSERT INTO Reservations "
+                 + "(paid, cancelled, username, itineraryId, price, dayofmonth, fid1, fid2) "
+                 + "VALUES (?,?,?,?,?,?,?,?)")) {
+      for (int u = 0; u < users; u++) {
+        String username = "bench" + u;
+        user.setString(1, username);
+        user.setString(2, "");
+        user.setString(3, "");
+        user.setInt(4, 1000);
+        user.addBatch();
+        for (int r = 0; r < perUser; r++) {
+          reservation.setInt(1, random.nextInt(2));
+          reservation.setInt(2, random.nextInt(10) == 0 ? 1 : 0);
+          reservation.setString(3, username);
+          reservation.setInt(4, r);
+          reservation.setInt(5, 100 + random.nextInt(900));
+          reservation.setInt(6, 1 + random.nextInt(28));
+          reservation.setInt(7, 1 + random.nextInt(1000));
+          if (random.nextBoolean()) {
+            reservation.setInt(8, 1 + random.nextInt(1000));
+          } else {
+            reservation.setNull(8, Types.INTEGER);
+          }
+          reservation.addBatch();
+        }
+        if (u % 1000 == 999) {
+          user.executeBatch();
+          reservation.executeBatch();
+          conn.commit();
+        }
+      }
+      user.executeBatch();
+      reservation.executeBatch();
+      conn.commit();
+    } finally {
+      conn.setAutoCommit(true);
+    }
+  }
+
+  private static void dropIndexes(Connection conn) throws SQLException {
+    try (Statement statement = conn.createStatement()) {
+      for (String[] index : INDEXES) {
+        statement.execute(String.format("DROP INDEX IF EXISTS %s ON %s", index[1], index[0]));
+      }
+      statement.execute("DELETE FROM SchemaVersion WHERE version >= 3");
+    }
+  }
+}
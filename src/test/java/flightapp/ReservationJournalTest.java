@@ -0,0 +1,157 @@
+package flightapp;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a {@link ReservationJournal} applies events to its state as they are appended and
+ * recovers the same state after a restart, from the log alone, from a snapshot and the log after
+ * it, and from a log with a torn last record.
+ */
+public class ReservationJournalTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private Path directory;
+
+  @Before
+  public void createDirectory() {
+    directory = folder.getRoot().toPath().resolve("journal");
+  }
+
+  /**
+   * Append each event while holding the lock, as callers do, then wait until all are on disk
+   */
+  private static void appendAll(ReservationJournal journal, byte[]... events) {
+    CompletableFuture<Void> last = null;
+    for (byte[] event : events) {
+      synchronized (journal) {
+        last = journal.append(event);
+      }
+    }
+    // written in order, so the last one is durable only after the others
+    last.join();
+  }
+
+  /**
+   * alice pays for 1 and cancels it, keeps 2 unpaid; bob pays for 3
+   */
+  private static void book(ReservationJournal journal) {
+    appendAll(journal,
+            ReservationJournal.accountOpened("alice", 1000),
+            ReservationJournal.accountOpened("bob", 500),
+            ReservationJournal.booked(1, "alice", 0, 300, 5, 10, 11),
+            ReservationJournal.paid(1),
+            ReservationJournal.booked(2, "alice", 1, 200, 6, 10, -1),
+            ReservationJournal.cancelled(1),
+            ReservationJournal.booked(3, "bob", 0, 400, 5, 11, -1),
+            ReservationJournal.paid(3));
+  }
+
+  private static void assertBooked(ReservationState state) {
+    assertEquals(1000, state.account("alice").balance);
+    assertEquals(100, state.account("bob").balance);
+    assertTrue(state.reservation(1).paid);
+    assertTrue(state.reservation(1).cancelled);
+    assertFalse(state.reservation(2).paid);
+    assertFalse(state.reservation(2).cancelled);
+    assertTrue(state.reservation(3).paid);
+    assertEquals(1, state.bookedSeats(10));
+    assertEquals(1, state.bookedSeats(11));
+    assertFalse(state.hasBookingOnDay("alice", 5));
+    assertTrue(state.hasBookingOnDay("alice", 6));
+    assertTrue(state.hasBookingOnDay("bob", 5));
+    assertEquals(4, state.nextReservationId());
+  }
+
+  @Test
+  public void appliesEventsAndRecoversThemFromTheLog() throws Exception {
+    try (ReservationJournal journal = new ReservationJournal(directory, 1000)) {
+      book(journal);
+      assertBooked(journal.state());
+    }
+    try (ReservationJournal journal = new ReservationJournal(directory, 1000)) {
+      assertBooked(journal.state());
+    }
+  }
+
+  @Test
+  public void recoversFromSnapshotAndLaterLog() throws Exception {
+    try (ReservationJournal journal = new ReservationJournal(directory, 3)) {
+      book(journal);
+    }
+    assertTrue(Files.exists(directory.resolve("reservations.snapshot")));
+    try (ReservationJournal journal = new ReservationJournal(directory, 3)) {
+      assertBooked(journal.state());
+      appendAll(journal, ReservationJournal.paid(2));
+    }
+    try (ReservationJournal journal = new ReservationJournal(directory, 3)) {
+      assertEquals(800, journal.state().account("alice").balance);
+      assertTrue(journal.state().reservation(2).paid);
+    }
+  }
+
+  @Test
+  public void dropsATornLastRecord() throws Exception {
+    try (ReservationJournal journal = new ReservationJournal(directory, 1000)) {
+      book(journal);
+    }
+    Path log = directory.resolve("reservations.log");
+    long size = Files.size(log);
+    try (FileChannel channel = FileChannel.open(log, StandardOpenOption.WRITE)) {
+      // the length and part of a booking for reservation 4
+      byte[] event = ReservationJournal.booked(4, "bob", 0, 100, 7, 12, -1);
+      channel.write(ByteBuffer.allocate(4 + 5).putInt(event.length).put(event, 0, 5).flip(), size);
+    }
+    try (ReservationJournal journal = new ReservationJournal(directory, 1000)) {
+      assertBooked(journal.state());
+      assertNull(journal.state().reservation(4));
+      assertEquals("torn tail cut off", size, Files.size(log));
+      appendAll(journal, ReservationJournal.booked(4, "bob", 0, 100, 7, 12, -1));
+    }
+    try (ReservationJournal journal = new ReservationJournal(directory, 1000)) {
+      assertEquals(7, journal.state().reservation(4).day);
+    }
+  }
+
+  @Test
+  public void groupIsAppliedAndRecoveredWhole() throws Exception {
+    try (ReservationJournal journal = new ReservationJournal(directory, 1000)) {
+      appendAll(journal,
+              ReservationJournal.accountOpened("alice", 1000),
+              ReservationJournal.accountOpened("bob", 1000),
+              ReservationJournal.group(Arrays.asList(
+                      ReservationJournal.booked(1, "alice", 0, 100, 3, 20, -1),
+                      ReservationJournal.booked(2, "bob", 0, 100, 3, 20, -1))));
+      assertEquals(2, journal.state().bookedSeats(20));
+    }
+    try (ReservationJournal journal = new ReservationJournal(directory, 1000)) {
+      assertEquals(2, journal.state().bookedSeats(20));
+      assertTrue(journal.state().hasBookingOnDay("alice", 3));
+      assertTrue(journal.state().hasBookingOnDay("bob", 3));
+    }
+  }
+
+  @Test
+  public void resetEmptiesStateAndLog() throws Exception {
+    try (ReservationJournal journal = new ReservationJournal(directory, 3)) {
+      book(journal);
+      journal.reset();
+      assertNull(journal.state().account("alice"));
+      assertEquals(1, journal.state().nextReservationId());
+    }
+    assertEquals(0, Files.size(directory.resolve("reservations.log")));
+    assertFalse(Files.exists(directory.resolve("reservations.snapshot")));
+    try (ReservationJournal journal = new ReservationJournal(directory, 3)) {
+      assertNull(journal.state().account("alice"));
+    }
+  }
+}
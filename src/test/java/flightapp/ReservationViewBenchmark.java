@@ -0,0 +1,51 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Measures a user polling {@code reservations} after booking, as clients do while waiting to pay.
+ *
+ * One user books a reservation on each of several days, then calls {@link Query#reservations}
+ * repeatedly, paying for one reservation between rounds so the output keeps changing. Run once as
+ * is and once with flightapp.reservation_views = true in dbconn.properties to compare the table
+ * scan against the cached view. Clears Users and Reservations before and after the run.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=flightapp.ReservationViewBenchmark
+ * -Dexec.classpathScope=test [-Dexec.args="reservations polls"]
+ */
+public class ReservationViewBenchmark {
+  public static void main(String[] args) throws Exception {
+    int reservations = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+    int polls = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+    Query q = new Query();
+    try {
+      q.clearTables();
+      System.out.printf("%d reservations, %d polls, reservation views %s%n", reservations, polls,
+              AppConfig.get().getBoolean("flightapp.reservation_views", false) ? "on" : "off");
+      q.createCustomer("rv", "x", 1_000_000);
+      q.login("rv", "x");
+      List<Integer> ids = new ArrayList<>();
+      for (int day = 1; day <= reservations; day++) {
+        q.search("Seattle WA", "Boston MA", true, day, 1);
+        ids.add(q.book(0).value());
+      }
+      long[] latencies = new long[polls];
+      int paid = 0;
+      for (int i = 0; i < polls; i++) {
+        if (i % (polls / reservations) == 0 && paid < ids.size()) {
+          q.pay(ids.get(paid++));
+        }
+        long begin = System.nanoTime();
+        q.reservations();
+        latencies[i] = System.nanoTime() - begin;
+      }
+      Arrays.sort(latencies);
+      System.out.printf("reservations: p50 %.3f ms, p99 %.3f ms, mean %.3f ms%n", latencies[polls / 2] / 1e6,
+              latencies[polls * 99 / 100] / 1e6, Arrays.stream(latencies).average().orElse(0) / 1e6);
+    } finally {
+      q.clearTables();
+      q.closeConnection();
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package flightapp;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link ReservationViews} renders what the {@code reservations} command would, keeps
+ * a loaded view up to date with this process's bookings and payments, and drops views that
+ * changed while loading, were written elsewhere or fell out of the LRU.
+ */
+public class ReservationViewsTest {
+  private static Query.Flight flight(int fid) {
+    Query.Flight flight = new Query.Flight();
+    flight.fid = fid;
+    flight.dayOfMonth = 3;
+    flight.carrierId = "AS";
+    flight.flightNum = String.valueOf(100 + fid);
+    flight.originCity = "Seattle WA";
+    flight.destCity = "Boston MA";
+    flight.time = 300;
+    flight.capacity = 10;
+    flight.price = 200;
+    return flight;
+  }
+
+  private static String reservation(int id, boolean paid, Query.Flight f1, Query.Flight f2) {
+    return "Reservation " + id + " paid: " + paid + ":\n" + f1 + "\n" + (f2 == null ? "" : f2 + "\n");
+  }
+
+  private static String load(ReservationViews views, String username, int... ids) {
+    ReservationViews.View view = views.loading(username);
+    for (int id : ids) {
+      view.add(id, false, flight(id), null);
+    }
+    return views.install(username, view);
+  }
+
+  @Test
+  public void rendersLoadedRowsInIdOrder() {
+    ReservationViews views = new ReservationViews(10);
+    assertNull(views.get("alice"));
+    ReservationViews.View view = views.loading("alice");
+    view.add(2, true, flight(20), flight(21));
+    view.add(1, false, flight(10), null);
+    assertNull("not served until installed", views.get("alice"));
+
+    String expected = reservation(1, false, flight(10), null) + reservation(2, true, flight(20), flight(21));
+    assertEquals(expected, views.install("alice", view));
+    assertEquals(expected, views.get("alice"));
+    assertSame(views.get("alice"), views.get("alice"));
+  }
+
+  @Test
+  public void loadedViewFollowsLocalChanges() {
+    ReservationViews views = new ReservationViews(10);
+    load(views, "alice", 1);
+    views.changed(ChangeFeed.BOOKED, "alice", 3, flight(30), flight(31));
+    views.changed(ChangeFeed.PAID, "alice", 1, null, null);
+    // a cancelled reservation stays listed, as it does in the table
+    views.changed(ChangeFeed.CANCELLED, "alice", 3, null, null);
+    assertEquals(reservation(1, true, flight(1), null) + reservation(3, false, flight(30), flight(31)),
+            views.get("alice"));
+
+    // no view, nothing to change
+    views.changed(ChangeFeed.BOOKED, "bob", 4, flight(40), null);
+    assertNull(views.get("bob"));
+  }
+
+  @Test
+  public void changeWhileLoadingDropsTheView() {
+    ReservationViews views = new ReservationViews(10);
+    ReservationViews.View view = views.loading("alice");
+    view.add(1, false, flight(1), null);
+    // booked after the rows were read
+    views.changed(ChangeFeed.BOOKED, "alice", 2, flight(2), null);
+    assertEquals("the caller still gets what it read", reservation(1, false, flight(1), null),
+            views.install("alice", view));
+    assertNull(views.get("alice"));
+
+    view = views.loading("alice");
+    views.invalidate("alice");
+    views.install("alice", view);
+    assertNull(views.get("alice"));
+
+    view = views.loading("alice");
+    views.abandon("alice", view);
+    assertEquals(0, views.size());
+  }
+
+  @Test
+  public void remoteWritesAndOverflowDropViews() {
+    ReservationViews views = new ReservationViews(10);
+    load(views, "alice", 1);
+    load(views, "bob", 2);
+    views.invalidate("alice");
+    assertNull(views.get("alice"));
+    assertNotNull(views.get("bob"));
+
+    ReservationViews.View loading = views.loading("carol");
+    views.clear();
+    assertNull(views.get("bob"));
+    views.install("carol", loading);
+    assertNull("loading when the feed overflowed", views.get("carol"));
+    assertEquals(0, views.size());
+  }
+
+  @Test
+  public void evictsLeastRecentlyUsed() {
+    ReservationViews views = new ReservationViews(2);
+    load(views, "alice", 1);
+    load(views, "bob", 2);
+    assertNotNull(views.get("alice"));
+    load(views, "carol", 3);
+    assertEquals(2, views.size());
+    assertNull(views.get("bob"));
+    assertNotNull(views.get("alice"));
+    assertNotNull(views.get("carol"));
+  }
+}
@@ -0,0 +1,110 @@
+package flightapp;
+
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link RouteSketch} finds the most searched routes among many rare ones, never
+ * undercounts, and halves its counts over a save and load.
+ */
+public class RouteSketchTest {
+  private static final int HEAVY = 5;
+  private static final int RARE = 5000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  /**
+   * Searches route i of {@link #HEAVY} 1000 * (i + 1) times, and each of {@link #RARE} other
+   * routes once or twice, interleaved
+   */
+  private static RouteSketch searched(Map<String, Integer> counts) {
+    RouteSketch sketch = new RouteSketch(4, 1024, 20);
+    Random random = new Random(7);
+    List<String[]> searches = new ArrayList<>();
+    for (int i = 0; i < HEAVY; i++) {
+      for (int n = 0; n < 1000 * (i + 1); n++) {
+        searches.add(new String[]{"Seattle WA", "City " + i, "1"});
+      }
+    }
+    for (int i = 0; i < RARE; i++) {
+      for (int n = 0; n <= i % 2; n++) {
+        searches.add(new String[]{"Boston MA", "Town " + i, String.valueOf(1 + i % 28)});
+      }
+    }
+    Collections.shuffle(searches, random);
+    for (String[] search : searches) {
+      sketch.add(search[0], search[1], Integer.parseInt(search[2]));
+      counts.merge(String.join("|", search), 1, Integer::sum);
+    }
+    return sketch;
+  }
+
+  @Test
+  public void topIsTheHeavyHittersMostSearchedFirst() {
+    RouteSketch sketch = searched(new HashMap<>());
+    List<RouteSketch.Route> top = sketch.top(HEAVY);
+    assertEquals(HEAVY, top.size());
+    for (int i = 0; i < HEAVY; i++) {
+      RouteSketch.Route route = top.get(i);
+      assertEquals("Seattle WA", route.originCity);
+      assertEquals("City " + (HEAVY - 1 - i), route.destCity);
+      assertEquals(1, route.dayOfMonth);
+      assertTrue(route.count() >= 1000 * (HEAVY - i));
+    }
+  }
+
+  @Test
+  public void estimatesNeverUndercount() {
+    Map<String, Integer> counts = new HashMap<>();
+    RouteSketch sketch = searched(counts);
+    long total = counts.values().stream().mapToLong(Integer::longValue).sum();
+    int over = 0;
+    for (Map.Entry<String, Integer> count : counts.entrySet()) {
+      String[] route = count.getKey().split("\\|");
+      int estimate = sketch.estimate(route[0], route[1], Integer.parseInt(route[2]));
+      assertTrue(count.getKey(), estimate >= count.getValue());
+      if (estimate - count.getValue() > total * 3 / 1024) {
+        over++;
+      }
+    }
+    // over by more than e / width of all searches with probability e^-depth at most
+    assertTrue(over + " routes over", over <= counts.size() / 50);
+  }
+
+  @Test
+  public void topIsBoundedByN() {
+    RouteSketch sketch = searched(new HashMap<>());
+    assertEquals(20, sketch.top(100).size());
+    assertEquals(1, sketch.top(1).size());
+    assertTrue(new RouteSketch(4, 1024, 20).top(10).isEmpty());
+  }
+
+  @Test
+  public void loadHalvesSavedCounts() throws Exception {
+    RouteSketch sketch = new RouteSketch(4, 1024, 10);
+    for (int n = 0; n < 100; n++) {
+      sketch.add("Seattle WA", "Boston MA", 5);
+    }
+    sketch.add("Seattle WA", "Denver CO", 6);
+    Path file = folder.getRoot().toPath().resolve("route_sketch.dat");
+    sketch.save(file);
+
+    RouteSketch restarted = new RouteSketch(4, 1024, 10);
+    assertTrue(restarted.load(file));
+    assertEquals(50, restarted.estimate("Seattle WA", "Boston MA", 5));
+    assertEquals(0, restarted.estimate("Seattle WA", "Denver CO", 6));
+    List<RouteSketch.Route> top = restarted.top(10);
+    assertEquals(1, top.size());
+    assertEquals("Boston MA", top.get(0).destCity);
+    assertEquals(50, top.get(0).count());
+
+    assertFalse(new RouteSketch(4, 2048, 10).load(file));
+    assertFalse(restarted.load(file.resolveSibling("missing.dat")));
+  }
+}
@@ -0,0 +1,51 @@
+package flightapp;
+
+/**
+ * Compares one flexible-date search against the same days searched one at a time.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=flightapp.SearchRangeBenchmark
+ * -Dexec.classpathScope=test
+ */
+public class SearchRangeBenchmark {
+  private static final int ROUNDS = 20;
+  private static final int WARMUP_ROUNDS = 3;
+
+  public static void main(String[] args) throws Exception {
+    String origin = args.length > 0 ? args[0] : "Seattle WA";
+    String dest = args.length > 1 ? args[1] : "Boston MA";
+    int firstDay = 1;
+    int lastDay = 7;
+    int count = 10;
+
+    Query q = new Query();
+    try {
+      for (int i = 0; i < WARMUP_ROUNDS; i++) {
+        q.transaction_searchRange(origin, dest, false, firstDay, lastDay, count);
+        for (int day = firstDay; day <= lastDay; day++) {
+          q.transaction_search(origin, dest, false, day, count);
+        }
+      }
+
+      long start = System.nanoTime();
+      for (int i = 0; i < ROUNDS; i++) {
+        for (int day = firstDay; day <= lastDay; day++) {
+          q.transaction_search(origin, dest, false, day, count);
+        }
+      }
+      long sequential = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < ROUNDS; i++) {
+        q.transaction_searchRange(origin, dest, false, firstDay, lastDay, count);
+      }
+      long range = System.nanoTime() - start;
+
+      System.out.printf("%s -> %s, days %d-%d, top %d, %d rounds%n", origin, dest, firstDay, lastDay,
+              count, ROUNDS);
+      System.out.printf("repeated single-day search: %.1f ms/round%n", sequential / 1e6 / ROUNDS);
+      System.out.printf("range search:               %.1f ms/round%n", range / 1e6 / ROUNDS);
+    } finally {
+      q.closeConnection();
+    }
+  }
+}
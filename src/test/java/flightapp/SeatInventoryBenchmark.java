@@ -0,0 +1,71 @@
+package flightapp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Contention benchmark: 64 threads booking and releasing seats on the same four flights.
+ *
+ * Compares the CAS-based {@link SeatInventory} with a single monitor guarding the counters.
+ *
+ * Run with: mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ * -Dexec.args="-cp %classpath org.openjdk.jmh.Main SeatInventoryBenchmark"
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(64)
+public class SeatInventoryBenchmark {
+  private static final int[] HOT_FIDS = {285, 3087, 131239, 887205};
+  private static final int CAPACITY = Integer.MAX_VALUE / 2;
+
+  private SeatInventory inventory;
+  private int[] lockedCounts;
+
+  @State(Scope.Thread)
+  public static class Picker {
+    int next;
+
+    int fid() {
+      next = (next + 1) & (HOT_FIDS.length - 1);
+      return HOT_FIDS[next];
+    }
+  }
+
+  @Setup
+  public void setup() throws Exception {
+    inventory = new SeatInventory(1 << 21);
+    for (int fid : HOT_FIDS) {
+      inventory.reserve(fid, f -> CAPACITY + 1);
+    }
+    lockedCounts = new int[HOT_FIDS.length];
+  }
+
+  @Benchmark
+  public boolean inventoryReserveRelease(Picker picker) throws Exception {
+    int fid = picker.fid();
+    boolean reserved = inventory.reserve(fid, f -> CAPACITY);
+    inventory.release(fid);
+    return reserved;
+  }
+
+  @Benchmark
+  public boolean monitorReserveRelease(Picker picker) {
+    int slot = picker.next = (picker.next + 1) & (HOT_FIDS.length - 1);
+    boolean reserved;
+    synchronized (this) {
+      reserved = lockedCounts[slot] < CAPACITY;
+      if (reserved) {
+        lockedCounts[slot]++;
+      }
+    }
+    synchronized (this) {
+      lockedCounts[slot]--;
+    }
+    return reserved;
+  }
+}
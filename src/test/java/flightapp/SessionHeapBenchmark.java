@@ -0,0 +1,90 @@
+package flightapp;
+
+import java.util.*;
+
+/**
+ * Heap held by the sessions' last search results, as full Itinerary/Flight objects versus compact
+ * {@link SearchResults} over a shared {@link FlightStore}. Needs no database.
+ *
+ * Each session holds one search of synthetic itineraries over a common set of flights; every
+ * session gets its own Flight objects and strings, as rows read through JDBC would.
+ *
+ * Run with: mvn test-compile exec:java -Dexec.mainClass=flightapp.SessionHeapBenchmark
+ * -Dexec.classpathScope=test [-Dexec.args="sessions,... itinerariesPerSession"]
+ */
+public class SessionHeapBenchmark {
+  private static final String[] CITIES = {"Seattle WA", "Boston MA", "Chicago IL", "Denver CO",
+          "New York NY", "San Francisco CA", "Atlanta GA", "Dallas/Fort Worth TX"};
+  private static final String[] CARRIERS = {"AS", "UA", "AA", "DL", "WN", "B6"};
+  private static final int FLIGHTS = 20000;
+
+  public static void main(String[] args) throws Exception {
+    String[] counts = (args.length > 0 ? args[0] : "10000,100000").split(",");
+    int perSession = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    for (String count : counts) {
+      int sessions = Integer.parseInt(count.trim());
+      long baseline = usedHeap();
+      List<List<Query.Itinerary>> full = new ArrayList<>(sessions);
+      Random random = new Random(1);
+      for (int s = 0; s < sessions; s++) {
+        full.add(search(random, perSession));
+      }
+      long fullBytes = usedHeap() - baseline;
+      full = null;
+
+      baseline = usedHeap();
+      FlightStore store = new FlightStore(Integer.MAX_VALUE, fid -> {
+        throw new IllegalStateException("flight " + fid + " not cached");
+      });
+      List<List<Query.Itinerary>> compact = new ArrayList<>(sessions);
+      random = new Random(1);
+      for (int s = 0; s < sessions; s++) {
+        compact.add(SearchResults.of(search(random, perSession), store));
+      }
+      long compactBytes = usedHeap() - baseline;
+
+      System.out.printf("%,d sessions x %d itineraries: objects %,.1f MB (%,d B/session), "
+                      + "compact %,.1f MB (%,d B/session, %,d shared flights)%n", sessions, perSession,
+              fullBytes / 1e6, fullBytes / sessions, compactBytes / 1e6, compactBytes / sessions, store.size());
+      // keep the compact results reachable until measured
+      if (compact.size() != sessions) {
+        throw new AssertionError();
+      }
+    }
+  }
+
+  private static List<Query.Itinerary> search(Random random, int count) {
+    List<Query.Itinerary> found = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      Query.Flight f1 = flight(random.nextInt(FLIGHTS));
+      Query.Flight f2 = random.nextBoolean() ? flight(random.nextInt(FLIGHTS)) : null;
+      found.add(new Query.Itinerary(f1, f2));
+    }
+    return found;
+  }
+
+  private static Query.Flight flight(int fid) {
+    Query.Flight flight = new Query.Flight();
+    flight.fid = fid;
+    flight.dayOfMonth = 1 + fid % 28;
+    // fresh strings, like values read from a ResultSet
+    flight.carrierId = new String(CARRIERS[fid % CARRIERS.length]);
+    flight.flightNum = Integer.toString(100 + fid % 900);
+    flight.originCity = new String(CITIES[fid % CITIES.length]);
+    flight.destCity = new String(CITIES[(fid / CITIES.length) % CITIES.length]);
+    flight.time = 60 + fid % 400;
+    flight.capacity = 1 + fid % 20;
+    flight.price = 100 + fid % 900;
+    return flight;
+  }
+
+  private static long usedHeap() throws InterruptedException {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 4; i++) {
+      System.gc();
+      Thread.sleep(50);
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
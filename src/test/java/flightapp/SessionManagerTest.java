@@ -0,0 +1,89 @@
+package flightapp;
+
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that {@link SessionManager} gives back exactly the session state it offloaded, frees the
+ * slot on rehydration, and keeps in memory the sessions that do not fit a slot.
+ */
+public class SessionManagerTest {
+  private static final long NEVER_IDLE_MS = 3_600_000;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private SessionManager manager(int slots, int maxItineraries) throws Exception {
+    return new SessionManager(folder.getRoot().toPath().resolve("sessions.dat"), slots, maxItineraries,
+            NEVER_IDLE_MS);
+  }
+
+  private static Query.Session session(String user, int[] searchFids) {
+    Query.Session session = new Query.Session();
+    session.currentUser = user;
+    session.searchFids = searchFids;
+    return session;
+  }
+
+  @Test
+  public void rehydratesWhatWasOffloaded() throws Exception {
+    SessionManager manager = manager(4, 8);
+    int[] fids = {10, -1, 11, 12, 13, -1};
+    assertTrue(manager.offload(1, session("alice", fids)));
+    assertTrue(manager.offload(2, session(null, null)));
+    assertTrue(manager.offload(3, session("\u00fcn\u00efc\u00f6d\u00e9", new int[0])));
+    assertEquals(3, manager.offloadedCount());
+
+    Query.Session alice = manager.rehydrate(1);
+    assertEquals("alice", alice.currentUser);
+    assertArrayEquals(fids, alice.searchFids);
+    assertNull(alice.itineraries);
+
+    Query.Session loggedOut = manager.rehydrate(2);
+    assertNull(loggedOut.currentUser);
+    assertNull("no search yet", loggedOut.searchFids);
+
+    Query.Session unicode = manager.rehydrate(3);
+    assertEquals("\u00fcn\u00efc\u00f6d\u00e9", unicode.currentUser);
+    assertArrayEquals(new int[0], unicode.searchFids);
+    assertEquals(0, manager.offloadedCount());
+  }
+
+  @Test
+  public void rehydrationFreesTheSlot() throws Exception {
+    SessionManager manager = manager(2, 8);
+    assertTrue(manager.offload(1, session("a", null)));
+    assertTrue(manager.offload(2, session("b", null)));
+    assertFalse("no slot free", manager.offload(3, session("c", null)));
+    manager.rehydrate(1);
+    assertTrue(manager.offload(3, session("c", null)));
+    assertEquals("b", manager.rehydrate(2).currentUser);
+    assertEquals("c", manager.rehydrate(3).currentUser);
+  }
+
+  @Test
+  public void keepsSessionsThatDoNotFit() throws Exception {
+    SessionManager manager = manager(4, 2);
+    assertFalse("too many itineraries", manager.offload(1, session("alice", new int[]{1, -1, 2, -1, 3, -1})));
+    char[] name = new char[65];
+    Arrays.fill(name, 'x');
+    assertFalse("user name too long", manager.offload(2, session(new String(name), null)));
+    Query.Session unsaved = session("alice", null);
+    unsaved.itineraries = new ArrayList<>();
+    assertFalse("results not saved as fids", manager.offload(3, unsaved));
+    assertEquals(0, manager.offloadedCount());
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void rehydratingTwiceFails() throws Exception {
+    SessionManager manager = manager(2, 8);
+    manager.offload(1, session("alice", null));
+    manager.rehydrate(1);
+    manager.rehydrate(1);
+  }
+}
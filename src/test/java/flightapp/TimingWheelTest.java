@@ -0,0 +1,90 @@
+package flightapp;
+
+import java.util.*;
+
+import org.junit.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that every key added to a {@link TimingWheel} expires exactly at its due tick: keys
+ * already due, keys due at and either side of each level's span of 64^k ticks, and keys due
+ * beyond the top level, from start ticks on and just off those boundaries.
+ */
+public class TimingWheelTest {
+  // 64^4, the span of the whole wheel
+  private static final long WHEEL = 1L << 24;
+  private static final long[] STARTS = {0, 63, 64, 4095, 4096, 262143, 262144, 100000};
+
+  /**
+   * Advance {@code wheel} until nothing is pending, checking each key against {@code due}
+   */
+  private static void expireAll(TimingWheel wheel, Map<Integer, Long> due) {
+    while (wheel.pending() > 0) {
+      wheel.advance(key -> {
+        Long dueTick = due.remove(key);
+        assertNotNull("key " + key + " expired twice", dueTick);
+        assertEquals("key " + key, (long) dueTick, wheel.now());
+      });
+    }
+    assertTrue("never expired: " + due, due.isEmpty());
+  }
+
+  @Test
+  public void keysAlreadyDueExpireOnTheNextTick() {
+    TimingWheel wheel = new TimingWheel(1000);
+    wheel.add(1, 1000);
+    wheel.add(2, 10);
+    wheel.add(3, 1001);
+    List<Integer> expired = new ArrayList<>();
+    wheel.advance(expired::add);
+    Collections.sort(expired);
+    assertEquals(Arrays.asList(1, 2, 3), expired);
+    assertEquals(1001, wheel.now());
+    assertEquals(0, wheel.pending());
+  }
+
+  @Test
+  public void keysDueAtLevelBoundariesExpireOnTime() {
+    for (long start : STARTS) {
+      TimingWheel wheel = new TimingWheel(start);
+      Map<Integer, Long> due = new HashMap<>();
+      int key = 0;
+      for (long span = 1; span < WHEEL; span <<= 6) {
+        for (long offset = span - 1; offset <= span + 1; offset++) {
+          if (offset > 0) {
+            wheel.add(key, start + offset);
+            due.put(key++, start + offset);
+          }
+        }
+      }
+      assertEquals(due.size(), wheel.pending());
+      expireAll(wheel, due);
+    }
+  }
+
+  @Test
+  public void keysDueBeyondTheWheelExpireOnTime() {
+    TimingWheel wheel = new TimingWheel(4096);
+    Map<Integer, Long> due = new HashMap<>();
+    long[] offsets = {WHEEL - 1, WHEEL, WHEEL + 1, 2 * WHEEL + 100};
+    for (int key = 0; key < offsets.length; key++) {
+      wheel.add(key, 4096 + offsets[key]);
+      due.put(key, 4096 + offsets[key]);
+    }
+    expireAll(wheel, due);
+  }
+
+  @Test
+  public void manyKeysSharingSlotsExpireOnTime() {
+    TimingWheel wheel = new TimingWheel(0);
+    Map<Integer, Long> due = new HashMap<>();
+    Random random = new Random(41);
+    for (int key = 0; key < 20000; key++) {
+      long dueTick = 1 + (long) (random.nextDouble() * random.nextDouble() * 300000);
+      wheel.add(key, dueTick);
+      due.put(key, dueTick);
+    }
+    expireAll(wheel, due);
+  }
+}
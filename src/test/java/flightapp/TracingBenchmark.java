@@ -0,0 +1,72 @@
+package flightapp;
+
+import java.lang.reflect.Proxy;
+import java.sql.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Overhead of {@link Tracer} on a command making five statement executions, against a stub
+ * connection so that only the tracing is measured.
+ *
+ * {@code plain} uses the connection directly; {@code traced} goes through {@link Tracer#wrap}, its listener on a
+ * {@link JdbcInterceptor}, and starts a root span per command at the given sample rate. Spans are not exported here, and once
+ * the export queue is full they are dropped.
+ *
+ * Run with: mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ * -Dexec.args="-cp %classpath org.openjdk.jmh.Main TracingBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TracingBenchmark {
+  private static final int STATEMENTS = 5;
+
+  @Param({"0", "0.01", "1"})
+  public double sample;
+
+  private PreparedStatement plainStatement;
+  private PreparedStatement tracedStatement;
+
+  @Setup
+  public void setUp() throws SQLException {
+    Tracer.setSampleRate(sample);
+    Connection stub = stubConnection();
+    plainStatement = stub.prepareStatement("UPDATE Reservations SET paid = ? WHERE username = ? AND id = ?");
+    tracedStatement = Tracer.wrap(stub).prepareStatement("UPDATE Reservations SET paid = ? WHERE username = ? AND id = ?");
+  }
+
+  @Benchmark
+  public int plain() throws SQLException {
+    int updated = 0;
+    for (int i = 0; i < STATEMENTS; i++) {
+      updated += plainStatement.executeUpdate();
+    }
+    return updated;
+  }
+
+  @Benchmark
+  public int traced() throws SQLException {
+    Tracer.Span span = Tracer.start("pay");
+    try {
+      int updated = 0;
+      for (int i = 0; i < STATEMENTS; i++) {
+        updated += tracedStatement.executeUpdate();
+      }
+      return updated;
+    } finally {
+      Tracer.end(span);
+    }
+  }
+
+  private static Connection stubConnection() {
+    PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(TracingBenchmark.class.getClassLoader(),
+            new Class<?>[]{PreparedStatement.class}, (proxy, method, args) -> method.getReturnType() == int.class ? 1 : null);
+    return (Connection) Proxy.newProxyInstance(TracingBenchmark.class.getClassLoader(), new Class<?>[]{Connection.class},
+            (proxy, method, args) -> method.getName().equals("prepareStatement") ? statement : null);
+  }
+}